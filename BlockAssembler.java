@@ -1,6 +1,7 @@
 import java.util.*;
 import java.util.concurrent.*;
 import java.io.*;
+import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -10,11 +11,22 @@ public class BlockAssembler {
 
     public Chat chat;
 
+    /**
+     * Writes pieces of files to disk, in arrival order, so the Receiver thread never waits on the disk.
+     */
+    public ExecutorService fileWriter = Executors.newSingleThreadExecutor();
+
     /**
      * The blocks we are building
      */
     public AbstractMap<IncompleteMessageTuple, BlockBuilder> blocks;
 
+    /**
+     * The files being written to disk, by BlockFile.key of their sender and first sequence number,
+     * so a piece can be found from its sequence number alone.
+     */
+    private TreeMap<Long, FileBlockBuilder> onDisk = new TreeMap<Long, FileBlockBuilder>();
+
     public BlockAssembler(Chat chat, boolean multithreaded){
         this.chat = chat;
 
@@ -55,11 +67,10 @@ public class BlockAssembler {
 
         // this may be the first message in this block
         if(bb == null){
-            bb = new BlockBuilder(this, message.type, message.senderID, message.blockIndex, message.blockOffset, message.blockSize);
+            bb = this.newBlockBuilder(message);
             blocks.put(new IncompleteMessageTuple(message.senderID, message.blockIndex), bb);
-
-            if(message.type == Message.Type.FILE && message.senderID != chat.hostID)
-                System.out.println(chat.whatsHisName(message.senderID)+" is sending a file...");
+            if(bb instanceof FileBlockBuilder)
+                addOnDisk((FileBlockBuilder) bb);
         }
 
         bb.addMessage(message);
@@ -100,6 +111,27 @@ public class BlockAssembler {
     }
 
 
+    /**
+     * Is this block being built, with some of its pieces in?
+     */
+    public boolean isBuilding(int senderID, int blockIndex){
+        return getBlockBuilder(senderID, blockIndex) != null;
+    }
+
+    /**
+     * Rebuild the pieces of a complete block which didn't arrive, from its repair pieces.
+     *
+     * @return the pieces rebuilt; empty if none were missing
+     */
+    public List<Message> recover(int senderID, int blockIndex){
+        BlockBuilder bb = getBlockBuilder(senderID, blockIndex);
+
+        if(bb == null)
+            return new ArrayList<Message>();
+
+        return bb.recover();
+    }
+
     /**
      * Get the text (ASCII) associated with this message's block
      * 
@@ -123,7 +155,34 @@ public class BlockAssembler {
      * @param blockIndex The index of the block to remove
      */
     public void removeBlock(int senderID, int blockIndex){
-        blocks.remove(new IncompleteMessageTuple(senderID, blockIndex));
+        BlockBuilder bb = blocks.remove(new IncompleteMessageTuple(senderID, blockIndex));
+        if(bb instanceof FileBlockBuilder){
+            synchronized(onDisk){
+                onDisk.remove(BlockFile.key(senderID, bb.blockOffset), bb);
+            }
+        }
+    }
+
+    /**
+     * Read back a piece of a file being written to disk.
+     *
+     * @return the piece, or null if it isn't a piece of a file being built or hasn't reached the disk yet
+     */
+    public Message pieceOnDisk(int senderID, int sequenceNumber){
+        FileBlockBuilder bb;
+        synchronized(onDisk){
+            Map.Entry<Long, FileBlockBuilder> entry = onDisk.floorEntry(BlockFile.key(senderID, sequenceNumber));
+            if(entry == null || entry.getValue().senderID != senderID)
+                return null;
+            bb = entry.getValue();
+        }
+        return bb.piece(sequenceNumber);
+    }
+
+    private void addOnDisk(FileBlockBuilder bb){
+        synchronized(onDisk){
+            onDisk.put(BlockFile.key(bb.senderID, bb.blockOffset), bb);
+        }
     }
 
     /**
@@ -149,6 +208,18 @@ public class BlockAssembler {
         return inQuestion.isText();
     }
 
+    /**
+     *
+     */
+    public boolean blockIsManifest(int senderID, int blockIndex){
+        BlockBuilder inQuestion = getBlockBuilder(senderID, blockIndex);
+
+        if(inQuestion == null)
+            return false;
+
+        return inQuestion.isManifest();
+    }
+
     /**
      *
      */
@@ -161,6 +232,88 @@ public class BlockAssembler {
         return inQuestion.isAFile();
     }
 
+    /**
+     * Files are written to disk as their pieces arrive; text is gathered in memory.
+     */
+    private BlockBuilder newBlockBuilder(Message message){
+        if(message.type == Message.Type.FILE && message.senderID != chat.hostID){
+            try{
+                return new FileBlockBuilder(this, message);
+            }catch(IOException e){
+                System.err.println("Couldn't create a partial file, receiving in memory instead: "+e);
+            }
+        }
+        BlockBuilder bb = new BlockBuilder(this, message.type, message.senderID, message.blockIndex, message.blockOffset, message.blockSize);
+        bb.compressed = message.compressed;
+        bb.repair = message.repair;
+        return bb;
+    }
+
+    /**
+     * Get the builder of a file being written to disk.
+     *
+     * @return the builder, or null if the block isn't a file being written to disk
+     */
+    public FileBlockBuilder getFileBlockBuilder(int senderID, int blockIndex){
+        BlockBuilder bb = getBlockBuilder(senderID, blockIndex);
+        if(bb instanceof FileBlockBuilder)
+            return (FileBlockBuilder) bb;
+        return null;
+    }
+
+    /**
+     * Pick up the files an earlier run was part way through receiving.
+     *
+     * @return the blocks picked up, which are being built again
+     */
+    public List<FileBlockBuilder> resume(){
+        ArrayList<FileBlockBuilder> resumed = new ArrayList<FileBlockBuilder>();
+        Path directory = FileBlockBuilder.directory(chat);
+        if(!Files.isDirectory(directory))
+            return resumed;
+
+        try{
+            DirectoryStream<Path> states = Files.newDirectoryStream(directory, "*.state");
+            try{
+                for(Path state : states){
+                    FileBlockBuilder bb = FileBlockBuilder.restore(this, state);
+                    if(bb != null){
+                        blocks.put(new IncompleteMessageTuple(bb.senderID, bb.blockIndex), bb);
+                        addOnDisk(bb);
+                        resumed.add(bb);
+                    }
+                }
+            }finally{
+                states.close();
+            }
+        }catch(IOException e){
+            System.err.println("Couldn't look for downloads to resume");
+            e.printStackTrace();
+        }
+        return resumed;
+    }
+
+    /**
+     * Checkpoint every file being received, and wait for the checkpoints to reach the disk.
+     * Called on the way out.
+     */
+    public void checkpoint(){
+        synchronized(this){
+            for(BlockBuilder bb : blocks.values()){
+                if(bb instanceof FileBlockBuilder)
+                    ((FileBlockBuilder) bb).checkpoint();
+            }
+        }
+        try{
+            fileWriter.submit(new Runnable() {
+                public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+        }catch(Exception e){
+            System.err.println("Couldn't finish writing files: "+e);
+        }
+    }
+
     private BlockBuilder getBlockBuilder(int senderID, int blockIndex){
         IncompleteMessageTuple key = new IncompleteMessageTuple(senderID, blockIndex);
         return blocks.get(key);
@@ -207,153 +360,3 @@ class IncompleteMessageTuple{
         return (blockIndex << 10) + senderID;
     }
 }
-
-/**
- * An object used to efficiently store partially built blocks 
- * as many tiny messages (pieces)
- */
-class BlockBuilder {
-
-    /**
-     * The "parent" block assembler
-     */
-    public BlockAssembler blockAssembler;
-
-    /**
-     * An in-order mapping of sequence numbers to messages.
-     * Order is maintained so we can iterate over all the values
-     * in O(n) time while remaining sorted.
-     * </br>
-     * In the future, we may want to also use a regular hash
-     * table, since we frequently do lookups and it's unconfirmed
-     * it Java's TreeMap can do O(1) lookup (probably not). For
-     * now, O(log(n)) is sufficient (Java uses Red-Black trees)
-     */
-    public SortedMap<Integer, Message> pieces;
-
-    /**
-     * The SenderID of the user who created this block.
-     */
-    public int senderID;
-
-    /**
-     * The index of this block, relative to sender.
-     */
-    public int blockIndex;
-
-    /**
-     * The sequence number of the first message in this block
-     */
-    public int blockOffset;
-
-    /**
-     * The size of this block once full.
-     */
-    public int blockSize;
-
-    /**
-     * Sequence number of the lowest unreceived message.
-     * If we track this, we can get the sequence number of
-     * an unreceived message in ~O(1) time (assuming) message
-     * come relatively in-order.
-     */
-    public int lowestUnreceivedMessage;
-
-    /**
-     * Track if this block is a text message or a file (default to text)
-     */
-    public Message.Type blockType = Message.Type.TEXT;
-
-    public BlockBuilder(BlockAssembler parent, Message.Type blockType, int senderID, int blockIndex, int blockOffset, int blockSize){
-        this.blockAssembler = parent;
-        this.blockType = blockType;
-        this.pieces = new TreeMap<Integer, Message>();
-        this.senderID = senderID;
-        this.blockSize = blockSize;
-        this.blockOffset = blockOffset;
-        this.lowestUnreceivedMessage = blockOffset;
-    }
-
-    /**
-     * Get the lowest unreceived message if timeout is ignored.
-     * If timeout is not ignored, then we find the lowest unreceived
-     * message that we aren't still waiting to hear back from.
-     */
-    public Message getLowestUnreceivedMessage(boolean ignoreTimeout){
-        if(ignoreTimeout)
-            return new Message(null, null, senderID, blockIndex, blockOffset, blockSize, lowestUnreceivedMessage, 0);
-
-        // find the lowest sequence number that we can request (we didn't just request it) and is unreceived
-        int index = lowestUnreceivedMessage;
-        while(!this.blockAssembler.chat.requestTracker.canRequestMessage(senderID, index) || pieces.containsKey(index)){
-            index++;
-        }
-
-        // if this block comprises 5 messages, don't ask for the 6th message
-        if(index >= blockOffset + blockSize)
-            return null;
-        else
-            return new Message(null, null, senderID, blockIndex, blockOffset, blockSize, index, 0);        
-    }
-
-    /**
-     * Add a message to this block builder object.
-     * Notice that it will replace messages if a message
-     * is added twice (does not check for collisions)
-     */
-    public void addMessage(Message message){
-        pieces.put(message.sequenceNumber, message);
-
-        // find new lowest unreceived message
-        while(pieces.containsKey(lowestUnreceivedMessage)){
-            lowestUnreceivedMessage++;
-        }
-    }
-
-    /**
-     * Get this block as a binary representation 
-     * (used for files)
-     */
-    public byte[] getBinary(){
-
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        for (Map.Entry<Integer, Message> entry : pieces.entrySet()) {
-            Message m = entry.getValue();
-            if(m.data == null)
-                continue;
-
-            os.write(m.data, 0, m.data.length);
-        }
-        return os.toByteArray();
-    }
-
-    /**
-     * Get this block as a text representation
-     * (used for text messages)
-     */
-    public String getText(){
-        return new String(getBinary(), StandardCharsets.US_ASCII);
-    }
-
-    /**
-     * What fraction of this block is formed?
-     */
-    public double getProgress(){
-        return ((double) pieces.size())/(blockSize);
-    }
-
-    /**
-     * Is this blockbuilder full?
-     */
-    public boolean isFull(){
-        return pieces.size() == blockSize;
-    }
-
-    public boolean isText(){
-        return this.blockType == Message.Type.TEXT;
-    }
-
-    public boolean isAFile(){
-        return this.blockType == Message.Type.FILE;
-    }
-}
\ No newline at end of file
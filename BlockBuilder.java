@@ -0,0 +1,264 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An object used to efficiently store partially built blocks 
+ * as many tiny messages (pieces)
+ */
+class BlockBuilder {
+
+    /**
+     * The "parent" block assembler
+     */
+    public BlockAssembler blockAssembler;
+
+    /**
+     * An in-order mapping of sequence numbers to messages.
+     * Order is maintained so we can iterate over all the values
+     * in O(n) time while remaining sorted.
+     * </br>
+     * In the future, we may want to also use a regular hash
+     * table, since we frequently do lookups and it's unconfirmed
+     * it Java's TreeMap can do O(1) lookup (probably not). For
+     * now, O(log(n)) is sufficient (Java uses Red-Black trees)
+     */
+    public SortedMap<Integer, Message> pieces;
+
+    /**
+     * The SenderID of the user who created this block.
+     */
+    public int senderID;
+
+    /**
+     * The index of this block, relative to sender.
+     */
+    public int blockIndex;
+
+    /**
+     * The sequence number of the first message in this block
+     */
+    public int blockOffset;
+
+    /**
+     * The size of this block once full.
+     */
+    public int blockSize;
+
+    /**
+     * Sequence number of the lowest unreceived message.
+     * If we track this, we can get the sequence number of
+     * an unreceived message in ~O(1) time (assuming) message
+     * come relatively in-order.
+     */
+    public int lowestUnreceivedMessage;
+
+    /**
+     * Track if this block is a text message or a file (default to text)
+     */
+    public Message.Type blockType = Message.Type.TEXT;
+
+    /**
+     * Was this block compressed before it was cut into pieces? Then it's inflated once it's complete.
+     */
+    public boolean compressed = false;
+
+    /**
+     * How many of the block's pieces, at its end, are repair pieces (see ErasureCode.java).
+     * The block is full once each of its stripes has as many pieces in as it has data pieces.
+     */
+    public int repair = 0;
+
+    /**
+     * Pieces in, per stripe, and how many stripes have enough of them to be decoded. Only kept once a piece of a
+     * block with repair pieces is counted.
+     */
+    private int[] stripeCounts = null;
+    private int stripesReady = 0;
+
+    public BlockBuilder(BlockAssembler parent, Message.Type blockType, int senderID, int blockIndex, int blockOffset, int blockSize){
+        this.blockAssembler = parent;
+        this.blockType = blockType;
+        this.pieces = new TreeMap<Integer, Message>();
+        this.senderID = senderID;
+        this.blockIndex = blockIndex;
+        this.blockSize = blockSize;
+        this.blockOffset = blockOffset;
+        this.lowestUnreceivedMessage = blockOffset;
+    }
+
+    /**
+     * Get the lowest unreceived message if timeout is ignored.
+     * If timeout is not ignored, then we find the lowest unreceived
+     * message that we aren't still waiting to hear back from.
+     */
+    public Message getLowestUnreceivedMessage(boolean ignoreTimeout){
+        if(ignoreTimeout)
+            return new Message(null, null, senderID, blockIndex, blockOffset, blockSize, lowestUnreceivedMessage, 0);
+
+        // find the lowest sequence number that we can request (we didn't just request it) and is unreceived
+        int index = lowestUnreceivedMessage;
+        while(!this.blockAssembler.chat.requestTracker.canRequestMessage(senderID, index) || this.has(index)){
+            index++;
+        }
+
+        // if this block comprises 5 messages, don't ask for the 6th message
+        if(index >= blockOffset + blockSize)
+            return null;
+        else
+            return new Message(null, null, senderID, blockIndex, blockOffset, blockSize, index, 0);        
+    }
+
+    /**
+     * Add a message to this block builder object.
+     * Notice that it will replace messages if a message
+     * is added twice (does not check for collisions)
+     */
+    public void addMessage(Message message){
+        if(!pieces.containsKey(message.sequenceNumber))
+            countPiece(message.sequenceNumber - blockOffset);
+        pieces.put(message.sequenceNumber, message);
+
+        // find new lowest unreceived message
+        while(this.has(lowestUnreceivedMessage)){
+            lowestUnreceivedMessage++;
+        }
+    }
+
+    /**
+     * Has the piece with this sequence number been added?
+     */
+    public boolean has(int sequenceNumber){
+        return pieces.containsKey(sequenceNumber);
+    }
+
+    /**
+     * Get this block as a binary representation 
+     * (used for files)
+     */
+    public byte[] getBinary(){
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (Map.Entry<Integer, Message> entry : pieces.headMap(blockOffset + blockSize - repair).entrySet()) {
+            Message m = entry.getValue();
+            if(m.data == null)
+                continue;
+
+            os.write(m.data, 0, m.data.length);
+        }
+        if(!compressed)
+            return os.toByteArray();
+
+        try{
+            return BlockCodec.decompress(os.toByteArray());
+        }catch(IOException e){
+            System.err.println("Couldn't inflate a block from "+this.blockAssembler.chat.whatsHisName(senderID)+": "+e.getMessage());
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Get this block as a text representation
+     * (used for text messages)
+     */
+    public String getText(){
+        return new String(getBinary(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * What fraction of this block is formed?
+     */
+    public double getProgress(){
+        return Math.min(1.0, ((double) pieces.size())/(blockSize - repair));
+    }
+
+    /**
+     * Is this blockbuilder full?
+     */
+    public boolean isFull(){
+        return repair == 0 ? pieces.size() >= blockSize : stripesReady();
+    }
+
+    /**
+     * Count a piece that has just come in towards its stripe. Call once for each piece.
+     * @param index The piece's index within the block.
+     */
+    protected void countPiece(int index){
+        if(repair == 0 || index < 0 || index >= blockSize)
+            return;
+        int k = blockSize - repair;
+        int stripes = ErasureCode.stripes(k, repair);
+        if(stripeCounts == null)
+            stripeCounts = new int[stripes];
+        int stripe = index < k ? ErasureCode.stripeOf(k, stripes, index) : ErasureCode.stripeOf(repair, stripes, index - k);
+        int needed = ErasureCode.stripeStart(k, stripes, stripe + 1) - ErasureCode.stripeStart(k, stripes, stripe);
+        if(++stripeCounts[stripe] == needed)
+            stripesReady++;
+    }
+
+    /**
+     * Has every stripe as many pieces in as it has data pieces, so the whole block can be decoded?
+     */
+    protected boolean stripesReady(){
+        return stripesReady == ErasureCode.stripes(blockSize - repair, repair);
+    }
+
+    /**
+     * Once the block is full, rebuild the pieces that didn't arrive: missing data pieces are decoded from the
+     * repair pieces, and missing repair pieces made again from the data, so the whole block is held.
+     *
+     * @return the pieces rebuilt, to be kept like received ones; empty if none were missing or they couldn't be rebuilt
+     */
+    public List<Message> recover(){
+        ArrayList<Message> rebuilt = new ArrayList<Message>();
+        if(repair == 0 || pieces.size() >= blockSize || !isFull())
+            return rebuilt;
+
+        int k = blockSize - repair;
+        byte[][] data = new byte[k][];
+        byte[][] repairs = new byte[repair][];
+        Message any = null;
+        for(Message m : pieces.values()){
+            int index = m.sequenceNumber - blockOffset;
+            if(index < k)
+                data[index] = m.data;
+            else
+                repairs[index - k] = m.data;
+            any = m;
+        }
+        if(!ErasureCode.decode(data, repairs)){
+            System.err.println("Couldn't rebuild a message from "+this.blockAssembler.chat.whatsHisName(senderID));
+            return rebuilt;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for(byte[] piece : data)
+            os.write(piece, 0, piece.length);
+        byte[][] encoded = ErasureCode.encode(os.toByteArray(), repair);
+
+        for(int index = 0; index < blockSize; index++){
+            int sequenceNumber = blockOffset + index;
+            if(this.has(sequenceNumber))
+                continue;
+            Message m = new Message(blockType, index < k ? data[index] : encoded[index - k], senderID, blockIndex,
+                blockOffset, blockSize, sequenceNumber, any.date);
+            m.compressed = compressed;
+            m.repair = repair;
+            pieces.put(sequenceNumber, m);
+            rebuilt.add(m);
+        }
+        return rebuilt;
+    }
+
+    public boolean isText(){
+        return this.blockType == Message.Type.TEXT;
+    }
+
+    public boolean isAFile(){
+        return this.blockType == Message.Type.FILE;
+    }
+
+    public boolean isManifest(){
+        return this.blockType == Message.Type.MANIFEST;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Optional Deflate compression of blocks before they are cut into pieces.
+ * <br>
+ * Every piece costs the same HAVEs, REQUESTs and DATA whatever it holds, so a block that compresses 4x costs a quarter
+ * of the traffic. A compressed block is flagged in its metadata (Message.compressed), carried by every piece, and
+ * its receiver inflates it once the block is complete. Its pieces, checksums and Merkle tree are all of the
+ * compressed bytes.
+ * <br>
+ * Files are compressed chunk by chunk (see ChunkStore.java), each chunk flagged in the file's manifest instead.
+ * <br>
+ * Data which doesn't shrink by at least MIN_SAVING isn't sent compressed. A SAMPLE from the start is tried first,
+ * so data that is already compressed (archives, images, video) is passed over without compressing the whole.
+ * <br>
+ * Run `java BlockCodec [file ...]` to see what each compression level costs in CPU and saves in pieces.
+ */
+public class BlockCodec {
+
+    /**
+     * Deflate level. Sending is bounded by pieces per second, not CPU, so the fastest level gets most of the saving.
+     */
+    static int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * Smallest fraction of the size compression must save to be used.
+     */
+    static double MIN_SAVING = 0.1;
+
+    /**
+     * Bytes tried from the start of a file before compressing all of it.
+     */
+    static int SAMPLE = 64 * 1024;
+
+    /**
+     * Largest block inflated in memory, in bytes; anything bigger is treated as corrupt.
+     */
+    static int MAX_INFLATED = 64 * 1024 * 1024;
+
+    /**
+     * Compress a block, if that's worth it.
+     * @return The compressed block, or null to send it as it is.
+     */
+    public static byte[] compress(byte[] block) {
+        if (!looksCompressible(block, Math.min(block.length, SAMPLE))) {
+            return null;
+        }
+        byte[] compressed = deflate(block, block.length, LEVEL);
+        return isWorthIt(compressed.length, block.length) ? compressed : null;
+    }
+
+    /**
+     * Inflate a block which was sent compressed.
+     */
+    public static byte[] decompress(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("compressed block is cut short");
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_INFLATED) {
+                    throw new IOException("compressed block inflates to more than "+MAX_INFLATED+" bytes");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IOException("compressed block is corrupt", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Does the start of some data shrink enough to be worth compressing? Already compressed data doesn't.
+     */
+    private static boolean looksCompressible(byte[] data, int length) {
+        if (length < 2 * Message.MAX_PIECE) {
+            return false; // can't save a piece
+        }
+        return isWorthIt(deflate(data, length, Deflater.BEST_SPEED).length, length);
+    }
+
+    private static boolean isWorthIt(long compressed, long original) {
+        return compressed <= original * (1 - MIN_SAVING);
+    }
+
+    private static byte[] deflate(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Benchmark: for each file given (or some made-up chat text, CSV and random bytes), how much each Deflate level
+     * shrinks it, how fast it compresses and inflates, and how much CPU each piece saved costs.
+     */
+    public static void main(String[] args) throws IOException {
+        LinkedHashMap<String, byte[]> inputs = new LinkedHashMap<String, byte[]>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                inputs.put(arg, Files.readAllBytes(Paths.get(arg)));
+            }
+        } else {
+            Random random = new Random(42);
+            String[] words = {"hello", "file", "sent", "meeting", "tomorrow", "ok", "the", "build", "is", "green", "thanks", "lunch"};
+            StringBuilder chat = new StringBuilder();
+            StringBuilder csv = new StringBuilder("id,user,bytes,latency_ms\n");
+            for (int i = 0; chat.length() < 4 * 1024 * 1024; i++) {
+                chat.append("(12:").append(10 + i % 50).append(":").append(10 + i % 49).append(") user").append(random.nextInt(20)).append(": ");
+                for (int w = 0; w < 3 + random.nextInt(10); w++) {
+                    chat.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                chat.append('\n');
+                csv.append(i).append(",user").append(random.nextInt(20)).append(',').append(random.nextInt(100000)).append(',')
+                    .append(random.nextInt(500)).append('\n');
+            }
+            byte[] noise = new byte[4 * 1024 * 1024];
+            random.nextBytes(noise);
+            inputs.put("chat text", chat.toString().getBytes("US-ASCII"));
+            inputs.put("csv", csv.toString().getBytes("US-ASCII"));
+            inputs.put("random", noise);
+        }
+
+        System.out.println(String.format("%-24s %5s %7s %11s %11s %13s", "input", "level", "ratio", "deflate MB/s", "inflate MB/s", "CPU us/1000 pieces saved"));
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            byte[] data = input.getValue();
+            long skipStart = System.nanoTime();
+            boolean skipped = compress(data) == null;
+            long skipNanos = System.nanoTime() - skipStart;
+            for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION}) {
+                byte[] compressed = deflate(data, data.length, level); // warm up
+                int rounds = 3;
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    compressed = deflate(data, data.length, level);
+                }
+                long deflateNanos = (System.nanoTime() - start) / rounds;
+                decompress(compressed);
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    decompress(compressed);
+                }
+                long inflateNanos = (System.nanoTime() - start) / rounds;
+
+                long piecesSaved = (data.length - compressed.length) / Message.MAX_PIECE;
+                System.out.println(String.format("%-24s %5d %6.2fx %11.1f %11.1f %13s", input.getKey(), level,
+                    (double) data.length / compressed.length, mbPerSecond(data.length, deflateNanos), mbPerSecond(data.length, inflateNanos),
+                    piecesSaved > 0 ? String.format("%.2f", (deflateNanos + inflateNanos) / 1000.0 / piecesSaved * 1000) : "-"));
+            }
+            System.out.println(String.format("%-24s sent %s; deciding took %.2f ms", "", skipped ? "as it is" : "compressed", skipNanos / 1e6));
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / 1048576.0 / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,59 @@
+import java.nio.file.*;
+
+/**
+ * A complete FILE block that is on disk, as a chunk in the ChunkStore.
+ * Registered in Chat.blockFiles, so peers can fetch the block in bulk (see BulkTransfer.java).
+ * Piece i of the block is bytes [i * Message.MAX_PIECE, (i + 1) * Message.MAX_PIECE) of the file.
+ */
+public class BlockFile {
+
+    public Path path;
+
+    public int senderID;
+
+    public int blockIndex;
+
+    /**
+     * Sequence number of the block's first piece.
+     */
+    public int blockOffset;
+
+    /**
+     * Number of pieces in the block, counting any repair pieces after the file's own (see ErasureCode.java).
+     */
+    public int blockSize;
+
+    /**
+     * Date shared by every piece of the block.
+     */
+    public long date;
+
+    /**
+     * Size of the file, in bytes.
+     */
+    public long length;
+
+    public BlockFile(Path path, int senderID, int blockIndex, int blockOffset, int blockSize, long date, long length) {
+        this.path = path;
+        this.senderID = senderID;
+        this.blockIndex = blockIndex;
+        this.blockOffset = blockOffset;
+        this.blockSize = blockSize;
+        this.date = date;
+        this.length = length;
+    }
+
+    /**
+     * @return Number of the block's pieces which are the file's; the rest are repair pieces.
+     */
+    public int dataPieces() {
+        return (int) ((this.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE);
+    }
+
+    /**
+     * Key of a block in Chat.blockFiles.
+     */
+    public static Long key(int senderID, int blockIndex) {
+        return ((long) senderID << 32) | (blockIndex & 0xFFFFFFFFL);
+    }
+}
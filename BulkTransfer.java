@@ -0,0 +1,367 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Bulk transfer of large FILE blocks over the Seeder's TCP port, instead of one UDP round trip per piece.
+ * <br>
+ * When a peer advertises a piece of a FILE block of at least THRESHOLD pieces, I ask that peer for the run of the
+ * block's pieces I'm missing (Seeder.BULK). If it has the whole block on disk (see BlockFile.java), it answers with the
+ * block's metadata and then the bytes of the run, sent from the file with FileChannel.transferTo, which leaves the
+ * copying to the kernel. For a file with a Merkle tree the metadata comes with the block's root and the run's proof
+ * (see MerkleTree.rangeProof), and the whole run is checked against the root before any of it is kept, as each piece
+ * from a DATA packet is. The bytes are cut back into pieces carrying exactly the metadata the UDP path would have
+ * given them, and each goes through Chat.have like a piece from a DATA packet, so piece accounting, HAVEs and the
+ * history are the same either way.
+ * <br>
+ * Like UDP unchoking, only UPLOADS bulk transfers (Client.SEED_UPLOADS for a seed) are served at once, and only to peers I know; a chunk of a file
+ * I'm super-seeding is only served to the peer it was revealed to (see SuperSeeder.java).
+ * A peer that can't serve a block (no copy on disk yet, or busy) is asked for it again after RETRY, then twice as long each
+ * time, up to RETRIES times, since a peer relaying a block advertises its pieces before it has all of them; the UDP
+ * path carries on regardless, and a fresh HAVE from the peer starts the retries over.
+ */
+public class BulkTransfer {
+
+    /**
+     * Smallest FILE block, in pieces, fetched in bulk.
+     */
+    static int THRESHOLD = 64;
+
+    /**
+     * Bulk transfers served at once.
+     */
+    static int UPLOADS = 3;
+
+    /**
+     * Bulk transfers fetched at once.
+     */
+    static int DOWNLOADS = 2;
+
+    /**
+     * Give up on a peer which sends nothing for this long, in milliseconds.
+     */
+    static int TIMEOUT = 5000;
+
+    /**
+     * Wait this long before asking a peer which couldn't serve a block for it again, in milliseconds.
+     * Each further retry waits twice as long as the last.
+     */
+    static long RETRY = 1000;
+
+    /**
+     * Most times to ask a peer for a block again without being prompted by a HAVE.
+     */
+    static int RETRIES = 6;
+
+    /**
+     * Bulk response statuses.
+     */
+    public static final int OK = 0;
+    public static final int NO_COPY = -1;
+    public static final int BUSY = -2;
+
+    public Chat chat;
+
+    private ExecutorService downloads = Executors.newFixedThreadPool(DOWNLOADS);
+
+    private ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+
+    private Semaphore uploads;
+
+    /**
+     * Blocks being fetched right now.
+     */
+    private Set<Long> inProgress = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Peers already asked for each block, with when they may be asked again (Long.MAX_VALUE for never).
+     */
+    private ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Long>> asked = new ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Long>>();
+
+    /**
+     * @param uploads Most bulk transfers served at once.
+     */
+    public BulkTransfer(Chat chat, int uploads) {
+        this.chat = chat;
+        this.uploads = new Semaphore(uploads);
+    }
+
+    /**
+     * A peer advertised a piece I don't have. If it's part of a large FILE block, try fetching the block from that peer in bulk.
+     */
+    public void peerHas(final Peer peer, final Message message) {
+        if (message.type != Message.Type.FILE || message.blockSize < THRESHOLD || message.senderID == this.chat.hostID) {
+            return;
+        }
+        this.ask(peer, message, 0);
+    }
+
+    /**
+     * Fetch a block from a peer in bulk, unless it's being fetched already or the peer was asked too recently.
+     * If the peer can't serve it, ask again later, while the peer is around and I lack some of it, backing off up to
+     * RETRIES times: the HAVEs that would otherwise prompt me may all have come before the peer had the whole block.
+     * @param attempt How many times the peer was asked again already.
+     * @return false if the block is being fetched from someone else at the moment.
+     */
+    private boolean ask(final Peer peer, final Message message, final int attempt) {
+        final Long block = BlockFile.key(message.senderID, message.blockIndex);
+        ConcurrentHashMap<Integer, Long> askedForBlock = this.asked.get(block);
+        if (askedForBlock == null) {
+            this.asked.putIfAbsent(block, new ConcurrentHashMap<Integer, Long>());
+            askedForBlock = this.asked.get(block);
+        }
+        Long askAgain = askedForBlock.get(peer.user.userID);
+        if (askAgain != null && System.currentTimeMillis() < askAgain) {
+            return true;
+        }
+        if (!this.inProgress.add(block)) {
+            return false;
+        }
+        askedForBlock.put(peer.user.userID, Long.MAX_VALUE);
+        final ConcurrentHashMap<Integer, Long> askedAbout = askedForBlock;
+
+        this.downloads.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!fetch(peer, message)) {
+                        long delay = RETRY << attempt;
+                        askedAbout.put(peer.user.userID, System.currentTimeMillis() + delay);
+                        retryLater(peer, message, attempt, delay);
+                    }
+                } catch (IOException ex) {
+                    System.err.println("Bulk transfer from "+peer.user.username+" failed: "+ex);
+                } finally {
+                    inProgress.remove(block);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Ask a peer for a block again after a delay, unless it has been asked RETRIES times already.
+     */
+    private void retryLater(final Peer peer, final Message message, final int attempt, long delay) {
+        if (attempt >= RETRIES) {
+            return;
+        }
+        this.retries.schedule(new Runnable() {
+            public void run() {
+                if (chat.checkAddressBook(peer.user.userID) != null && !ask(peer, message, attempt + 1)) {
+                    // fetched from someone else at the moment; see whether that got all of it
+                    retryLater(peer, message, attempt + 1, RETRY << (attempt + 1));
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forget which peers were asked for a block, so it can be fetched again.
+     */
+    public void forgetBlock(int senderID, int blockIndex) {
+        this.asked.remove(BlockFile.key(senderID, blockIndex));
+    }
+
+    /**
+     * Fetch the pieces of a block I'm missing from one peer.
+     * @param advertised A piece of the block, as advertised.
+     * @return false if the peer couldn't serve the block.
+     */
+    private boolean fetch(Peer peer, Message advertised) throws IOException {
+        // just the file's pieces; repair pieces are only worth having when some of those are lost
+        int dataPieces = advertised.blockSize - advertised.repair;
+        int from = -1;
+        int to = -1;
+        for (int i = 0; i < dataPieces; i++) {
+            if (!this.chat.hasMessage(advertised.senderID, advertised.blockOffset + i)) {
+                if (from < 0) {
+                    from = i;
+                }
+                to = i + 1;
+            }
+        }
+        if (from < 0) {
+            return true;
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(peer.user.address, peer.user.dataPort), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            IOHelper.writeInt(Seeder.BULK, byteStream);
+            IOHelper.writeInt(this.chat.hostID, byteStream);
+            IOHelper.writeInt(advertised.senderID, byteStream);
+            IOHelper.writeInt(advertised.blockIndex, byteStream);
+            IOHelper.writeInt(from, byteStream);
+            IOHelper.writeInt(to, byteStream);
+            socket.getOutputStream().write(byteStream.toByteArray());
+
+            BufferedInputStream inFromPeer = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            if (IOHelper.getInt(inFromPeer) != OK) {
+                return false; // the UDP path will get it, or I'll ask again later
+            }
+            int blockOffset = IOHelper.getInt(inFromPeer);
+            int blockSize = IOHelper.getInt(inFromPeer);
+            long date = IOHelper.getLong(inFromPeer);
+            long length = IOHelper.getLong(inFromPeer);
+            if (blockOffset != advertised.blockOffset || blockSize != advertised.blockSize
+                    || (length + Message.MAX_PIECE - 1) / Message.MAX_PIECE != dataPieces) {
+                throw new IOException("block doesn't match what was advertised");
+            }
+            byte[] carried = this.readHashes(inFromPeer, MerkleTree.HASH_SIZE);
+            byte[] proof = this.readHashes(inFromPeer, 2 * 32 * MerkleTree.HASH_SIZE); // two hashes a level at most
+
+            DataInputStream pieces = new DataInputStream(inFromPeer);
+
+            long start = System.currentTimeMillis();
+            byte[][] data = new byte[to - from][];
+            for (int i = from; i < to; i++) {
+                data[i - from] = new byte[(int) Math.min(Message.MAX_PIECE, length - (long) i * Message.MAX_PIECE)];
+                pieces.readFully(data[i - from]);
+            }
+
+            // checked like verifyPiece: the root I know, else the one the run came with if the run matches it
+            Long key = BlockFile.key(advertised.senderID, advertised.blockIndex);
+            byte[] root = this.chat.fileRoots.get(key);
+            if (carried.length == 0) {
+                if (root != null) {
+                    throw new IOException("no proof for pieces of a block with a Merkle root");
+                }
+            } else {
+                if (peer.user.userID == advertised.senderID) {
+                    this.chat.fileRoots.put(key, carried);
+                    root = carried;
+                } else if (root == null) {
+                    root = carried;
+                }
+                if (!MerkleTree.verifyRange(root, from, to, dataPieces, data, proof)) {
+                    throw new IOException("pieces don't match the block's Merkle root");
+                }
+                this.chat.fileRoots.putIfAbsent(key, root);
+            }
+
+            for (int i = from; i < to; i++) {
+                Message piece = new Message(Message.Type.FILE, data[i - from], advertised.senderID, advertised.blockIndex,
+                    blockOffset, blockSize, blockOffset + i, date);
+                piece.repair = advertised.repair;
+                this.chat.have(piece, peer.user.userID);
+            }
+            if (this.chat.client.receiver.DEBUG) System.out.println("Fetched "+(to - from)+" pieces in bulk in "+(System.currentTimeMillis() - start)+" ms");
+            return true;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Read a length (4 bytes) and that many bytes of hashes.
+     * @param most The longest allowed.
+     */
+    private byte[] readHashes(BufferedInputStream input, int most) throws IOException {
+        int length = IOHelper.getInt(input);
+        if (length < 0 || length > most || length % MerkleTree.HASH_SIZE != 0) {
+            throw new IOException("bad hash length "+length);
+        }
+        byte[] hashes = new byte[length];
+        new DataInputStream(input).readFully(hashes);
+        return hashes;
+    }
+
+    /**
+     * Serve a bulk request on the Seeder's port: the request after Seeder.BULK is
+     * my peer's ID, sender ID, block index, first piece index and last piece index + 1 within the block (4 bytes each),
+     * which are among the file's pieces, not its repair pieces.
+     * Response: status (4 bytes); if OK, block offset (4 bytes), block size (4 bytes), date (8 bytes), file length (8 bytes),
+     * root length (4 bytes, 0 for a file without a Merkle tree), the root, proof length (4 bytes), the run's proof,
+     * then the bytes of the requested pieces.
+     */
+    public void serve(Socket socket, BufferedInputStream inFromClient, DataOutputStream outToClient) throws IOException {
+        int requesterID = IOHelper.getInt(inFromClient);
+        int senderID = IOHelper.getInt(inFromClient);
+        int blockIndex = IOHelper.getInt(inFromClient);
+        int from = IOHelper.getInt(inFromClient);
+        int to = IOHelper.getInt(inFromClient);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        BlockFile blockFile = this.chat.blockFiles.get(BlockFile.key(senderID, blockIndex));
+        if (blockFile == null || from < 0 || to > blockFile.dataPieces() || from >= to || this.chat.checkAddressBook(requesterID) == null) {
+            IOHelper.writeInt(NO_COPY, byteStream);
+            outToClient.write(byteStream.toByteArray());
+            return;
+        }
+        SuperSeeder superSeeder = this.chat.superSeederFor(senderID, blockFile.blockOffset);
+        if (superSeeder != null && !superSeeder.mayServe(requesterID, blockFile.blockOffset)) {
+            IOHelper.writeInt(NO_COPY, byteStream);
+            outToClient.write(byteStream.toByteArray());
+            return;
+        }
+        if (!this.uploads.tryAcquire()) {
+            IOHelper.writeInt(BUSY, byteStream);
+            outToClient.write(byteStream.toByteArray());
+            return;
+        }
+
+        try {
+            byte[] root = this.chat.fileRoots.get(BlockFile.key(senderID, blockIndex));
+            byte[] proof = new byte[0];
+            if (root != null) {
+                MerkleTree tree = this.chat.treeFor(senderID, blockIndex, root);
+                if (tree == null) {
+                    // can't prove the pieces; the UDP path won't serve them either
+                    IOHelper.writeInt(NO_COPY, byteStream);
+                    outToClient.write(byteStream.toByteArray());
+                    return;
+                }
+                proof = tree.rangeProof(from, to);
+            } else {
+                root = new byte[0];
+            }
+
+            FileChannel file = FileChannel.open(blockFile.path, StandardOpenOption.READ);
+            try {
+                if (file.size() != blockFile.length) {
+                    // changed since it was sent; don't serve something else under the block's name
+                    this.chat.dropBlockFile(blockFile);
+                    IOHelper.writeInt(NO_COPY, byteStream);
+                    outToClient.write(byteStream.toByteArray());
+                    return;
+                }
+
+                IOHelper.writeInt(OK, byteStream);
+                IOHelper.writeInt(blockFile.blockOffset, byteStream);
+                IOHelper.writeInt(blockFile.blockSize, byteStream);
+                IOHelper.writeLong(blockFile.date, byteStream);
+                IOHelper.writeLong(blockFile.length, byteStream);
+                IOHelper.writeInt(root.length, byteStream);
+                byteStream.write(root);
+                IOHelper.writeInt(proof.length, byteStream);
+                byteStream.write(proof);
+                outToClient.write(byteStream.toByteArray());
+                outToClient.flush();
+
+                long position = (long) from * Message.MAX_PIECE;
+                long end = Math.min((long) to * Message.MAX_PIECE, blockFile.length);
+                WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(outToClient);
+                while (position < end) {
+                    long sent = file.transferTo(position, end - position, target);
+                    if (sent <= 0) {
+                        break; // the file was cut short under us; the peer will notice
+                    }
+                    position += sent;
+                }
+                if (superSeeder != null) {
+                    superSeeder.served(position - (long) from * Message.MAX_PIECE);
+                }
+            } finally {
+                file.close();
+            }
+        } finally {
+            this.uploads.release();
+        }
+    }
+}
@@ -10,13 +10,15 @@ import java.nio.*;
 import java.nio.charset.*;
 import java.math.*;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+import java.nio.file.*;
 
 public class Chat {
 
     /**
-     * Maximum number of unchoked peers
+     * Maximum number of unchoked peers; more for a seed (see Client.SEED_UNCHOKE).
      */
-    public final int MAX_UNCHOKE = 3;
+    public int maxUnchoke = 3;
 
     /**
      * Identifier of the current client.
@@ -60,11 +62,86 @@ public class Chat {
     public RequestTracker requestTracker;
 
     /**
-     * A hashset that stores peers which didn't respond to the keepalive
+     * Scheduled failure detector which decides when peers have left.
      */
-    public HashMap<Peer, Integer> notAlivePeers = new HashMap<Peer, Integer>();
+    public LivenessTracker liveness;
 
-    public long keepAliveTime = 0;
+    /**
+     * Gossip membership, which takes over from the LivenessTracker in large chats.
+     */
+    public Membership membership;
+
+    /**
+     * Tells peers about other peers, so clients that joined through one member find the rest.
+     */
+    public PeerExchange peerExchange;
+
+    /**
+     * Every piece sent or received, on disk; null if the history couldn't be opened.
+     */
+    public MessageStore history;
+
+    /**
+     * Complete FILE blocks I have on disk, by BlockFile.key, which peers can fetch in bulk.
+     */
+    public ConcurrentHashMap<Long, BlockFile> blockFiles = new ConcurrentHashMap<Long, BlockFile>();
+
+    /**
+     * FILE blocks served from files rather than from messages: those I'm sending, and chunks I found in the ChunkStore.
+     * By BlockFile.key of their sender and the sequence number of their first piece.
+     */
+    private TreeMap<Long, FileBlockSource> fileSources = new TreeMap<Long, FileBlockSource>();
+
+    /**
+     * Files whose manifests have arrived but not all of whose chunks are in the ChunkStore yet.
+     */
+    private ArrayList<FileManifest> pendingFiles = new ArrayList<FileManifest>();
+
+    /**
+     * Files sent or received in this chat, by BlockFile.key of their manifests, which later files can be sent as
+     * deltas against (see Delta.java). Kept on disk beside the history.
+     */
+    public ConcurrentHashMap<Long, FileManifest> files = new ConcurrentHashMap<Long, FileManifest>();
+
+    /**
+     * FILE blocks, by BlockFile.key, already looked for in the ChunkStore since their root became known.
+     */
+    private Set<Long> chunksLookedUp = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Merkle roots of FILE blocks, by BlockFile.key, which their pieces are checked against (see MerkleTree.java).
+     */
+    public ConcurrentHashMap<Long, byte[]> fileRoots = new ConcurrentHashMap<Long, byte[]>();
+
+    /**
+     * Most Merkle trees kept on the heap; others are rebuilt from their files when needed.
+     */
+    static int MAX_TREES = 256;
+
+    /**
+     * Merkle trees of FILE blocks I have on disk, by BlockFile.key, for proving pieces whose proofs I don't have.
+     * Least recently used first, and at most MAX_TREES of them.
+     */
+    private Map<Long, MerkleTree> fileTrees = Collections.synchronizedMap(new LinkedHashMap<Long, MerkleTree>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Long, MerkleTree> eldest) {
+            return this.size() > MAX_TREES;
+        }
+    });
+
+    /**
+     * Fetches and serves large FILE blocks over TCP.
+     */
+    public BulkTransfer bulk;
+
+    /**
+     * Files I'm super-seeding (see SuperSeeder.java).
+     */
+    public List<SuperSeeder> superSeeders = new CopyOnWriteArrayList<SuperSeeder>();
+
+    /**
+     * IDs of the peers a Reconciliation is running with, so there's only ever one at a time with each.
+     */
+    public Set<Integer> reconciling = ConcurrentHashMap.newKeySet();
 
     /**
      * Creates a group chat from the given Group.
@@ -76,6 +153,12 @@ public class Chat {
         this.hostID = hostID;
         this.peers = new ArrayList<Peer>();
 
+        // a seed serves many peers at once, and keeps only the newest pieces (see below)
+        if (client.seed) {
+            this.maxUnchoke = Client.SEED_UNCHOKE;
+        }
+        this.bulk = new BulkTransfer(this, client.seed ? Client.SEED_UPLOADS : BulkTransfer.UPLOADS);
+
         Iterator<User> users = group.users.iterator();
 
         while (users.hasNext()) {
@@ -83,21 +166,54 @@ public class Chat {
             this.peers.add(new Peer(user));
         }
 
+        try {
+            history = new MessageStore(this.name, client.user.username, client.seed ? Client.SEED_HISTORY : 0);
+
+            // write history in batches, so receiving never waits on the disk
+            Thread historyThread = new Thread(this.history);
+            historyThread.start();
+        } catch (IOException ex) {
+            System.err.println("Chat history won't be kept: "+ex);
+        }
+
+        // older pieces are read back from the history rather than kept on the heap
+        messages = new MessageCache(this.history);
+        if (this.history != null) {
+            this.history.cache = messages;
+        }
+
+        if (this.history != null) {
+            this.resumeFiles();
+        }
+
         requestTracker = new RequestTracker(this);
 
         // periodically be interested
         Thread requestTracker = new Thread(this.requestTracker);
         requestTracker.start();
 
-        this.keepAliveTime = System.currentTimeMillis();
+        liveness = new LivenessTracker(this);
+
+        // check on peers whether or not packets are arriving
+        Thread livenessThread = new Thread(this.liveness);
+        livenessThread.start();
+
+        membership = new Membership(this);
+
+        Thread membershipThread = new Thread(this.membership);
+        membershipThread.start();
+
+        peerExchange = new PeerExchange(this);
+
+        Thread peerExchangeThread = new Thread(this.peerExchange);
+        peerExchangeThread.start();
     }
 
     /**
      * Stores all messages, in order to print them out and share them with others.
-     * Messages stored in hash table by sender ID, then in an ArrayList of messages indexed by sequence number.
-     * Note that there can be null messages in the ArrayList if messages don't arrive in order.
+     * Only recently used messages are on the heap; the rest are read back from the history.
      */
-    private HashMap<Integer, ArrayList<Message>> messages = new HashMap<Integer, ArrayList<Message>>();
+    private MessageCache messages;
 
     /**
      * A class used for assembling blocks as they come in. The class itself can either
@@ -141,6 +257,12 @@ public class Chat {
             return;
         }
 
+        // a piece of a file I'm super-seeding, passed on by someone
+        SuperSeeder superSeeder = this.superSeederFor(message.senderID, message.sequenceNumber);
+        if (superSeeder != null) {
+            superSeeder.peerHas(peerID, message.sequenceNumber);
+        }
+
         // found peer.
         if (!peer.has(message)) {
             // the peer already knew about this one. don't want to keep receiving these, so notify
@@ -149,10 +271,21 @@ public class Chat {
             return;
         }
 
+        // a chunk already in the ChunkStore needn't be fetched; look once, as soon as its root is known
+        byte[] root = this.rootOf(message);
+        if (root != null && this.chunksLookedUp.add(BlockFile.key(message.senderID, message.blockIndex))) {
+            this.haveChunkLocally(message, root);
+        }
+
         // do I want this message? should I ask for it?
-        Message myVersion = this.getMessage(message.senderID, message.sequenceNumber);
+        boolean haveIt = !this.wantsMessage(message.senderID, message.sequenceNumber);
+
+        if (!haveIt) {
+            // large files come faster in bulk, if the peer has the whole file
+            this.bulk.peerHas(peer, message);
+        }
 
-        if (myVersion == null && requestTracker.canRequestMessage(message.senderID, message.sequenceNumber)) {
+        if (!haveIt && requestTracker.canRequestMessage(message.senderID, message.sequenceNumber)) {
             // ask for it
             ControlPacket interest = new ControlPacket(ControlPacket.Type.INTERESTED, this.hostID, message);
             peer.sendControlData(interest.pack());
@@ -181,15 +314,13 @@ public class Chat {
         }
 
         // Do I have this message?
-        Message myVersion = this.getMessage(message.senderID, message.sequenceNumber);
-
-        if (myVersion == null) {
+        if (!this.hasMessage(message.senderID, message.sequenceNumber)) {
             return; // someone asked for something I don't have
         }
 
         boolean shouldUnchoke = false;
         synchronized (this.unchokedPeers) {
-            if (this.unchokedPeers.size() < MAX_UNCHOKE) {
+            if (this.unchokedPeers.size() < this.maxUnchoke) {
                 synchronized (peer) {
                     peer.chokedByMe = false;
                 }
@@ -206,20 +337,369 @@ public class Chat {
     }
 
     /**
-     * Retrieves a message.
+     * Retrieves a message, from the heap, from the history, or from the file it's part of.
      * @return Message with given sender ID and sequence number or null if doesn't exist.
-     * If currently being downloaded, will return non-null message with null data.
      */
     public Message getMessage(int senderID, int sequenceNumber) {
-        Message message = null;
-        synchronized (this.messages) {
-            ArrayList<Message> messagesFromSender = this.messages.get(new Integer(senderID));
-            if (messagesFromSender == null || sequenceNumber >= messagesFromSender.size()) {
+        FileBlockSource source = this.fileSourceFor(senderID, sequenceNumber);
+        if (source != null) {
+            return source.piece(sequenceNumber);
+        }
+        Message message = this.messages.get(senderID, sequenceNumber);
+        if (message == null && this.messages.contains(senderID, sequenceNumber)) {
+            message = this.blockAssembler.pieceOnDisk(senderID, sequenceNumber); // FILE pieces aren't in the history
+        }
+        return message;
+    }
+
+    /**
+     * @return true if I hold this message, without reading it back from the history.
+     */
+    public boolean hasMessage(int senderID, int sequenceNumber) {
+        return this.fileSourceFor(senderID, sequenceNumber) != null || this.messages.contains(senderID, sequenceNumber);
+    }
+
+    /**
+     * @return true if I don't hold this message and haven't dropped it from a bounded history or the ChunkStore,
+     * so it's worth fetching.
+     */
+    public boolean wantsMessage(int senderID, int sequenceNumber) {
+        return !this.hasMessage(senderID, sequenceNumber) && !this.messages.wasDropped(senderID, sequenceNumber);
+    }
+
+    /**
+     * @return The SuperSeeder of the file this piece is part of, or null if I'm not super-seeding it.
+     */
+    public SuperSeeder superSeederFor(int senderID, int sequenceNumber) {
+        if (senderID != this.hostID) {
+            return null;
+        }
+        for (SuperSeeder superSeeder : this.superSeeders) {
+            if (superSeeder.contains(sequenceNumber)) {
+                return superSeeder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The file which holds this piece, or null if it isn't a piece of a file served from disk.
+     */
+    private FileBlockSource fileSourceFor(int senderID, int sequenceNumber) {
+        synchronized (this.fileSources) {
+            Map.Entry<Long, FileBlockSource> entry = this.fileSources.floorEntry(BlockFile.key(senderID, sequenceNumber));
+            if (entry == null || entry.getValue().block.senderID != senderID || !entry.getValue().contains(sequenceNumber)) {
                 return null;
             }
-            message = messagesFromSender.get(sequenceNumber);
+            return entry.getValue();
         }
-        return message;
+    }
+
+    /**
+     * Serve a FILE block from a file from now on, rather than from messages.
+     */
+    public void addFileSource(FileBlockSource source) {
+        synchronized (this.fileSources) {
+            this.fileSources.put(BlockFile.key(source.block.senderID, source.block.blockOffset), source);
+        }
+        // registered before any piece is advertised, so the first bulk request can be served
+        this.blockFiles.put(BlockFile.key(source.block.senderID, source.block.blockIndex), source.block);
+    }
+
+    /**
+     * A finished FILE block didn't match its Merkle root and was thrown away: stop holding its pieces, so they're
+     * asked for again (in bulk too), as a single bad piece would be.
+     * @param repair How many of the block's pieces are repair pieces.
+     */
+    public void discardBlock(int senderID, int blockIndex, int blockOffset, int blockSize, int repair) {
+        for (int i = 0; i < blockSize; i++) {
+            this.messages.remove(senderID, blockOffset + i);
+        }
+        this.bulk.forgetBlock(senderID, blockIndex);
+
+        // nobody will advertise the block again, so ask whoever had it for it in bulk now
+        Message first = new Message(Message.Type.FILE, null, senderID, blockIndex, blockOffset, blockSize, blockOffset, 0);
+        first.repair = repair;
+        synchronized (this.peers) {
+            for (Peer peer : this.peers) {
+                if (!peer.interestedIn(first)) {
+                    this.bulk.peerHas(peer, first);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop serving a FILE block from its file, which is gone or changed, and drop its tree.
+     */
+    public void dropBlockFile(BlockFile block) {
+        Long key = BlockFile.key(block.senderID, block.blockIndex);
+        this.blockFiles.remove(key, block);
+        this.fileTrees.remove(key);
+        synchronized (this.fileSources) {
+            FileBlockSource source = this.fileSources.get(BlockFile.key(block.senderID, block.blockOffset));
+            if (source != null && source.block == block) {
+                this.fileSources.remove(BlockFile.key(block.senderID, block.blockOffset));
+            }
+        }
+    }
+
+    /**
+     * Pick up the files I was receiving when I last left. The pieces I had are in their partial files, so I hold them
+     * again (and show them in my piece summary); the rest are requested as for any incomplete block.
+     */
+    private void resumeFiles() {
+        this.loadFiles();
+
+        for (FileBlockBuilder builder : this.blockAssembler.resume()) {
+            this.messages.hold(builder.senderID, builder.received(), builder.blockOffset);
+            System.out.println("Resuming a file from "+this.whatsHisName(builder.senderID)+", "
+                +(int) (builder.getProgress() * 100)+"% done");
+
+            if (builder.isFull()) {
+                // every piece was in before I left, but the chunk wasn't moved into the store
+                this.blockAssembler.removeBlock(builder.senderID, builder.blockIndex);
+                new FileSendingUtil(this).handleReceivingFile(builder);
+            }
+        }
+
+        // the files those chunks belong to
+        try {
+            DirectoryStream<Path> kept = Files.newDirectoryStream(FileBlockBuilder.directory(this), "*.manifest");
+            try {
+                for (Path file : kept) {
+                    FileManifest manifest = FileManifest.load(file);
+                    if (manifest != null) {
+                        this.receiveManifest(manifest, false);
+                    }
+                }
+            } finally {
+                kept.close();
+            }
+        } catch (NoSuchFileException ex) {
+            // nothing was being received
+        } catch (IOException ex) {
+            System.err.println("Couldn't look for files to resume");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Where the manifests of files sent or received in this chat are kept.
+     */
+    private Path filesDirectory() {
+        return MessageStore.directoryFor(this.name, this.client.user.username).resolve("files");
+    }
+
+    /**
+     * Read back the files sent or received in this chat in earlier runs.
+     */
+    private void loadFiles() {
+        try {
+            DirectoryStream<Path> kept = Files.newDirectoryStream(this.filesDirectory(), "*.manifest");
+            try {
+                for (Path file : kept) {
+                    FileManifest manifest = FileManifest.load(file);
+                    if (manifest != null) {
+                        this.files.put(BlockFile.key(manifest.senderID, manifest.blockIndex), manifest);
+                    }
+                }
+            } finally {
+                kept.close();
+            }
+        } catch (NoSuchFileException ex) {
+            // no files yet
+        } catch (IOException ex) {
+            System.err.println("Couldn't read back the files of this chat: "+ex);
+        }
+    }
+
+    /**
+     * Remember a file that was sent or received, and where it is, so later files can be sent as deltas against it.
+     */
+    public void recordFile(final FileManifest manifest, Path local) {
+        manifest.local = local.toAbsolutePath().normalize();
+        this.files.put(BlockFile.key(manifest.senderID, manifest.blockIndex), manifest);
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    manifest.save(filesDirectory());
+                } catch (IOException ex) {
+                    System.err.println("Couldn't keep a record of "+manifest.local+": "+ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The latest file sent or received in this chat which is at this path, or null if there's none.
+     */
+    public FileManifest fileAt(Path local) {
+        Path wanted = local.toAbsolutePath().normalize();
+        FileManifest latest = null;
+        for (FileManifest manifest : this.files.values()) {
+            if (wanted.equals(manifest.local) && (latest == null || manifest.date > latest.date)) {
+                latest = manifest;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * A file's manifest has arrived: take its chunks from the ChunkStore where I have them already, and wait for the rest.
+     * Its chunks' roots are pinned first, so each chunk is checked against the root its sender listed.
+     * @param announce Tell the user a file is on its way (false when picking it up again after a restart).
+     */
+    private void receiveManifest(FileManifest manifest, boolean announce) {
+        int found = 0;
+        for (FileManifest.Chunk chunk : manifest.chunks) {
+            this.fileRoots.put(BlockFile.key(manifest.senderID, chunk.blockIndex), chunk.root);
+            this.haveChunkLocally(chunk.metadata(manifest.senderID, manifest.date), chunk.root);
+            if (this.fileSourceFor(manifest.senderID, chunk.blockOffset) != null) {
+                found++; // taken from the store, now or when its first HAVE came
+            }
+        }
+        if (announce) {
+            FileManifest base = manifest.base == null ? null : this.files.get(manifest.base);
+            if (manifest.base != null) {
+                System.out.println(this.whatsHisName(manifest.senderID)+" is sending changes to "
+                    +(base != null && base.local != null ? base.local.getFileName() : "a file I don't have yet")+"...");
+            } else {
+                System.out.println(this.whatsHisName(manifest.senderID)+" is sending a file..."
+                    +(found > 0 ? " ("+found+" of "+manifest.chunks.size()+" parts are here already)" : ""));
+            }
+        }
+
+        final FileManifest pending = manifest;
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    pending.save(FileBlockBuilder.directory(Chat.this));
+                } catch (IOException ex) {
+                    System.err.println("A file from "+whatsHisName(pending.senderID)+" can't be resumed if I leave: "+ex);
+                }
+            }
+        });
+        synchronized (this.pendingFiles) {
+            this.pendingFiles.add(manifest);
+        }
+        this.checkPendingFiles();
+    }
+
+    /**
+     * Serve a chunk from the ChunkStore if it's there already, instead of fetching it. Any copy being built is dropped.
+     * @param metadata A piece's worth of the chunk's block metadata.
+     * @return true if the chunk was taken from the store; false if it wasn't there, or I had it from this chat already.
+     */
+    private boolean haveChunkLocally(Message metadata, byte[] root) {
+        if (metadata.senderID == this.hostID || this.blockFiles.containsKey(BlockFile.key(metadata.senderID, metadata.blockIndex))) {
+            return false;
+        }
+        MerkleTree tree = ChunkStore.get(this, root, metadata.blockSize - metadata.repair);
+        if (tree == null) {
+            return false;
+        }
+        try {
+            Path stored = ChunkStore.path(root);
+            BlockFile block = new BlockFile(stored, metadata.senderID, metadata.blockIndex, metadata.blockOffset,
+                metadata.blockSize, metadata.date, Files.size(stored));
+            FileBlockSource source = new FileBlockSource(this, block);
+            this.publishTree(block, tree);
+            this.addFileSource(source);
+        } catch (IOException ex) {
+            return false;
+        }
+
+        synchronized (this.blockAssembler) {
+            FileBlockBuilder builder = this.blockAssembler.getFileBlockBuilder(metadata.senderID, metadata.blockIndex);
+            if (builder != null) {
+                this.blockAssembler.removeBlock(metadata.senderID, metadata.blockIndex);
+                builder.abandon();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Save every file whose chunks are all in the ChunkStore, on the assembler's file writer, after the writes
+     * of any chunk that just finished.
+     */
+    public void checkPendingFiles() {
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                ArrayList<FileManifest> complete = new ArrayList<FileManifest>();
+                synchronized (pendingFiles) {
+                    Iterator<FileManifest> pending = pendingFiles.iterator();
+                    while (pending.hasNext()) {
+                        FileManifest manifest = pending.next();
+                        if (manifest.isComplete(files)) {
+                            pending.remove();
+                            complete.add(manifest);
+                        }
+                    }
+                }
+                for (FileManifest manifest : complete) {
+                    new FileSendingUtil(Chat.this).handleReceivingFile(manifest);
+                    try {
+                        Files.deleteIfExists(FileBlockBuilder.directory(Chat.this).resolve(manifest.senderID+"-"+manifest.blockIndex+".manifest"));
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+                if (!complete.isEmpty()) {
+                    trimChunkStore();
+                }
+            }
+        });
+    }
+
+    /**
+     * Keep the ChunkStore within its bound, sparing the chunks of files I'm sending and of files I'm waiting on.
+     * Chunks of other files I serve may go, like any other (a seed would otherwise keep every file it ever saw):
+     * I stop serving them, and forget their pieces so they aren't fetched again.
+     * Call on the assembler's file writer.
+     */
+    private void trimChunkStore() {
+        HashSet<Path> keep = new HashSet<Path>();
+        for (BlockFile block : this.blockFiles.values()) {
+            if (block.senderID == this.hostID) {
+                keep.add(block.path);
+            }
+        }
+        synchronized (this.pendingFiles) {
+            for (FileManifest manifest : this.pendingFiles) {
+                for (FileManifest.Chunk chunk : manifest.chunks) {
+                    keep.add(ChunkStore.path(chunk.root));
+                }
+            }
+        }
+        int deleted = ChunkStore.trim(keep);
+        if (deleted == 0) {
+            return;
+        }
+        System.out.println("Deleted the "+deleted+" least recently used file chunks to keep the chunk store under "
+            +(ChunkStore.MAX_SIZE >> 20)+" MB");
+
+        int forgotten = 0;
+        for (BlockFile block : this.blockFiles.values()) {
+            if (block.senderID != this.hostID && !Files.exists(block.path)) {
+                this.dropBlockFile(block);
+                for (int i = 0; i < block.blockSize; i++) {
+                    this.messages.forget(block.senderID, block.blockOffset + i);
+                }
+                forgotten++;
+            }
+        }
+        if (forgotten > 0) {
+            this.messages.saveDropped();
+        }
+    }
+
+    /**
+     * Checkpoint the files I'm receiving, so they can be resumed. Called on the way out.
+     */
+    public void checkpointFiles() {
+        this.blockAssembler.checkpoint();
     }
 
     /**
@@ -228,21 +708,53 @@ public class Chat {
      * Does not assume that the message doesn't already exist or that it should go at the end.
      * 
      * @param message The message to store
+     * @return false if the message was already stored.
+     */
+    public boolean storeMessage(Message message) {
+        return this.messages.put(message);
+    }
+
+    /**
+     * Summarize which messages I hold, as runs of consecutive sequence numbers per sender.
+     * @return A PieceSummary of everything in messages.
+     */
+    public PieceSummary pieceSummary() {
+        PieceSummary summary = this.messages.summarize();
+        synchronized (this.fileSources) {
+            for (FileBlockSource source : this.fileSources.values()) {
+                summary.mergeRange(source.block.senderID, source.block.blockOffset, source.block.blockOffset + source.block.blockSize);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * The chat's current members, including me, as the Server would describe them.
+     * @return A Group with myself and every peer.
      */
-    public void storeMessage(Message message) {
-        // store this message
-        synchronized (this.messages) {
-            Integer senderKey = new Integer(message.senderID);
-            ArrayList<Message> messagesFromSender = this.messages.get(senderKey);
-            if (messagesFromSender == null) {
-                messagesFromSender = new ArrayList<Message>();
-                this.messages.put(senderKey, messagesFromSender);
+    public Group toGroup() {
+        Group group = new Group(this.name);
+        group.users.add(this.client.user);
+        synchronized (this.peers) {
+            for (Peer peer : this.peers) {
+                group.users.add(peer.user);
             }
-            // add nulls to pad, so messagesFromSender.get(message.sequenceNumber) will be message.
-            while (messagesFromSender.size() <= message.sequenceNumber) {
-                messagesFromSender.add(null);
+        }
+        return group;
+    }
+
+    /**
+     * Pick a user ID for a newcomer joining through me, without asking the Server.
+     * IDs are chosen at random from Server.PEER_IDS up, which the Server never hands out, and checked against the peers I know.
+     * @return An ID not used by me or any of my peers.
+     */
+    public int allocateUserID() {
+        Random random = new Random();
+        while (true) {
+            int candidate = Server.PEER_IDS + random.nextInt(Integer.MAX_VALUE - Server.PEER_IDS);
+            if (candidate != this.hostID && this.checkAddressBook(candidate) == null) {
+                return candidate;
             }
-            messagesFromSender.set(message.sequenceNumber, message);
         }
     }
 
@@ -262,14 +774,20 @@ public class Chat {
      */
     public void have(Message message, int careOf) {
         
-        if(getMessage(message.senderID, message.sequenceNumber) != null)
+        if(!this.keep(message))
             return;
 
-        this.storeMessage(message);
-        blockAssembler.storeMessage(message);
+        this.advertise(message);
+
+        this.assemble(message, careOf, System.currentTimeMillis());
+    }
 
+    /**
+     * Send a HAVE for a message to the peers who might be interested.
+     */
+    public void advertise(Message message) {
         // make Control packet for HAVE
-        ControlPacket packet = new ControlPacket(ControlPacket.Type.HAVE, this.hostID, message);
+        ControlPacket packet = new ControlPacket(ControlPacket.Type.HAVE, this.hostID, message, this.rootOf(message));
         byte[] packetData = packet.pack();
 
         // send this packet to peers who might be interested.
@@ -282,35 +800,267 @@ public class Chat {
                 }
             }
         }
+    }
 
-        if (this.shouldPrintMessage(message) && blockAssembler.isBlockComplete(message.senderID, message.blockIndex)) {
+    /**
+     * Publish the Merkle tree of a file I'm sending, before any of its pieces are advertised.
+     */
+    public void publishTree(BlockFile block, MerkleTree tree) {
+        Long key = BlockFile.key(block.senderID, block.blockIndex);
+        this.fileTrees.put(key, tree);
+        this.fileRoots.put(key, tree.root());
+    }
 
-            // is this block a text message or a file?
-            if(blockAssembler.blockIsText(message.senderID, message.blockIndex)){
-                // who sent this?
-                String sender = this.whatsHisName(message.senderID);
+    /**
+     * @return The Merkle root of a FILE piece's block, or null if it has none or I don't know it.
+     */
+    public byte[] rootOf(Message message) {
+        if (message.type != Message.Type.FILE) {
+            return null;
+        }
+        return this.fileRoots.get(BlockFile.key(message.senderID, message.blockIndex));
+    }
+
+    /**
+     * A HAVE from the sender of a file carries its block's root, which I trust over any a relay gave me.
+     */
+    public void learnRoot(ControlPacket packet) {
+        Message message = packet.message;
+        if (message != null && message.type == Message.Type.FILE && packet.senderID == message.senderID
+                && packet.payload.length == MerkleTree.HASH_SIZE) {
+            this.fileRoots.put(BlockFile.key(message.senderID, message.blockIndex), packet.payload);
+        }
+    }
+
+    /**
+     * Check a FILE piece from a DATA packet against its block's Merkle root, before it is kept or advertised.
+     * @return false if the piece must be dropped.
+     */
+    public boolean verifyPiece(ControlPacket packet) {
+        return this.verifyPiece(packet.message, packet.senderID, packet.payload);
+    }
+
+    /**
+     * Check a FILE piece against its block's Merkle root, before it is kept or advertised.
+     * The payload after the checksum is the root the piece was sent with, then the piece's proof (see dataPayload).
+     * A block's root comes from its sender when the sender tells me; otherwise from the first piece whose proof holds.
+     * A piece that passes keeps its proof, so I can pass the proof on with it.
+     * @param fromID The peer the piece came from.
+     * @return false if the piece must be dropped.
+     */
+    public boolean verifyPiece(Message message, int fromID, byte[] payload) {
+        if (message.type != Message.Type.FILE) {
+            return true;
+        }
+        if (message.sequenceNumber - message.blockOffset >= message.blockSize - message.repair) {
+            return true; // a repair piece isn't in the tree; it's checked with the whole chunk once that's finished
+        }
+        Long key = BlockFile.key(message.senderID, message.blockIndex);
+        if (payload.length < 4 + MerkleTree.HASH_SIZE) {
+            return this.fileRoots.get(key) == null; // a file sent without a tree can't be checked
+        }
+
+        byte[] carried = Arrays.copyOfRange(payload, 4, 4 + MerkleTree.HASH_SIZE);
+        byte[] proof = Arrays.copyOfRange(payload, 4 + MerkleTree.HASH_SIZE, payload.length);
+        if (fromID == message.senderID) {
+            this.fileRoots.put(key, carried);
+        }
+        byte[] root = this.fileRoots.get(key);
+        if (root == null) {
+            root = carried;
+        }
+        if (!MerkleTree.verify(root, message.sequenceNumber - message.blockOffset, message.blockSize - message.repair, message.data, proof)) {
+            return false;
+        }
+        this.fileRoots.putIfAbsent(key, root);
+        message.proof = proof;
+        return true;
+    }
+
+    /**
+     * The payload of a DATA packet, or of a HISTORY response, for a piece: its checksum, and for a piece of a file with a tree, the root and the piece's proof.
+     * A repair piece has no proof, so goes with its checksum alone.
+     * @return The payload, or null if the piece's block has a root but I can't prove the piece.
+     */
+    public byte[] dataPayload(Message message) {
+        byte[] checksum = Validation.checksum(message);
+        byte[] root = this.rootOf(message);
+        if (root == null || message.sequenceNumber - message.blockOffset >= message.blockSize - message.repair) {
+            return checksum;
+        }
+
+        byte[] proof = message.proof;
+        if (proof == null) {
+            MerkleTree tree = this.treeFor(message.senderID, message.blockIndex, root);
+            if (tree == null) {
+                return null;
+            }
+            proof = tree.proof(message.sequenceNumber - message.blockOffset);
+        }
+
+        byte[] payload = Arrays.copyOf(checksum, checksum.length + root.length + proof.length);
+        System.arraycopy(root, 0, payload, checksum.length, root.length);
+        System.arraycopy(proof, 0, payload, checksum.length + root.length, proof.length);
+        return payload;
+    }
 
-                // and what was the message again?
-                String text = blockAssembler.getText(message.senderID, message.blockIndex);
+    /**
+     * The Merkle tree of a block, built from its file on disk the first time it's needed.
+     * @return The tree, or null if I don't have the whole file or it doesn't match the root.
+     */
+    public MerkleTree treeFor(int senderID, int blockIndex, byte[] root) {
+        Long key = BlockFile.key(senderID, blockIndex);
+        MerkleTree tree = this.fileTrees.get(key);
+        if (tree != null) {
+            return tree;
+        }
+        BlockFile blockFile = this.blockFiles.get(key);
+        if (blockFile == null) {
+            return null;
+        }
+        try {
+            tree = new MerkleTree(new FileBlockSource(this, blockFile));
+        } catch (IOException ex) {
+            return null;
+        }
+        if (!Arrays.equals(tree.root(), root)) {
+            return null;
+        }
+        this.fileTrees.put(key, tree);
+        return tree;
+    }
+
+    /**
+     * A piece fetched by history sync (see HistorySync.java). Kept and assembled like any other piece,
+     * but not advertised with HAVE, since it's old news to everyone who was in the chat when it was sent.
+     * Completed messages are shown with the time they were sent.
+     * @param message The piece.
+     * @param careOf The peer it was fetched from.
+     */
+    public void haveFromHistory(Message message, int careOf) {
+        if (this.keep(message)) {
+            this.assemble(message, careOf, message.date);
+        }
+    }
 
-                long yourmilliseconds = System.currentTimeMillis();
-                SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");    
-                Date resultdate = new Date(yourmilliseconds);
+    /**
+     * Store a piece, unless I already have it.
+     * Pieces of files from others aren't written to the history: they're written to a partial file as they arrive, and
+     * then kept once, as a chunk in the ChunkStore.
+     * @return false if I already had it.
+     */
+    private boolean keep(Message message) {
+        if (this.fileSourceFor(message.senderID, message.sequenceNumber) != null) {
+            return false; // served from a file already
+        }
+        if (!this.storeMessage(message)) {
+            return false;
+        }
+        if (this.history != null && (message.type != Message.Type.FILE || message.senderID == this.hostID)) {
+            this.history.append(message);
+        }
+        return true;
+    }
 
-                if (message.senderID != careOf) {
-                    String goBetween = this.whatsHisName(careOf);
+    /**
+     * Has a piece's block been completed already, without the piece? Only asked when the piece would start the block
+     * again, so a block is rebuilt and shown once. Must hold the lock on the assembler.
+     */
+    private boolean wasRebuilt(Message message) {
+        if (this.blockAssembler.isBuilding(message.senderID, message.blockIndex)) {
+            return false;
+        }
+        int held = 0;
+        for (int i = 0; i < message.blockSize; i++) {
+            int sequenceNumber = message.blockOffset + i;
+            if (sequenceNumber != message.sequenceNumber && this.hasMessage(message.senderID, sequenceNumber)) {
+                held++;
+            }
+        }
+        return held >= message.blockSize - message.repair;
+    }
 
-                    System.out.println("("+sdf.format(resultdate)+") "+sender+" (via "+goBetween+"): "+text);
+    /**
+     * Add a piece to its block, and print or save the block once it's complete.
+     * Pieces arrive from the Receiver and from history sync at once, so the assembler is locked
+     * until the completed block has been taken out of it, and each block is shown exactly once.
+     * @param shownTime Time to print with a completed text message.
+     */
+    private void assemble(Message message, int careOf, long shownTime) {
+        boolean isText;
+        boolean isManifest;
+        String text = null;
+        byte[] binary = null;
+        FileBlockBuilder onDisk = null;
+        ArrayList<Message> rebuilt = new ArrayList<Message>();
+
+        synchronized (this.blockAssembler) {
+            if (message.repair > 0 && this.wasRebuilt(message)) {
+                return; // a piece that was in flight when its block was rebuilt without it
+            }
+            blockAssembler.storeMessage(message);
+            if (!blockAssembler.isBlockComplete(message.senderID, message.blockIndex)) {
+                return;
+            }
+
+            // pieces that didn't arrive are rebuilt from the repair pieces, and kept as if they had
+            for (Message piece : blockAssembler.recover(message.senderID, message.blockIndex)) {
+                if (this.keep(piece)) {
+                    rebuilt.add(piece);
+                }
+            }
+
+            // is this block a text message or a file?
+            isText = blockAssembler.blockIsText(message.senderID, message.blockIndex);
+            isManifest = blockAssembler.blockIsManifest(message.senderID, message.blockIndex);
+            onDisk = blockAssembler.getFileBlockBuilder(message.senderID, message.blockIndex);
+            if (this.shouldPrintMessage(message) && onDisk == null) {
+                if (isText) {
+                    text = blockAssembler.getText(message.senderID, message.blockIndex);
                 } else {
-                    System.out.println("("+sdf.format(resultdate)+") "+sender+": "+text);
+                    binary = blockAssembler.getBinary(message.senderID, message.blockIndex);
                 }
+            }
 
-                // we are no longer "building" this block so remove it from assembler
-                blockAssembler.removeBlock(message.senderID, message.blockIndex);
-            }else{
-                FileSendingUtil receiver = new FileSendingUtil(this);
-                receiver.handleReceivingFile(blockAssembler.getBinary(message.senderID, message.blockIndex), message.senderID);
+            // we are no longer "building" this block so remove it from assembler; its pieces are still in messages
+            blockAssembler.removeBlock(message.senderID, message.blockIndex);
+        }
+
+        for (Message piece : rebuilt) {
+            this.advertise(piece);
+        }
+
+        if (!this.shouldPrintMessage(message)) {
+            return; // my own blocks aren't printed
+        }
+
+        if (isText) {
+            // who sent this?
+            String sender = this.whatsHisName(message.senderID);
+
+            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");    
+            Date resultdate = new Date(shownTime);
+
+            if (message.senderID != careOf) {
+                String goBetween = this.whatsHisName(careOf);
+
+                System.out.println("("+sdf.format(resultdate)+") "+sender+" (via "+goBetween+"): "+text);
+            } else {
+                System.out.println("("+sdf.format(resultdate)+") "+sender+": "+text);
+            }
+        } else if (isManifest) {
+            FileManifest manifest = FileManifest.unpack(binary, message);
+            if (manifest == null) {
+                System.err.println("Couldn't read the list of parts of a file from "+this.whatsHisName(message.senderID));
+                return;
             }
+            this.receiveManifest(manifest, true);
+        } else if (onDisk != null) {
+            // already written to disk piece by piece
+            new FileSendingUtil(this).handleReceivingFile(onDisk);
+        } else {
+            FileSendingUtil receiver = new FileSendingUtil(this);
+            receiver.handleReceivingFile(binary, message);
         }
     }
 
@@ -322,20 +1072,173 @@ public class Chat {
     }
 
     /**
-     * A new block (file/binary) has been written and must be sent out
+     * A file is to be sent out as chunks (see ChunkStore.java), each its own FILE block, then a MANIFEST block listing them.
+     * Each chunk is compressed if that's worth it, copied into the ChunkStore and its Merkle tree published; its pieces
+     * are made from the stored copy when asked for (see FileBlockSource.java) and advertised on a background thread,
+     * after the manifest, so peers that hold a chunk already can skip it.
+     * <br>
+     * Given a base, an earlier file in the chat, only the changes since the base are sent (see Delta.java).
+     * With repair, each chunk's block, and the manifest's, has repair pieces after its own (see ErasureCode.java),
+     * made from the stored copy when they're asked for like the rest.
+     * @param path The file.
+     * @param basePath Where the base is, as it was sent or saved, or null to send the whole file.
+     */
+    public void newFile(Path path, Path basePath, boolean superSeed, boolean repair) throws IOException {
+        long date = System.currentTimeMillis();
+        FileManifest manifest = new FileManifest(this.hostID, 0, date, Files.size(path));
+        Path sent = path;
+        if (basePath != null) {
+            FileManifest base = this.fileAt(basePath);
+            if (base == null) {
+                System.out.println(basePath+" wasn't sent or received in this chat; sending the whole file");
+            } else {
+                Path literals = this.diff(base, path, manifest);
+                if (literals != null) {
+                    sent = literals;
+                }
+            }
+        }
+
+        final ArrayList<FileBlockSource> sources = new ArrayList<FileBlockSource>();
+        for (long[] chunk : ChunkStore.chunk(sent)) {
+            // compress each chunk on its own, if it shrinks enough
+            byte[] data = ChunkStore.read(sent, chunk[0], chunk[1]);
+            byte[] deflated = BlockCodec.compress(data);
+            if (deflated != null) {
+                data = deflated;
+            }
+            MerkleTree tree = ChunkStore.add(this, data);
+            int pieceCount = (data.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE;
+            if (repair) {
+                pieceCount += ErasureCode.repairCount(pieceCount);
+            }
+
+            BlockFile block = new BlockFile(ChunkStore.path(tree.root()), this.hostID, this.blockIndex, this.sequenceNumber, pieceCount, date, data.length);
+            FileBlockSource source = new FileBlockSource(this, block);
+            this.publishTree(block, tree);
+            this.addFileSource(source);
+            sources.add(source);
+            manifest.chunks.add(new FileManifest.Chunk(block.blockIndex, block.blockOffset, pieceCount, data.length, deflated != null, tree.root()));
+            this.blockIndex++;
+            this.sequenceNumber += pieceCount;
+        }
+        if (sent != path) {
+            Files.deleteIfExists(sent);
+        }
+
+        manifest.blockIndex = this.blockIndex;
+        this.newBlock(Message.Type.MANIFEST, manifest.pack(), this.blockIndex++, repair);
+        this.recordFile(manifest, path);
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                trimChunkStore();
+            }
+        });
+
+        if (superSeed) {
+            int peerCount;
+            synchronized (this.peers) {
+                peerCount = this.peers.size();
+            }
+            if (peerCount >= 2) {
+                SuperSeeder superSeeder = new SuperSeeder(this, path.getFileName().toString(), sources);
+                this.superSeeders.add(superSeeder);
+                Thread superSeederThread = new Thread(superSeeder);
+                superSeederThread.start();
+                return;
+            }
+            System.out.println("Super-seeding needs at least two peers to pass the file on; sending it normally");
+        }
+
+        Thread advertiser = new Thread(new Runnable() {
+            public void run() {
+                // one piece of each chunk first, so peers learn every chunk's root and can look for it in their stores
+                for (FileBlockSource source : sources) {
+                    advertise(source.piece(source.block.blockOffset));
+                }
+                for (FileBlockSource source : sources) {
+                    source.advertiseFrom(1);
+                }
+            }
+        });
+        advertiser.start();
+    }
+
+    /**
+     * Work out a file's delta against an earlier one, taking the base as it was sent, from the ChunkStore,
+     * which is how every receiver has it.
+     * @param manifest The file's manifest, which the base and the operations are set in.
+     * @return The literal bytes to send as the file's chunks, or null to send the whole file.
      */
-    public void newBlock(byte [] block) {
-        this.newBlock(Message.Type.FILE, block, this.blockIndex++);
+    private Path diff(FileManifest base, Path path, FileManifest manifest) {
+        Path baseCopy = null;
+        Path literals = null;
+        try {
+            if (!base.isComplete(this.files)) {
+                System.out.println("Parts of "+base.local+" are missing; sending the whole file");
+                return null;
+            }
+            Files.createDirectories(ChunkStore.directory());
+            baseCopy = Files.createTempFile(ChunkStore.directory(), "base", ".tmp");
+            base.assemble(baseCopy, this.files);
+            literals = Files.createTempFile(ChunkStore.directory(), "delta", ".tmp");
+            ArrayList<long[]> ops = Delta.diff(baseCopy, path, literals);
+
+            long changed = Files.size(literals);
+            if (changed >= manifest.length) {
+                Files.delete(literals);
+                return null; // nothing in common
+            }
+            manifest.base = BlockFile.key(base.senderID, base.blockIndex);
+            manifest.ops = ops;
+            System.out.println("Sending the changes since "+base.local.getFileName()+": "+changed+" of "+manifest.length+" bytes");
+            return literals;
+        } catch (IOException ex) {
+            System.err.println("Couldn't work out the changes since "+base.local+", sending the whole file: "+ex);
+            try {
+                if (literals != null) {
+                    Files.deleteIfExists(literals);
+                }
+            } catch (IOException ignored) {
+            }
+            return null;
+        } finally {
+            try {
+                if (baseCopy != null) {
+                    Files.deleteIfExists(baseCopy);
+                }
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     /**
      * Send out a bunch of bytes, to everyone.
+     * Every piece of the block carries the same date, so a piece is the same whichever way a peer gets it.
      */
     public void newBlock(Message.Type type, byte[] block, int blockIndex) {
-        // break up blocks into little pieces.
+        this.newBlock(type, block, blockIndex, false);
+    }
+
+    /**
+     * Send out a bunch of bytes, to everyone, with repair pieces if asked for (see ErasureCode.java).
+     */
+    public void newBlock(Message.Type type, byte[] block, int blockIndex, boolean withRepair) {
+        // compress it first, if it shrinks enough
+        boolean compressed = false;
+        byte[] deflated = BlockCodec.compress(block);
+        if (deflated != null) {
+            block = deflated;
+            compressed = true;
+        }
+
+        // break up blocks into little pieces, and add repair pieces so any pieceCount of them will do
 
         int pieceCount = (block.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE;
+        int repair = withRepair ? ErasureCode.repairCount(pieceCount) : 0;
         int firstSeq = this.sequenceNumber;
+        long date = System.currentTimeMillis();
+
         for (int i = 0; i < pieceCount; i++) {
             int startIndex = i * Message.MAX_PIECE;
             int bytesRemaining = block.length - startIndex;
@@ -343,24 +1246,38 @@ public class Chat {
                 bytesRemaining = Message.MAX_PIECE;
             }
             byte[] piece = Arrays.copyOfRange(block, startIndex, startIndex + bytesRemaining);
-            this.newPiece(type, piece, blockIndex, pieceCount, firstSeq);
+            this.newPiece(type, piece, blockIndex, pieceCount + repair, firstSeq, date, compressed, repair);
+        }
+        if (repair > 0) {
+            for (byte[] piece : ErasureCode.encode(block, repair)) {
+                this.newPiece(type, piece, blockIndex, pieceCount + repair, firstSeq, date, compressed, repair);
+            }
         }
     }
 
-    public void newPiece(Message.Type type, byte[] piece, int blockIndex, int pieceCount, int blockOffset) {
-        this.have(new Message(type, piece, this.hostID, blockIndex, blockOffset, pieceCount, 
-            this.sequenceNumber++, System.currentTimeMillis()), this.hostID);
+    public void newPiece(Message.Type type, byte[] piece, int blockIndex, int pieceCount, int blockOffset, long date, boolean compressed, int repair) {
+        Message message = new Message(type, piece, this.hostID, blockIndex, blockOffset, pieceCount, 
+            this.sequenceNumber++, date);
+        message.compressed = compressed;
+        message.repair = repair;
+        this.have(message, this.hostID);
     }
 
     /**
-     * Add peer for given user to list of peers.
+     * Add peer for given user to list of peers, unless a peer with that ID is already there.
+     * Business cards, gossip and PEX can all announce the same user at once, so this checks and adds atomically.
      * @param user The Peer's credentials
+     * @return The new Peer, or null if the user was already a peer
      */
-    public void makeFriend(User user) {
+    public Peer makeFriend(User user) {
         Peer peer = new Peer(user);
         synchronized (this.peers) {
+            if (this.checkAddressBook(user.userID) != null) {
+                return null;
+            }
             this.peers.add(peer);
         }
+        return peer;
     }
 
     /**
@@ -372,6 +1289,8 @@ public class Chat {
         if (peer != null) {
             synchronized (peer) {
                 peer.chokedMe = true;
+                // a CHOKE in answer to a request means it won't be served
+                peer.currentlyRequesting = false;
             }
         }
     }
@@ -406,7 +1325,7 @@ public class Chat {
                     Message interestedIn = this.beJealous(peer);
                     if (interestedIn != null && interestedIn.senderID != this.hostID) {
                         peer.sendControlData(new ControlPacket(ControlPacket.Type.INTERESTED, this.hostID, interestedIn).pack());
-                        boolean doIHaveIt = getMessage(interestedIn.senderID, interestedIn.sequenceNumber) != null;
+                        boolean doIHaveIt = hasMessage(interestedIn.senderID, interestedIn.sequenceNumber);
                     } else {
                         // System.out.println("nothing to be interested in");
                     }
@@ -440,10 +1359,10 @@ public class Chat {
                     while (sequenceNumbers.hasNext()) {
                         int availableSequenceNumber = sequenceNumbers.next().intValue();
 
-                        Message myVersion = this.getMessage(sender, availableSequenceNumber);
+                        boolean haveIt = !this.wantsMessage(sender, availableSequenceNumber);
 
                         // I don't have this one, we haven't requested it recently, thus I want it.
-                        if (myVersion == null && requestTracker.canRequestMessage(sender, availableSequenceNumber)) {
+                        if (!haveIt && requestTracker.canRequestMessage(sender, availableSequenceNumber)) {
                             int sequenceNumber = availableSequenceNumber;
                             int messageCreator = sender;
                             return new Message(null, null, messageCreator, 0, 0, 0, sequenceNumber, 0);
@@ -522,126 +1441,104 @@ public class Chat {
         }
 
         synchronized (connectedPeer) {
-            if (!connectedPeer.chokedByMe) {
+            if (connectedPeer.chokedByMe) {
+                // System.err.println("Request from choked peer "+whatsHisName(peerID));
+                return;
+            }
+
+            boolean sent = false;
+            try {
                 int messageCreator = message.senderID;
                 int sequenceNumber = message.sequenceNumber;
 
+                // a file I'm super-seeding goes only to the peer each piece was revealed to
+                SuperSeeder superSeeder = this.superSeederFor(messageCreator, sequenceNumber);
+                if (superSeeder != null && !superSeeder.mayServe(peerID, sequenceNumber)) {
+                    return;
+                }
+
                 // get the message
                 Message messageToSend = this.client.chat.getMessage(messageCreator, sequenceNumber);
                 if (messageToSend == null || messageToSend.data == null) {
-                    return; // sadly we don't have this message
+                    return; // sadly we don't have this message (any more)
                 }
 
-                // send back the message's data.
-                connectedPeer.sendControlData(new ControlPacket(ControlPacket.Type.DATA, this.hostID, messageToSend).pack());
+                byte[] payload = this.dataPayload(messageToSend);
+                if (payload == null) {
+                    return; // can't prove it's part of its file; someone else can
+                }
 
+                // send back the message's data.
+                connectedPeer.sendControlData(new ControlPacket(ControlPacket.Type.DATA, this.hostID, messageToSend, payload).pack());
+                sent = true;
+                if (superSeeder != null) {
+                    superSeeder.served(messageToSend.data.length);
+                }
+            } finally {
+                // one request per unchoke, served or not: free the slot, and if nothing was sent tell the peer
+                // with a CHOKE, so it doesn't wait for DATA that isn't coming
                 synchronized (this.client.chat.unchokedPeers) {
                     synchronized (connectedPeer) {
                         this.client.chat.unchokedPeers.remove(connectedPeer);
                         connectedPeer.chokedByMe = true;
                     }
                 }
-                
-            } else {
-                // System.err.println("Request from choked peer "+whatsHisName(peerID));
+                if (!sent) {
+                    connectedPeer.sendControlData(new ControlPacket(ControlPacket.Type.CHOKE, this.hostID, null).pack());
+                }
             }
         }
     }
 
     /**
-     * Fill notAlivePeers prior to iterating over.
-     * Makes sure all peers are considered when checking KEEPALIVE.
+     * Send a KEEPALIVE to one peer.
+     * Called by the LivenessTracker when the peer is due one; the peer responds with ALIVE,
+     * but any packet from the peer counts as proof of life.
      */
-    public void fillKeepAlive() {
-        Iterator<Peer> peers = this.peers.iterator();
-
-        while (peers.hasNext()) {
-            Peer connectedPeer = peers.next();
-            if(connectedPeer == null) {
-                System.err.println("What?");
-                return;
-            }
-
-            if(!this.notAlivePeers.containsKey(connectedPeer)) {
-                synchronized(this.notAlivePeers) {
-                    this.notAlivePeers.put(connectedPeer, 0);
-                }
-            }
+    public void sendKeepAlive(Peer connectedPeer) {
+        ControlPacket keepAlivePacket = new ControlPacket(ControlPacket.Type.KEEPALIVE, this.hostID, new Message(null, null, this.hostID, 0, 0, 0, 0, System.currentTimeMillis()));
 
+        synchronized(connectedPeer) {
+            connectedPeer.sendControlData(keepAlivePacket.pack());
         }
+
+        if(this.client.receiver.DEBUG) System.out.println(this.client.receiver.whatsHisName(connectedPeer.user.userID)+" was sent a KEEPALIVE");
     }
 
     /**
-     * Send KEEPALIVE messages to all the peers in this chat.
-     * Each peer is sent a KEEPALIVE control packet
-     * and must respond with an ALIVE control packet
-     * or it will be marked as dead.
+     * A peer I had begun to suspect has been heard from again; any HAVEs sent while we were out of touch may have
+     * been lost, so work out which pieces we differ by and swap them (see Reconciliation.java).
      */
-    public void sendKeepAlive() {
-        Iterator<Peer> peers = this.peers.iterator();
-
-        while (peers.hasNext()) {
-            Peer connectedPeer = peers.next();
-            if(connectedPeer == null) {
-                System.err.println("What?");
-                return;
-            }
-
-            ControlPacket keepAlivePacket = new ControlPacket(ControlPacket.Type.KEEPALIVE, this.hostID, new Message(null, null, this.hostID, 0, 0, 0, 0, System.currentTimeMillis()));
-
-            synchronized(connectedPeer) {
-                connectedPeer.sendControlData(keepAlivePacket.pack());
-            }
-
-                if(this.client.receiver.DEBUG) System.out.println(this.client.receiver.whatsHisName(connectedPeer.user.userID)+" was sent a KEEPALIVE");
+    public void reconcileWith(int peerID) {
+        Peer peer = this.checkAddressBook(peerID);
+        if (peer == null || !this.reconciling.add(peerID)) {
+            return;
         }
-
-        this.keepAliveTime = System.currentTimeMillis();
+        Thread reconcileThread = new Thread(new Reconciliation(this, peer, null));
+        reconcileThread.start();
     }
+
     /**
-     * Check if any peer has failed to respond to KEEPALIVE thrice.
-     * Each peer is checked for 3 KEEPALIVE failures.
-     * If there are three, then remove the peer.
-     * Otherwise, increment the number of failed KEEPALIVES.
+     * Remove a peer which has been detected as dead.
+     * Frees up its unchoke slot and stops tracking its liveness.
      */
-    public void checkKeepAlive() {
-        Iterator<HashMap.Entry<Peer, Integer>> dead = this.notAlivePeers.entrySet().iterator();
-
-        if(this.client.receiver.DEBUG) System.out.println("Checking...");
-
-        while(dead.hasNext()) {
-            try {
-            HashMap.Entry<Peer, Integer> pair = dead.next();
-            Peer checkPeer = pair.getKey();
-            int round = (int) pair.getValue();
-
-            if(round > 1) {
-                if(this.client.receiver.DEBUG) System.out.println(this.client.receiver.whatsHisName(checkPeer.user.userID)+" is dead");
-                System.out.println(checkPeer.user.username+" is no longer connected.");
+    public void removePeer(Peer deadPeer) {
+        boolean removed;
+        synchronized(this.peers) {
+            removed = this.peers.remove(deadPeer);
+        }
+        synchronized(this.unchokedPeers) {
+            this.unchokedPeers.remove(deadPeer);
+        }
+        this.liveness.forget(deadPeer.user.userID);
+        this.peerExchange.departed(deadPeer.user.userID);
+        for (SuperSeeder superSeeder : this.superSeeders) {
+            superSeeder.peerLeft(deadPeer.user.userID);
+        }
 
-                synchronized(this.notAlivePeers) {
-                    this.notAlivePeers.remove(checkPeer);
-                }
-                synchronized(this.peers) {
-                    this.peers.remove(checkPeer);
-                }
-            } else if(round > 0) {
-                if(this.client.receiver.DEBUG) System.out.println(this.client.receiver.whatsHisName(checkPeer.user.userID)+" didn't respond to KEEPALIVE " + this.notAlivePeers.get(checkPeer));
-                
-                synchronized(this.notAlivePeers) {
-                    this.notAlivePeers.put(checkPeer, this.notAlivePeers.get(checkPeer) + 1);
-                }
-            } else {
-                synchronized(this.notAlivePeers) {
-                    this.notAlivePeers.put(checkPeer, this.notAlivePeers.get(checkPeer) + 1);
-                }
-            }
-            } catch (Exception e) {
-                //e.printStackTrace();
-                checkKeepAlive();
-                break;
-            }
-        } 
+        if(removed) {
+            System.out.println(deadPeer.user.username+" is no longer connected.");
+        }
     }
 
     /**
@@ -661,19 +1558,4 @@ public class Chat {
             connectedPeer.sendControlData(keepAlivePacket.pack());
         }
     }
-
-    /**
-     * Mark a peer ALIVE in response to a ALIVE message.
-     */
-    public void markAlive(int peerID) {
-        Peer connectedPeer = checkAddressBook(peerID);
-        if(connectedPeer == null) {
-            if(this.client.receiver.DEBUG) System.err.println("Got an ALIVE from an unknown user; ignoring it");
-            return;
-        }
-
-        synchronized(this.notAlivePeers) {
-            this.notAlivePeers.remove(connectedPeer);
-        }
-    }
 }
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Content-addressed store of file chunks, shared by every chat and user on this machine and kept across sessions.
+ * <br>
+ * A file is sent as content-defined chunks, each its own FILE block, plus a manifest listing them (see FileManifest.java).
+ * Chunk boundaries are cut where a gear rolling hash of the last bytes matches a mask, so they depend only on nearby
+ * content: an edit only changes the chunks around it, and the same bytes are cut the same way by every sender.
+ * Chunks are cut from the file as it is and then each is compressed on its own if that's worth it (see BlockCodec.java),
+ * so an edit doesn't change the compressed bytes of the chunks after it.
+ * <br>
+ * Each chunk is kept as a file named by its block's Merkle root (see MerkleTree.java), so the directory is itself the
+ * index: a peer advertising a chunk, or a manifest listing it, names its root, and if that file is here (and still
+ * hashes to that root) the chunk is served from it instead of being fetched. Re-sending a file, in any chat, costs
+ * only its manifest and the chunks that changed.
+ * <br>
+ * The store is a cache: a chunk's modification time is when it was last added or looked up, and once the store passes
+ * MAX_SIZE the least recently used chunks are deleted (see trim). A file whose chunks are gone is sent whole again,
+ * or fetched again, next time.
+ */
+public class ChunkStore {
+
+    /**
+     * Chunk sizes, in bytes: none shorter than MIN_CHUNK (but the last), none longer than MAX_CHUNK,
+     * AVERAGE_CHUNK on average (a power of two).
+     */
+    static int MIN_CHUNK = 16 * 1024;
+    static int AVERAGE_CHUNK = 64 * 1024;
+    static int MAX_CHUNK = 256 * 1024;
+
+    /**
+     * Most bytes of chunks kept, by every chat and user on this machine.
+     */
+    static long MAX_SIZE = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * Chunks used more recently than this, in milliseconds, are never trimmed: another client on this machine may be
+     * putting a file together from them.
+     */
+    static long MIN_IDLE = 60 * 60 * 1000;
+
+    /**
+     * Random values per byte for the gear hash; fixed, so every client cuts the same content the same way.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6368756e6bL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * A cut falls where the top bits of the hash are all zero.
+     */
+    private static final long MASK = -1L << (64 - Integer.numberOfTrailingZeros(AVERAGE_CHUNK));
+
+    /**
+     * Where chunks are kept.
+     */
+    public static Path directory() {
+        return Paths.get(MessageStore.ROOT, "chunks");
+    }
+
+    /**
+     * Where the chunk with this Merkle root is (or would be) kept.
+     */
+    public static Path path(byte[] root) {
+        StringBuilder name = new StringBuilder(2 * root.length);
+        for (byte b : root) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory().resolve(name.toString());
+    }
+
+    /**
+     * Cut a file into content-defined chunks.
+     * @return {offset, length} of each chunk, in order.
+     */
+    public static ArrayList<long[]> chunk(Path file) throws IOException {
+        ArrayList<long[]> chunks = new ArrayList<long[]>();
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        try {
+            long start = 0;
+            long position = 0;
+            long hash = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                hash = (hash << 1) + GEAR[b];
+                long length = position - start;
+                if ((length >= MIN_CHUNK && (hash & MASK) == 0) || length >= MAX_CHUNK) {
+                    chunks.add(new long[]{start, length});
+                    start = position;
+                    hash = 0;
+                }
+            }
+            if (position > start) {
+                chunks.add(new long[]{start, position - start});
+            }
+        } finally {
+            in.close();
+        }
+        return chunks;
+    }
+
+    /**
+     * Read one chunk of a file. Chunks are at most MAX_CHUNK bytes, so they fit on the heap.
+     */
+    public static byte[] read(Path file, long offset, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        FileChannel from = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            while (buffer.hasRemaining()) {
+                if (from.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException(file+" was cut short while being sent");
+                }
+            }
+        } finally {
+            from.close();
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Put a chunk in the store, unless it's already there.
+     * @param chat Chat the chunk is sent in; only used to read the copy.
+     * @param data The chunk as it's sent (compressed, if it is).
+     * @return The chunk's Merkle tree; its root names the chunk.
+     */
+    public static MerkleTree add(Chat chat, byte[] data) throws IOException {
+        Files.createDirectories(directory());
+        Path temporary = Files.createTempFile(directory(), "chunk", ".tmp");
+        try {
+            Files.write(temporary, data);
+            return add(chat, temporary, null);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Move a complete chunk into the store, named by its root, unless it's already there.
+     * @param file The chunk; moved away, or left for the caller to delete if the store has it already or it doesn't match.
+     * @param expected The root the chunk should have, or null to take it as it is.
+     * @return The chunk's Merkle tree, or null if its root isn't the one expected.
+     */
+    public static MerkleTree add(Chat chat, Path file, byte[] expected) throws IOException {
+        long length = Files.size(file);
+        int pieces = (int) ((length + Message.MAX_PIECE - 1) / Message.MAX_PIECE);
+        MerkleTree tree = new MerkleTree(new FileBlockSource(chat, new BlockFile(file, 0, 0, 0, pieces, 0, length)));
+        if (expected != null && !Arrays.equals(tree.root(), expected)) {
+            return null;
+        }
+        Path stored = path(tree.root());
+        if (!Files.exists(stored)) {
+            Files.createDirectories(directory());
+            try {
+                Files.move(file, stored, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(file, stored, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        touch(stored);
+        return tree;
+    }
+
+    /**
+     * Look up a chunk, checking it still hashes to its root (the store is just files, which can be changed or cut short).
+     * A chunk that doesn't is deleted.
+     * @param blockSize Pieces in the chunk, not counting any repair pieces sent with it.
+     * @return The chunk's tree, or null if the store doesn't have it.
+     */
+    public static MerkleTree get(Chat chat, byte[] root, int blockSize) {
+        Path stored = path(root);
+        try {
+            long length = Files.size(stored);
+            if ((length + Message.MAX_PIECE - 1) / Message.MAX_PIECE != blockSize) {
+                return null;
+            }
+            MerkleTree tree = new MerkleTree(new FileBlockSource(chat, new BlockFile(stored, 0, 0, 0, blockSize, 0, length)));
+            if (Arrays.equals(tree.root(), root)) {
+                touch(stored);
+                return tree;
+            }
+            System.err.println("Chunk "+stored+" is damaged; deleting it");
+            Files.deleteIfExists(stored);
+        } catch (IOException ex) {
+            // not here
+        }
+        return null;
+    }
+
+    /**
+     * Delete the least recently used chunks until the store is within MAX_SIZE.
+     * @param keep Chunks not to delete, whatever their age: those being served or waited on.
+     * @return Number of chunks deleted.
+     */
+    public static synchronized int trim(Set<Path> keep) {
+        ArrayList<Path> chunks = new ArrayList<Path>();
+        final HashMap<Path, Long> used = new HashMap<Path, Long>();
+        long total = 0;
+        try {
+            DirectoryStream<Path> files = Files.newDirectoryStream(directory());
+            try {
+                for (Path file : files) {
+                    if (file.getFileName().toString().indexOf('.') >= 0) {
+                        continue; // a chunk or file on its way in or out
+                    }
+                    chunks.add(file);
+                    used.put(file, Files.getLastModifiedTime(file).toMillis());
+                    total += Files.size(file);
+                }
+            } finally {
+                files.close();
+            }
+        } catch (NoSuchFileException ex) {
+            return 0;
+        } catch (IOException ex) {
+            System.err.println("Couldn't look through the chunk store: "+ex);
+            return 0;
+        }
+        if (total <= MAX_SIZE) {
+            return 0;
+        }
+
+        Collections.sort(chunks, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.compare(used.get(a), used.get(b));
+            }
+        });
+        long idleSince = System.currentTimeMillis() - MIN_IDLE;
+        int deleted = 0;
+        for (Path chunk : chunks) {
+            if (total <= MAX_SIZE || used.get(chunk) > idleSince) {
+                break;
+            }
+            if (keep.contains(chunk)) {
+                continue;
+            }
+            try {
+                long size = Files.size(chunk);
+                Files.delete(chunk);
+                total -= size;
+                deleted++;
+            } catch (IOException ex) {
+                // gone already
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Mark a chunk as just used, so trim keeps it longest.
+     */
+    private static void touch(Path stored) {
+        try {
+            Files.setLastModifiedTime(stored, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            // it's only a hint
+        }
+    }
+}
@@ -1,11 +1,14 @@
 /**
  * Main client.
  * Run with `java Client server-ip server-port chat-name username`
+ * or, to join through an existing member instead of the server, `java Client --peer peer-ip peer-data-port chat-name username`
+ * or, to run a headless seed that caches and serves the chat, `java Client --seed [--peer] ip port chat-name username`
  */
 
 import java.io.*;
 import java.util.*;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 import java.net.*;
 import java.nio.*;
@@ -48,29 +51,128 @@ public class Client {
 
     public User user = null;
 
+    /**
+     * When joining through an existing member: that member's ID and a summary of the pieces it holds.
+     */
+    private int gatewayID = 0;
+    private PieceSummary gatewaySummary = null;
+
+    /**
+     * Am I a seed? A seed is a member with nobody at the keyboard: it fetches every piece like any client, but
+     * keeps files in the ChunkStore rather than saving copies, keeps at most SEED_HISTORY bytes of pieces, and
+     * serves many more peers at once, so a chat's content spreads faster and outlives the clients that sent it.
+     */
+    public boolean seed = false;
+
+    /**
+     * Peers a seed unchokes at once.
+     */
+    static int SEED_UNCHOKE = 32;
+
+    /**
+     * Bulk transfers a seed serves at once.
+     */
+    static int SEED_UPLOADS = 16;
+
+    /**
+     * Most bytes of pieces a seed keeps in its history.
+     */
+    static long SEED_HISTORY = 1024L * 1024 * 1024;
+
+    /**
+     * Renews my lease with the Server, if I joined through the Server.
+     */
+    public LeaseRenewer leaseRenewer = null;
+
+    /**
+     * How many business cards are delivered at once.
+     */
+    static int HANDSHAKE_THREADS = 32;
+
+    /**
+     * How many times to follow a sharded directory's redirects before giving up.
+     */
+    static int MAX_REDIRECTS = 4;
+
+    /**
+     * Threads for delivering business cards, so joins don't connect to peers one at a time.
+     */
+    public ExecutorService handshakes = Executors.newFixedThreadPool(HANDSHAKE_THREADS);
+
     /**
      * A list of all blocks that we can save right now.
      */
     public Queue<SimpleEntry<byte[], Integer>> pendingBlocksToSave = null;
 
     /**
-     * Creates client.
+     * Creates client, joining through the server.
      */
     public Client(String groupName, InetAddress serverAddress, int serverPort, String username) {
+        this(groupName, serverAddress, serverPort, username, false);
+    }
+
+    /**
+     * Creates client.
+     * @param viaPeer If true, address and port are an existing member's IP and data port, and the chat is joined through that member
+     * (see Seeder.JOIN_REQUEST); otherwise they are the Server's.
+     */
+    public Client(String groupName, InetAddress address, int port, String username, boolean viaPeer) {
+        this(groupName, address, port, username, viaPeer, false);
+    }
+
+    /**
+     * Creates client.
+     * @param seed If true, run as a seed (see Client.seed).
+     */
+    public Client(String groupName, InetAddress address, int port, String username, boolean viaPeer, boolean seed) {
         this.username = username;
+        this.seed = seed;
         this.receiver = new Receiver(this);
         this.seeder = new Seeder(this);
         Group group = null;
         try {
-            group = this.requestGroupInfo(groupName, serverAddress, serverPort);
+            if (viaPeer) {
+                group = this.requestGroupFromPeer(groupName, address, port);
+            } else {
+                group = this.requestGroupInfo(groupName, address, port);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
         
         this.chat = new Chat(this, group, this.userUUID);
 
-        // notify everyone in the chat that I exist
-        this.beLoud();
+        if (viaPeer) {
+            // the member I joined through already knows me, and told me what it has
+            Peer gateway = this.chat.checkAddressBook(this.gatewayID);
+            if (gateway != null) {
+                gateway.knowsMe = true;
+                gateway.pieceSummary = this.gatewaySummary;
+                System.out.println(gateway.user.username+" has "+this.gatewaySummary.pieceCount()+" pieces of chat history");
+            }
+        }
+
+        // notify everyone in the chat that I exist:
+        // directly in small chats, by gossip in large ones
+        if (this.chat.membership.isActive()) {
+            this.chat.membership.announceJoin(this.user);
+        } else {
+            this.beLoud();
+        }
+
+        // let the others know when I leave, rather than making them detect it, and write out the rest of the history and files
+        final Chat myChat = this.chat;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                if (myChat.membership.isActive()) {
+                    myChat.membership.announceLeave();
+                }
+                myChat.checkpointFiles();
+                if (myChat.history != null) {
+                    myChat.history.close();
+                }
+            }
+        });
 
         // start receiver and seeder threads
         Thread receiverThread = new Thread(this.receiver);
@@ -78,20 +180,106 @@ public class Client {
 
         Thread seederThread = new Thread(this.seeder);
         seederThread.start();
+
+        if (this.leaseRenewer != null) {
+            Thread leaseThread = new Thread(this.leaseRenewer);
+            leaseThread.start();
+        }
+
+        // fetch what was said before I joined
+        Thread historyThread = new Thread(new HistorySync(this.chat));
+        historyThread.start();
     }
 
     /**
      * Make sure everyone knows I exist
      * Give them my IP and ports so they know how to get in touch with me.
      * Do this by sending to their data ports, with TCP, to make sure they get the message.
-     * This should be called before starting other threads, so don't need to synchronize.
+     * Cards are delivered concurrently, so joining takes about as long as the slowest peer rather than the sum of all of them.
+     * Waits until every card is delivered or has given up.
      */
     public void beLoud() {
-        Iterator<Peer> myPeers = this.chat.peers.iterator();
-        while (myPeers.hasNext()) {
-            Peer peer = myPeers.next();
-            peer.giveBusinessCard(this.user);
+        ArrayList<Callable<Boolean>> cards = new ArrayList<Callable<Boolean>>();
+        synchronized (this.chat.peers) {
+            Iterator<Peer> myPeers = this.chat.peers.iterator();
+            while (myPeers.hasNext()) {
+                final Peer peer = myPeers.next();
+                if (!peer.knowsMe) {
+                    cards.add(new Callable<Boolean>() {
+                        public Boolean call() {
+                            return peer.giveBusinessCard(user);
+                        }
+                    });
+                }
+            }
+        }
+
+        try {
+            int unreachable = 0;
+            for (Future<Boolean> delivered : this.handshakes.invokeAll(cards)) {
+                if (!delivered.get()) {
+                    unreachable++;
+                }
+            }
+            if (unreachable > 0) {
+                System.err.println("Couldn't reach "+unreachable+" of "+cards.size()+" peers");
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Give one peer my business card in the background.
+     */
+    public void introduceMyselfTo(final Peer peer) {
+        this.handshakes.execute(new Runnable() {
+            public void run() {
+                peer.giveBusinessCard(user);
+            }
+        });
+    }
+
+    /**
+     * Joins through an existing member instead of the server, using the JOIN_REQUEST protocol on its data port.
+     * The member assigns my user ID and tells me its ID and what pieces it holds (stored in gatewayID and gatewaySummary).
+     * @param groupName name of group requested to join
+     * @param peerAddress IP address of the member
+     * @param peerPort The member's data port
+     * @return Group to be a part of (not including me).
+     */
+    public Group requestGroupFromPeer(String groupName, InetAddress peerAddress, int peerPort) throws IOException {
+        try {
+        Socket peerSocket = new Socket(peerAddress, peerPort);
+        BufferedInputStream inFromPeer = new BufferedInputStream(peerSocket.getInputStream());
+        DataOutputStream outToPeer = new DataOutputStream(peerSocket.getOutputStream());
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(Seeder.JOIN_REQUEST, byteStream);
+        byteStream.write(serverRequest(groupName));
+        outToPeer.write(byteStream.toByteArray());
+
+        if (IOHelper.getInt(inFromPeer) != 0) {
+            System.out.println("That peer is not in chat "+groupName);
+            System.exit(0);
         }
+
+        this.userUUID = IOHelper.getInt(inFromPeer);
+        this.gatewayID = IOHelper.getInt(inFromPeer);
+
+        Group group = Group.unpack(groupName, inFromPeer);
+        this.gatewaySummary = PieceSummary.unpack(inFromPeer);
+
+        peerSocket.close();
+
+        this.user = new User(this.username, getCurrentIP(), this.receiver.port, this.seeder.port, this.userUUID);
+
+        return group;
+        } catch(ConnectException ex) {
+            System.out.println("Peer is not reachable...");
+            System.exit(0);
+        }
+        return null;
     }
 
     /**
@@ -103,26 +291,41 @@ public class Client {
      */
     public Group requestGroupInfo(String groupName, InetAddress serverAddress, int serverPort) throws IOException {
         try {
-        // connect to server to request chat data
-        Socket clientSocket = new Socket(serverAddress, serverPort);
-        BufferedInputStream inFromServer = new BufferedInputStream(clientSocket.getInputStream());
-        DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
+        for (int hop = 0; hop <= MAX_REDIRECTS; hop++) {
+            // connect to server to request chat data
+            Socket clientSocket = new Socket(serverAddress, serverPort);
+            BufferedInputStream inFromServer = new BufferedInputStream(clientSocket.getInputStream());
+            DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
+
+            // formulate request.
+            byte[] request = serverRequest(groupName);
+            outToServer.write(request);
+
+            this.userUUID = IOHelper.getInt(inFromServer);
+
+            if (this.userUUID == Server.REDIRECT) {
+                // the directory is sharded and another shard owns this chat
+                serverAddress = InetAddress.getByName(IOHelper.getString(inFromServer));
+                serverPort = IOHelper.getInt(inFromServer);
+                clientSocket.close();
+                continue;
+            }
 
-        // formulate request.
-        byte[] request = serverRequest(groupName);
-        outToServer.write(request);
+            int version = IOHelper.getInt(inFromServer);
 
-        this.userUUID = IOHelper.getInt(inFromServer);
+            // System.out.println("UUID assigned: "+this.userUUID);
 
-        // System.out.println("UUID assigned: "+this.userUUID);
+            this.leaseRenewer = new LeaseRenewer(this, serverAddress, serverPort, version);
 
-        Group group = Group.unpack(groupName, inFromServer);
+            Group group = Group.unpack(groupName, inFromServer);
 
-        clientSocket.close();
+            clientSocket.close();
 
-        this.user = group.findMe(this.userUUID);
+            this.user = group.findMe(this.userUUID);
 
-        return group;
+            return group;
+        }
+        throw new IOException("Too many redirects from the directory");
         } catch(ConnectException ex) {
             System.out.println("Server is not running...");
             System.exit(0);
@@ -135,8 +338,9 @@ public class Client {
      * Reads lines from standard input and sends them to everyone.
      */
     public void startMessaging() {
+        // one Scanner for the whole session: each Scanner buffers input, and a new one would lose what the last one read ahead
+        Scanner in = new Scanner(System.in);
         while (true) {
-            Scanner in = new Scanner(System.in);
             try {
                 String message = in.nextLine();
 
@@ -224,20 +428,36 @@ public class Client {
     public static void main(String[] args) throws Exception {
 
         // check arguments
-        if (args.length != 4) {
+        boolean seed = args.length > 0 && args[0].equals("--seed");
+        if (seed) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        boolean viaPeer = args.length == 5 && args[0].equals("--peer");
+        if (args.length != 4 && !viaPeer) {
             System.err.println("Usage: java Client server-ip server-port chat-name username");
+            System.err.println("   or: java Client --peer peer-ip peer-data-port chat-name username");
+            System.err.println("   or: java Client --seed [--peer] ip port chat-name username");
             return;
         }
+        if (viaPeer) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
 
         InetAddress serverIP = InetAddress.getByName(args[0]);
         int serverPort = Integer.parseInt(args[1]);
 
-        Client client = new Client(args[2], serverIP, serverPort, args[3]);
+        Client client = new Client(args[2], serverIP, serverPort, args[3], viaPeer, seed);
 
         // connect to chat (P2P)
         // System.out.println("Connected to chat "+client.chat.name+" with "+client.chat.peers.size()+" others");
         System.out.println("Connected to chat "+client.chat.name);
+        System.out.println("Others can join through me with: java Client --peer "+client.user.address.getHostAddress()+" "+client.seeder.port+" "+client.chat.name+" username");
 
+        if (seed) {
+            // nothing to read; the receiver and seeder threads keep the seed running
+            System.out.println("Seeding chat "+client.chat.name+", keeping up to "+(SEED_HISTORY >> 20)+" MB of history");
+            return;
+        }
         client.startMessaging();
     }
 }
@@ -14,7 +14,7 @@ public class ControlPacket {
 
     // see https://wiki.theory.org/BitTorrentSpecification
     public enum Type {
-        HAVE, // send when have just successfully received / downloaded a single message
+        HAVE, // send when have just successfully received / downloaded a single message. Payload: for files, the block's Merkle root
         CHOKE, // don't make any requests
         UNCHOKE, // allowing a request to be made.
         INTERESTED, // send when you are interested in a certain packet
@@ -22,10 +22,19 @@ public class ControlPacket {
         ALIVE, // verify that you are in fact alive and kicking
         // KEEPALIVE can also be used to remind people how many packets the sender has actually sent
         CANCEL, // to cancel an unchoke if no longer needed.
-        DATA, // to transfer a piece/message of data; either binary or text
-        REQUEST // to request a specific message
+        DATA, // to transfer a piece/message of data; either binary or text. Payload: its CRC-32C (see Validation.java), then for files its block's Merkle root and its proof
+        REQUEST, // to request a specific message
+        PING, // SWIM probe of a member (see Membership.java); carries gossip in the payload
+        PING_REQ, // ask another member to PING someone on my behalf
+        ACK, // response to PING, possibly forwarded for a PING_REQ
+        PEX // peer exchange: a few users the sender knows about, in the payload (see PeerExchange.java)
     };
 
+    /**
+     * Largest control packet that will be received; bigger packets are truncated.
+     */
+    public static final int MAX_SIZE = 2048; // room for a DATA packet with the Merkle proof of a piece of a huge file
+
     /**
      * Unpacks a control packet from an array of bytes received through UDP.
      * @param data the array of bytes received in a control packet sent over the wire
@@ -36,6 +45,7 @@ public class ControlPacket {
         Type type;
         int senderID = 0;
         Message message = null;
+        byte[] payload = null;
 
         try {
             BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(data));
@@ -48,13 +58,16 @@ public class ControlPacket {
                 message = null;
             else
                 message = Message.unpack(messageBinary);
+
+            // older packets end here; the zero padding of the receive buffer reads as an empty payload
+            payload = IOHelper.getByteArray(input);
             
         } catch (IOException ex) {
             ex.printStackTrace();
             return null;
         }
 
-        return new ControlPacket(type, senderID, message);
+        return new ControlPacket(type, senderID, message, payload);
     }
 
     /**
@@ -72,6 +85,8 @@ public class ControlPacket {
                 IOHelper.writeByteArray(new byte[0], byteStream);
             else
                 IOHelper.writeByteArray(this.message.pack(), byteStream);
+
+            IOHelper.writeByteArray(this.payload, byteStream);
             
         }catch(Exception e){
             System.err.println("ControlPacket: Can't write byte array via IOHelper");
@@ -100,6 +115,12 @@ public class ControlPacket {
      */
     public int senderID;
 
+    /**
+     * Extra data for packet types which need more than a Message, like the gossip on PING and ACK.
+     * Empty for the original packet types, apart from DATA, which carries the piece's checksum.
+     */
+    public byte[] payload = new byte[0];
+
     /**
      * Make a control packet for sending
      * @param type The type of control packet, like HAVE, UNCHOKE, KEEPALIVE, etc.
@@ -111,4 +132,14 @@ public class ControlPacket {
         this.senderID = senderID;
         this.message = message;
     }
+
+    /**
+     * Make a control packet with an extra payload
+     * @param payload Type-specific data carried after the message.
+     */
+    public ControlPacket(Type type, int senderID, Message message, byte[] payload) {
+        this(type, senderID, message);
+        if(payload != null)
+            this.payload = payload;
+    }
 }
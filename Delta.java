@@ -0,0 +1,220 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * rsync-style deltas, for sending a revised version of a file the chat already has (/sendfile --base).
+ * <br>
+ * The base is cut into blocks of blockSize(length) bytes, each with a weak rolling checksum and a SHA-256.
+ * The new file is scanned with a window the size of a block, rolling the weak checksum one byte at a time;
+ * where it matches a block of the base (and the strong hash agrees) the window is a copy from the base,
+ * and the bytes between copies are literals. The result is a list of operations, {base offset, length} for a copy
+ * and {LITERAL, length} for the next bytes of the literals, which are sent on their own (see FileManifest.java).
+ * <br>
+ * Every receiver has the base as it was sent, checked against its Merkle roots, so the sender works out the delta
+ * against its own copy once and every receiver applies the same one.
+ */
+public class Delta {
+
+    /**
+     * Smallest and largest block, in bytes. Between them the block is about the square root of the base's length,
+     * as rsync does, which balances the cost of the signatures against the bytes resent around each change.
+     */
+    static int MIN_BLOCK = 512;
+    static int MAX_BLOCK = 64 * 1024;
+
+    /**
+     * Base offset of a literal operation.
+     */
+    public static final long LITERAL = -1;
+
+    /**
+     * Weak checksums are two 16-bit sums of the window's bytes, as in rsync.
+     */
+    private static final int MODULUS = 1 << 16;
+
+    public static int blockSize(long baseLength) {
+        long size = Long.highestOneBit(Math.max(1, (long) Math.sqrt(baseLength)));
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    /**
+     * Work out the delta from a base to a new version.
+     * @param literals Where the literal bytes are written, in order.
+     * @return The operations which make the new version, with adjacent copies merged.
+     */
+    public static ArrayList<long[]> diff(Path base, Path target, Path literals) throws IOException {
+        ByteBuffer from = map(base);
+        ByteBuffer to = map(target);
+        int block = blockSize(from.limit());
+        MessageDigest digest = sha256();
+
+        // signatures of the base's whole blocks
+        int blocks = from.limit() / block;
+        HashMap<Integer, ArrayList<Integer>> byWeak = new HashMap<Integer, ArrayList<Integer>>();
+        byte[][] strong = new byte[blocks][];
+        for (int i = 0; i < blocks; i++) {
+            int weak = weak(from, i * block, block);
+            ArrayList<Integer> matches = byWeak.get(weak);
+            if (matches == null) {
+                matches = new ArrayList<Integer>(1);
+                byWeak.put(weak, matches);
+            }
+            matches.add(i);
+            strong[i] = strong(digest, from, i * block, block);
+        }
+
+        ArrayList<long[]> ops = new ArrayList<long[]>();
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(literals), 64 * 1024);
+        try {
+            int length = to.limit();
+            int position = 0;
+            int literalStart = 0;
+            int a = 0;
+            int b = 0;
+            boolean rolling = false;
+            while (position + block <= length) {
+                if (!rolling) {
+                    int weak = weak(to, position, block);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    rolling = true;
+                }
+
+                int match = -1;
+                ArrayList<Integer> candidates = byWeak.get(a | (b << 16));
+                if (candidates != null) {
+                    byte[] hash = strong(digest, to, position, block);
+                    for (int candidate : candidates) {
+                        if (Arrays.equals(hash, strong[candidate])) {
+                            match = candidate;
+                            break;
+                        }
+                    }
+                }
+
+                if (match >= 0) {
+                    literal(ops, out, to, literalStart, position);
+                    copy(ops, (long) match * block, block);
+                    position += block;
+                    literalStart = position;
+                    rolling = false;
+                    continue;
+                }
+
+                // slide the window one byte
+                if (position + block < length) {
+                    int leaving = to.get(position) & 0xFF;
+                    int entering = to.get(position + block) & 0xFF;
+                    a = (a - leaving + entering) & (MODULUS - 1);
+                    b = (b - block * leaving + a) & (MODULUS - 1);
+                }
+                position++;
+            }
+            literal(ops, out, to, literalStart, length);
+        } finally {
+            out.close();
+        }
+        return ops;
+    }
+
+    /**
+     * Rebuild a new version from its base, its literals and its operations.
+     * @param out Where the new version is written, from its current position.
+     */
+    public static void apply(Path base, Path literals, List<long[]> ops, FileChannel out) throws IOException {
+        FileChannel from = FileChannel.open(base, StandardOpenOption.READ);
+        FileChannel literal = FileChannel.open(literals, StandardOpenOption.READ);
+        try {
+            long literalPosition = 0;
+            for (long[] op : ops) {
+                if (op[0] == LITERAL) {
+                    transfer(literal, literalPosition, op[1], out);
+                    literalPosition += op[1];
+                } else {
+                    transfer(from, op[0], op[1], out);
+                }
+            }
+        } finally {
+            from.close();
+            literal.close();
+        }
+    }
+
+    private static void transfer(FileChannel from, long position, long length, FileChannel out) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long n = from.transferTo(position + copied, length - copied, out);
+            if (n <= 0) {
+                throw new EOFException("a delta reaches past the end of its base or literals");
+            }
+            copied += n;
+        }
+    }
+
+    private static void copy(ArrayList<long[]> ops, long offset, long length) {
+        long[] last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+        if (last != null && last[0] != LITERAL && last[0] + last[1] == offset) {
+            last[1] += length;
+        } else {
+            ops.add(new long[]{offset, length});
+        }
+    }
+
+    private static void literal(ArrayList<long[]> ops, OutputStream out, ByteBuffer data, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        byte[] bytes = new byte[to - from];
+        ByteBuffer region = data.duplicate();
+        region.position(from);
+        region.get(bytes);
+        out.write(bytes);
+        ops.add(new long[]{LITERAL, bytes.length});
+    }
+
+    /**
+     * @return The weak checksum of length bytes from offset: a in the low 16 bits, b in the high.
+     */
+    private static int weak(ByteBuffer data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data.get(offset + i) & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & (MODULUS - 1)) | ((b & (MODULUS - 1)) << 16);
+    }
+
+    private static byte[] strong(MessageDigest digest, ByteBuffer data, int offset, int length) {
+        ByteBuffer region = data.duplicate();
+        region.position(offset);
+        region.limit(offset + length);
+        digest.update(region);
+        return digest.digest();
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file+" is too large to send as a delta");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close(); // the mapping stays valid
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex); // every JVM has SHA-256
+        }
+    }
+}
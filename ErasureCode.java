@@ -0,0 +1,348 @@
+import java.util.*;
+
+/**
+ * Reed-Solomon erasure coding of blocks over GF(256), so a block is complete once any k of its n pieces have arrived.
+ * <br>
+ * A block of k pieces is sent with m repair pieces after them (Message.repair, sent in the flags), which count
+ * towards its blockSize of n = k + m. The code is systematic: the first k pieces are the block's bytes as usual.
+ * Each piece is a symbol of MAX_PIECE bytes (the last data piece padded with zeros), and repair piece i is
+ * sum_j C[i][j] * piece_j, byte by byte, where C is the Cauchy matrix C[i][j] = 1 / (x_i + y_j) with x_i = k + i
+ * and y_j = j. Every square submatrix of a Cauchy matrix is invertible, so any k pieces determine the block.
+ * A repair piece carries one more byte, the length of the block's last data piece, so the block can be cut back
+ * to its exact length when that piece is one of those rebuilt.
+ * <br>
+ * Decoding solves only for the missing data pieces: with e of them missing, e repair pieces give e equations,
+ * whose known terms are subtracted first, and the e-by-e system is solved by Gaussian elimination.
+ * Field arithmetic is by table: a full 64 KB product table, so multiplying a whole piece by a constant is one
+ * 256-byte row lookup per byte.
+ * <br>
+ * The field has 256 elements, so a code is at most 255 pieces long. A larger block, such as a chunk of a file, is
+ * coded in stripes: its data pieces and its repair pieces are each dealt out, in order and as evenly as possible, over
+ * just enough stripes that none has more than STRIPE pieces, and each stripe is coded on its own as above. A block
+ * is complete once every stripe has as many of its pieces in as it has data pieces. The stripes follow from the
+ * block's numbers of data and repair pieces alone, so the receiver finds them without being told.
+ * <br>
+ * Coding is opt-in: only files sent with /sendfile --repair, and their manifests, carry repair pieces.
+ * Run `java ErasureCode` to see what coding and decoding cost.
+ */
+public class ErasureCode {
+
+    /**
+     * Repair pieces per data piece, rounded up, for blocks sent with repair pieces; 0 turns coding off.
+     * At most 1.
+     */
+    static double REDUNDANCY = 0.25;
+
+    /**
+     * Most pieces, data and repair, in a code.
+     */
+    public static final int MAX_PIECES = 255;
+
+    /**
+     * Most pieces in a stripe, a little under MAX_PIECES, so that stripes dealt out as evenly as possible stay within it.
+     */
+    public static final int STRIPE = MAX_PIECES - 2;
+
+    /**
+     * Most repair pieces in a block: what fits in the flags of a Message.
+     */
+    public static final int MAX_REPAIR = (1 << (32 - Message.REPAIR_SHIFT)) - 1;
+
+    /**
+     * GF(256) with the polynomial x^8 + x^4 + x^3 + x^2 + 1.
+     */
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    /**
+     * MUL[a][b] is a * b in GF(256).
+     */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    /**
+     * @return How many repair pieces to send with a block of this many pieces, if it's sent with any; 0 for none.
+     */
+    public static int repairCount(int dataPieces) {
+        if (REDUNDANCY <= 0 || dataPieces == 0) {
+            return 0;
+        }
+        int repair = Math.max(1, (int) Math.ceil(dataPieces * Math.min(REDUNDANCY, 1.0)));
+        return Math.min(repair, MAX_REPAIR);
+    }
+
+    /**
+     * @return Number of stripes a block of this many data and repair pieces is coded in.
+     */
+    public static int stripes(int dataPieces, int repair) {
+        return repair == 0 ? 1 : (dataPieces + repair + STRIPE - 1) / STRIPE;
+    }
+
+    /**
+     * @param count Pieces dealt out over the stripes: the block's data pieces, or its repair pieces.
+     * @return Index, among those pieces, of the first one in this stripe; stripe == stripes gives count.
+     */
+    public static int stripeStart(int count, int stripes, int stripe) {
+        return stripe * (count / stripes) + Math.min(stripe, count % stripes);
+    }
+
+    /**
+     * @param count Pieces dealt out over the stripes: the block's data pieces, or its repair pieces.
+     * @param index Index of one of those pieces.
+     * @return The stripe it's in.
+     */
+    public static int stripeOf(int count, int stripes, int index) {
+        int larger = count % stripes; // the first stripes take one more
+        int size = count / stripes;
+        if (index < larger * (size + 1)) {
+            return index / (size + 1);
+        }
+        return larger + (index - larger * (size + 1)) / size;
+    }
+
+    /**
+     * Make the repair pieces of a block, stripe by stripe.
+     * @param block The block's bytes, as cut into its data pieces.
+     * @return The data of each repair piece, in order: a symbol and the length of its stripe's last data piece.
+     */
+    public static byte[][] encode(byte[] block, int repair) {
+        int k = (block.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE;
+        int stripes = stripes(k, repair);
+        byte[][] pieces = new byte[repair][];
+        for (int s = 0; s < stripes; s++) {
+            int from = stripeStart(k, stripes, s);
+            int to = stripeStart(k, stripes, s + 1);
+            int repairFrom = stripeStart(repair, stripes, s);
+            byte[] stripe = Arrays.copyOfRange(block, from * Message.MAX_PIECE, Math.min(block.length, to * Message.MAX_PIECE));
+            byte[][] coded = encodeStripe(stripe, stripeStart(repair, stripes, s + 1) - repairFrom);
+            System.arraycopy(coded, 0, pieces, repairFrom, coded.length);
+        }
+        return pieces;
+    }
+
+    /**
+     * Rebuild the missing data pieces of a block, stripe by stripe.
+     * @param data The data pieces, by index; null where missing. Missing ones are filled in.
+     * @param repair The repair pieces, by index; null where missing. Each stripe must have as many as it has data
+     * pieces missing.
+     * @return false if there aren't enough repair pieces.
+     */
+    public static boolean decode(byte[][] data, byte[][] repair) {
+        int k = data.length;
+        int stripes = stripes(k, repair.length);
+        for (int s = 0; s < stripes; s++) {
+            int from = stripeStart(k, stripes, s);
+            int repairFrom = stripeStart(repair.length, stripes, s);
+            byte[][] stripeData = Arrays.copyOfRange(data, from, stripeStart(k, stripes, s + 1));
+            byte[][] stripeRepair = Arrays.copyOfRange(repair, repairFrom, stripeStart(repair.length, stripes, s + 1));
+            if (!decodeStripe(stripeData, stripeRepair)) {
+                return false;
+            }
+            System.arraycopy(stripeData, 0, data, from, stripeData.length);
+        }
+        return true;
+    }
+
+    /**
+     * Make the repair pieces of one stripe.
+     * @param block The stripe's bytes, as cut into its k data pieces.
+     * @return The data of each repair piece: a symbol and the length of the last data piece.
+     */
+    public static byte[][] encodeStripe(byte[] block, int repair) {
+        int k = (block.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE;
+        int lastLength = block.length - (k - 1) * Message.MAX_PIECE;
+        byte[][] pieces = new byte[repair][Message.MAX_PIECE + 1];
+        byte[] symbol = new byte[Message.MAX_PIECE];
+        for (int j = 0; j < k; j++) {
+            Arrays.fill(symbol, (byte) 0);
+            System.arraycopy(block, j * Message.MAX_PIECE, symbol, 0, j < k - 1 ? Message.MAX_PIECE : lastLength);
+            for (int i = 0; i < repair; i++) {
+                mulAdd(pieces[i], symbol, coefficient(k, i, j));
+            }
+        }
+        for (int i = 0; i < repair; i++) {
+            pieces[i][Message.MAX_PIECE] = (byte) lastLength;
+        }
+        return pieces;
+    }
+
+    /**
+     * Rebuild the missing data pieces of one stripe.
+     * @param data The data pieces, by index; null where missing. Missing ones are filled in.
+     * @param repair The repair pieces, by index; null where missing. There must be as many as data pieces are missing.
+     * @return false if there aren't enough repair pieces.
+     */
+    public static boolean decodeStripe(byte[][] data, byte[][] repair) {
+        int k = data.length;
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        for (int j = 0; j < k; j++) {
+            if (data[j] == null) {
+                missing.add(j);
+            }
+        }
+        int e = missing.size();
+        if (e == 0) {
+            return true;
+        }
+        ArrayList<Integer> rows = new ArrayList<Integer>();
+        for (int i = 0; i < repair.length && rows.size() < e; i++) {
+            if (repair[i] != null) {
+                rows.add(i);
+            }
+        }
+        if (rows.size() < e) {
+            return false;
+        }
+
+        int lastLength = repair[rows.get(0)][Message.MAX_PIECE] & 0xFF;
+        if (lastLength < 1 || lastLength > Message.MAX_PIECE) {
+            return false;
+        }
+
+        // e equations in the missing pieces: the repair symbol less the known pieces' terms
+        byte[][] matrix = new byte[e][e];
+        byte[][] rhs = new byte[e][];
+        byte[] symbol = new byte[Message.MAX_PIECE];
+        for (int r = 0; r < e; r++) {
+            int i = rows.get(r);
+            rhs[r] = Arrays.copyOf(repair[i], Message.MAX_PIECE);
+            for (int j = 0; j < k; j++) {
+                if (data[j] != null) {
+                    Arrays.fill(symbol, (byte) 0);
+                    System.arraycopy(data[j], 0, symbol, 0, Math.min(data[j].length, Message.MAX_PIECE));
+                    mulAdd(rhs[r], symbol, coefficient(k, i, j));
+                }
+            }
+            for (int c = 0; c < e; c++) {
+                matrix[r][c] = (byte) coefficient(k, i, missing.get(c));
+            }
+        }
+
+        // Gaussian elimination; any square submatrix of a Cauchy matrix is invertible, so a pivot is always found
+        for (int c = 0; c < e; c++) {
+            int pivot = c;
+            while (matrix[pivot][c] == 0) {
+                pivot++;
+            }
+            byte[] swap = matrix[c]; matrix[c] = matrix[pivot]; matrix[pivot] = swap;
+            swap = rhs[c]; rhs[c] = rhs[pivot]; rhs[pivot] = swap;
+
+            int inverse = inverse(matrix[c][c] & 0xFF);
+            scale(matrix[c], inverse);
+            scale(rhs[c], inverse);
+            for (int r = 0; r < e; r++) {
+                int factor = matrix[r][c] & 0xFF;
+                if (r != c && factor != 0) {
+                    mulAdd(matrix[r], matrix[c], factor);
+                    mulAdd(rhs[r], rhs[c], factor);
+                }
+            }
+        }
+
+        for (int c = 0; c < e; c++) {
+            int j = missing.get(c);
+            data[j] = j == k - 1 ? Arrays.copyOf(rhs[c], lastLength) : rhs[c];
+        }
+        return true;
+    }
+
+    /**
+     * @return C[i][j] for a block of k data pieces.
+     */
+    private static int coefficient(int k, int i, int j) {
+        return inverse((k + i) ^ j);
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * to += c * from, byte by byte.
+     */
+    private static void mulAdd(byte[] to, byte[] from, int c) {
+        byte[] row = MUL[c];
+        for (int b = 0; b < from.length; b++) {
+            to[b] ^= row[from[b] & 0xFF];
+        }
+    }
+
+    private static void scale(byte[] symbol, int c) {
+        byte[] row = MUL[c];
+        for (int b = 0; b < symbol.length; b++) {
+            symbol[b] = row[symbol[b] & 0xFF];
+        }
+    }
+
+    /**
+     * Benchmark and check: code blocks of a few sizes, up to a chunk of a file, lose as many data pieces from each
+     * stripe as it has repair pieces, and rebuild them.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        System.out.println(String.format("%6s %6s %12s %12s %6s", "pieces", "repair", "encode us", "decode us", "ok"));
+        for (int k : new int[]{1, 4, 20, 100, 204, 1000, 13108}) {
+            int m = repairCount(k);
+            byte[] block = new byte[k * Message.MAX_PIECE - random.nextInt(Message.MAX_PIECE)];
+            random.nextBytes(block);
+
+            int rounds = k > 1000 ? 20 : 200;
+            byte[][] repair = null;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                repair = encode(block, m);
+            }
+            long encodeNanos = (System.nanoTime() - start) / rounds;
+
+            boolean ok = true;
+            long decodeNanos = 0;
+            for (int r = 0; r < rounds; r++) {
+                byte[][] data = new byte[k][];
+                for (int j = 0; j < k; j++) {
+                    data[j] = Arrays.copyOfRange(block, j * Message.MAX_PIECE, Math.min(block.length, (j + 1) * Message.MAX_PIECE));
+                }
+                byte[][] lost = data.clone();
+                int stripes = stripes(k, m);
+                for (int s = 0; s < stripes; s++) {
+                    ArrayList<Integer> order = new ArrayList<Integer>();
+                    for (int j = stripeStart(k, stripes, s); j < stripeStart(k, stripes, s + 1); j++) {
+                        order.add(j);
+                    }
+                    Collections.shuffle(order, random);
+                    int losses = Math.min(order.size(), stripeStart(m, stripes, s + 1) - stripeStart(m, stripes, s));
+                    for (int j = 0; j < losses; j++) {
+                        lost[order.get(j)] = null;
+                    }
+                }
+                start = System.nanoTime();
+                ok &= decode(lost, repair);
+                decodeNanos += System.nanoTime() - start;
+                for (int j = 0; j < k; j++) {
+                    ok &= Arrays.equals(lost[j], data[j]);
+                }
+            }
+            System.out.println(String.format("%6d %6d %12.1f %12.1f %6s", k, m, encodeNanos / 1000.0, decodeNanos / 1000.0 / rounds, ok));
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds a FILE block (a chunk of a file; see ChunkStore.java) on disk instead of in memory.
+ * <br>
+ * The file is preallocated as a .partial file in the user's history directory, and every piece is written at its offset
+ * with a positional write as it arrives. Only a bitset of the pieces received is kept in memory, so receiving takes the
+ * same heap whatever the size of the file. Writes go through the assembler's fileWriter thread, so the Receiver never
+ * waits on the disk. Once every piece is in, the file is cut to its exact length, forced, and moved into the ChunkStore.
+ * <br>
+ * The pieces aren't written to the history as well: until the chunk is finished, the partial file is the only copy of
+ * them on disk, and a piece that has left the heap is read back from it (see piece()).
+ * <br>
+ * So that a download survives a restart, the block's metadata and the bitset are checkpointed to a .state file beside
+ * the partial file, at most every CHECKPOINT_INTERVAL and on the way out. A checkpoint first forces the partial file,
+ * so every piece it records is on disk. On startup restore() picks the block up from there.
+ * <br>
+ * A chunk sent with repair pieces (see ErasureCode.java) has them written after its data, MAX_PIECE + 1 bytes each,
+ * and is finished once each stripe has enough pieces in: the data pieces still missing are decoded from the partial
+ * file, and the repair pieces cut off it.
+ * <br>
+ * Before a finished file is kept, its Merkle root is checked against the one its sender published (see MerkleTree.java),
+ * which catches bad pieces that came over paths which aren't checked piece by piece, repair pieces among them.
+ */
+class FileBlockBuilder extends BlockBuilder {
+
+    /**
+     * Least time between checkpoints of a block, in milliseconds.
+     */
+    static long CHECKPOINT_INTERVAL = 2000;
+
+    /**
+     * Date shared by every piece of the block.
+     */
+    public long date;
+
+    /**
+     * Which pieces have arrived, by index within the block.
+     */
+    private BitSet received = new BitSet();
+
+    private int receivedCount = 0;
+
+    /**
+     * Which pieces have reached the partial file, by index within the block. Set on the fileWriter thread.
+     */
+    private BitSet written = new BitSet();
+
+    /**
+     * Length of the file, known once its last piece has arrived; -1 until then.
+     */
+    private long length = -1;
+
+    private Path partialPath;
+
+    private Path statePath;
+
+    private FileChannel partial;
+
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * Start receiving a file.
+     * @param first The first of its pieces to arrive.
+     */
+    public FileBlockBuilder(BlockAssembler parent, Message first) throws IOException {
+        this(parent, first.senderID, first.blockIndex, first.blockOffset, first.blockSize, first.repair, first.date);
+
+        // preallocate, so the pieces fill in a file of the right size rather than growing it piece by piece
+        RandomAccessFile file = new RandomAccessFile(this.partialPath.toFile(), "rw");
+        try {
+            file.setLength(this.position(blockSize));
+        } finally {
+            file.close();
+        }
+    }
+
+    private FileBlockBuilder(BlockAssembler parent, int senderID, int blockIndex, int blockOffset, int blockSize, int repair, long date) throws IOException {
+        super(parent, Message.Type.FILE, senderID, blockIndex, blockOffset, blockSize);
+        this.repair = repair;
+        this.date = date;
+
+        Path directory = directory(parent.chat);
+        Files.createDirectories(directory);
+        this.partialPath = directory.resolve(senderID+"-"+blockIndex+".partial");
+        this.statePath = directory.resolve(senderID+"-"+blockIndex+".state");
+
+        this.partial = FileChannel.open(this.partialPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Pick up a file left part way through by an earlier run, from its .state file.
+     * @return The builder, with the pieces the checkpoint recorded, or null if the state can't be used (it is then deleted).
+     */
+    public static FileBlockBuilder restore(BlockAssembler parent, Path state) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(state)));
+            FileBlockBuilder builder;
+            try {
+                int senderID = in.readInt();
+                int blockIndex = in.readInt();
+                int blockOffset = in.readInt();
+                int blockSize = in.readInt();
+                long date = in.readLong();
+                long length = in.readLong();
+                byte[] bits = new byte[in.readInt()];
+                in.readFully(bits);
+                byte[] root = null;
+                if (in.available() > 0) {
+                    root = new byte[in.readInt()];
+                    in.readFully(root);
+                }
+                int repair = in.available() > 0 ? in.readInt() : 0;
+
+                Path partial = state.resolveSibling(senderID+"-"+blockIndex+".partial");
+                builder = new FileBlockBuilder(parent, senderID, blockIndex, blockOffset, blockSize, repair, date);
+                if (!Files.exists(partial) || Files.size(partial) < builder.position(blockSize)) {
+                    builder.partial.close();
+                    throw new IOException("partial file is missing or short");
+                }
+                builder.length = length;
+                builder.received = BitSet.valueOf(bits);
+                builder.written = BitSet.valueOf(bits);
+                builder.receivedCount = builder.received.cardinality();
+                for (int i = builder.received.nextSetBit(0); i >= 0; i = builder.received.nextSetBit(i + 1)) {
+                    builder.countPiece(i);
+                }
+                if (root != null && root.length == MerkleTree.HASH_SIZE) {
+                    parent.chat.fileRoots.putIfAbsent(BlockFile.key(senderID, blockIndex), root);
+                }
+            } finally {
+                in.close();
+            }
+            while (builder.has(builder.lowestUnreceivedMessage)) {
+                builder.lowestUnreceivedMessage++;
+            }
+            return builder;
+        } catch (IOException e) {
+            System.err.println("Can't resume the download in "+state+": "+e);
+            try {
+                Files.deleteIfExists(state);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Where partial files and their state are kept, for one chat and user.
+     */
+    public static Path directory(Chat chat) {
+        return MessageStore.directoryFor(chat.name, chat.client.user.username).resolve("partial");
+    }
+
+    @Override
+    public void addMessage(Message message){
+        final int index = message.sequenceNumber - this.blockOffset;
+        if(index < 0 || index >= this.blockSize || this.received.get(index))
+            return;
+
+        this.received.set(index);
+        this.receivedCount++;
+        this.countPiece(index);
+        if(index == this.blockSize - this.repair - 1)
+            this.length = (long) index * Message.MAX_PIECE + message.data.length;
+
+        // find new lowest unreceived message
+        while(this.has(this.lowestUnreceivedMessage)){
+            this.lowestUnreceivedMessage++;
+        }
+
+        final byte[] data = message.data;
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try{
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    long position = position(index);
+                    while(buffer.hasRemaining()){
+                        position += partial.write(buffer, position);
+                    }
+                    synchronized(written){
+                        written.set(index);
+                    }
+                }catch(IOException e){
+                    System.err.println("Couldn't write a piece to "+partialPath);
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        if(System.currentTimeMillis() - this.lastCheckpoint >= CHECKPOINT_INTERVAL && !this.isFull())
+            this.checkpoint();
+    }
+
+    /**
+     * Record the pieces received so far in the .state file, on the fileWriter thread once their writes are done.
+     * Must hold the lock on the assembler, like addMessage.
+     */
+    public void checkpoint(){
+        this.lastCheckpoint = System.currentTimeMillis();
+        final byte[] bits = this.received.toByteArray();
+        final byte[] root = this.root();
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try{
+                    if(!partial.isOpen())
+                        return; // finished already
+                    partial.force(false);
+
+                    Path temporary = statePath.resolveSibling(statePath.getFileName()+".tmp");
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+                    try{
+                        out.writeInt(senderID);
+                        out.writeInt(blockIndex);
+                        out.writeInt(blockOffset);
+                        out.writeInt(blockSize);
+                        out.writeLong(date);
+                        out.writeLong(length);
+                        out.writeInt(bits.length);
+                        out.write(bits);
+                        out.writeInt(root == null ? 0 : root.length);
+                        if(root != null)
+                            out.write(root);
+                        out.writeInt(repair);
+                    }finally{
+                        out.close();
+                    }
+                    Files.move(temporary, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }catch(IOException e){
+                    System.err.println("Couldn't checkpoint "+partialPath);
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The block's Merkle root, or null if it has none or it isn't known yet.
+     */
+    private byte[] root(){
+        return this.blockAssembler.chat.fileRoots.get(BlockFile.key(senderID, blockIndex));
+    }
+
+    /**
+     * Read a piece back from the partial file. Needn't hold the lock on the assembler.
+     * @return The piece, without its proof, or null if it hasn't reached the file yet.
+     */
+    public Message piece(int sequenceNumber){
+        int index = sequenceNumber - this.blockOffset;
+        synchronized(this.written){
+            if(index < 0 || index >= this.blockSize || !this.written.get(index))
+                return null;
+        }
+        ByteBuffer buffer;
+        try{
+            buffer = this.read(index);
+        }catch(IOException e){
+            return null; // finished meanwhile; the piece is served from the ChunkStore now
+        }
+        if(buffer == null)
+            return null;
+        Message message = new Message(Message.Type.FILE, buffer.array(), this.senderID, this.blockIndex, this.blockOffset,
+            this.blockSize, sequenceNumber, this.date);
+        message.repair = this.repair;
+        return message;
+    }
+
+    /**
+     * Where a piece goes in the partial file: data pieces first, then repair pieces, which are a byte longer.
+     * @param index The piece's index within the block; blockSize gives the size of the file.
+     */
+    private long position(int index){
+        int k = this.blockSize - this.repair;
+        if(index <= k)
+            return (long) index * Message.MAX_PIECE;
+        return (long) k * Message.MAX_PIECE + (long) (index - k) * (Message.MAX_PIECE + 1);
+    }
+
+    /**
+     * Read a piece that has been written from the partial file.
+     * @return The piece's data, or null if the file is cut short.
+     */
+    private ByteBuffer read(int index) throws IOException {
+        int k = this.blockSize - this.repair;
+        int pieceLength = index >= k ? Message.MAX_PIECE + 1
+            : index == k - 1 ? (int) (this.length - (long) index * Message.MAX_PIECE) : Message.MAX_PIECE;
+        ByteBuffer buffer = ByteBuffer.allocate(pieceLength);
+        long position = this.position(index);
+        while(buffer.hasRemaining()){
+            if(this.partial.read(buffer, position + buffer.position()) < 0)
+                return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Decode the data pieces which didn't arrive from the repair pieces, stripe by stripe, and write them in.
+     * Runs on the fileWriter thread once the block is full, after all its writes.
+     */
+    private void decodeMissing() throws IOException {
+        int k = this.blockSize - this.repair;
+        int stripes = ErasureCode.stripes(k, this.repair);
+        for(int s = 0; s < stripes; s++){
+            int from = ErasureCode.stripeStart(k, stripes, s);
+            int to = ErasureCode.stripeStart(k, stripes, s + 1);
+            if(this.received.nextClearBit(from) >= to)
+                continue;
+
+            byte[][] data = new byte[to - from][];
+            for(int i = from; i < to; i++){
+                if(this.received.get(i))
+                    data[i - from] = this.read(i).array();
+            }
+            int repairFrom = ErasureCode.stripeStart(this.repair, stripes, s);
+            byte[][] repairs = new byte[ErasureCode.stripeStart(this.repair, stripes, s + 1) - repairFrom][];
+            for(int i = 0; i < repairs.length; i++){
+                if(this.received.get(k + repairFrom + i))
+                    repairs[i] = this.read(k + repairFrom + i).array();
+            }
+            if(!ErasureCode.decodeStripe(data, repairs))
+                throw new IOException("not enough repair pieces to rebuild the missing ones");
+
+            for(int i = from; i < to; i++){
+                if(this.received.get(i))
+                    continue;
+                if(i == k - 1)
+                    this.length = (long) i * Message.MAX_PIECE + data[i - from].length;
+                ByteBuffer buffer = ByteBuffer.wrap(data[i - from]);
+                long position = this.position(i);
+                while(buffer.hasRemaining()){
+                    position += this.partial.write(buffer, position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Repair pieces aren't kept: the missing data pieces are decoded when the chunk is finished.
+     */
+    @Override
+    public List<Message> recover(){
+        return new ArrayList<Message>();
+    }
+
+    /**
+     * @return Which pieces have arrived, by index within the block.
+     */
+    public BitSet received(){
+        return (BitSet) this.received.clone();
+    }
+
+    @Override
+    public boolean has(int sequenceNumber){
+        int index = sequenceNumber - this.blockOffset;
+        return index >= 0 && index < this.blockSize && this.received.get(index);
+    }
+
+    @Override
+    public boolean isFull(){
+        return this.repair == 0 ? this.receivedCount == this.blockSize : this.stripesReady();
+    }
+
+    @Override
+    public double getProgress(){
+        return Math.min(1.0, ((double) this.receivedCount)/(this.blockSize - this.repair));
+    }
+
+    /**
+     * The chunk's bytes so far, read back from the partial file once the writes queued before the call are done.
+     * A full chunk is normally moved into the ChunkStore with finish() instead. Must not be called on the fileWriter thread.
+     */
+    @Override
+    public byte[] getBinary(){
+        Future<byte[]> read = this.blockAssembler.fileWriter.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate((int) (length >= 0 ? length : position(blockSize - repair)));
+                while(buffer.hasRemaining() && partial.read(buffer, buffer.position()) >= 0){
+                }
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            }
+        });
+        try{
+            return read.get();
+        }catch(Exception e){
+            System.err.println("Couldn't read back "+partialPath+": "+e);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Once every piece has been written, move the complete chunk into the ChunkStore, and register it in
+     * Chat.blockFiles so peers can fetch it in bulk.
+     * Runs on the fileWriter thread after all the block's writes; call only when the block is full.
+     *
+     * @param done Run with the chunk in the store, or not run if it couldn't be finished.
+     */
+    public void finish(final Runnable done){
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try{
+                    if(repair > 0)
+                        decodeMissing();
+                    partial.truncate(length);
+                    partial.force(true);
+                    partial.close();
+
+                    // pieces fetched over TCP weren't checked one by one; check the whole chunk before keeping it
+                    Chat chat = blockAssembler.chat;
+                    MerkleTree tree = ChunkStore.add(chat, partialPath, root());
+                    Files.deleteIfExists(partialPath);
+                    Files.deleteIfExists(statePath);
+                    if(tree == null){
+                        System.err.println("A file from "+chat.whatsHisName(senderID)+" doesn't match what was sent; fetching part of it again");
+                        chat.discardBlock(senderID, blockIndex, blockOffset, blockSize, repair);
+                        return;
+                    }
+
+                    // serve the pieces from the chunk from now on, rather than from the partial file
+                    BlockFile blockFile = new BlockFile(ChunkStore.path(tree.root()), senderID, blockIndex, blockOffset, blockSize, date, length);
+                    chat.publishTree(blockFile, tree);
+                    chat.addFileSource(new FileBlockSource(chat, blockFile));
+                    done.run();
+                }catch(IOException e){
+                    System.err.println("Couldn't finish "+partialPath);
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Give up on building the block, because it's already on disk: close and delete the partial file and its state.
+     * Runs on the fileWriter thread after the block's writes.
+     */
+    public void abandon(){
+        this.blockAssembler.fileWriter.execute(new Runnable() {
+            public void run() {
+                try{
+                    partial.close();
+                    Files.deleteIfExists(partialPath);
+                    Files.deleteIfExists(statePath);
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+}
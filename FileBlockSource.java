@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A FILE block I'm sending, served straight from the file rather than from Message objects on the heap.
+ * <br>
+ * The file is memory-mapped (in regions, so files over 2 GB work) and a piece is only made into a Message when
+ * something asks for it: a peer's REQUEST, a HISTORY request, the advertising thread, or building its Merkle tree.
+ * Sending a file therefore costs a mapping and a few fields however big the file is, and the input thread
+ * returns as soon as the file is mapped. Runs on its own thread to advertise the pieces with HAVEs.
+ * The file must not be changed or truncated while it is being sent.
+ * <br>
+ * A block with repair pieces (see ErasureCode.java) has them after the file's pieces; a repair piece is made by coding
+ * its stripe of the file when it's asked for, and the stripe's repair pieces are kept until another stripe is coded.
+ */
+public class FileBlockSource implements Runnable {
+
+    /**
+     * Pieces per mapped region; regions hold whole pieces and stay under 2 GB.
+     */
+    static int REGION_PIECES = (1 << 30) / Message.MAX_PIECE;
+
+    public Chat chat;
+
+    public BlockFile block;
+
+    private MappedByteBuffer[] regions;
+
+    /**
+     * The stripe last coded, and its repair pieces.
+     */
+    private int lastStripe = -1;
+    private byte[][] stripeRepair;
+
+    /**
+     * Maps the file.
+     * @param block Where the file is and which of my sequence numbers its pieces have.
+     */
+    public FileBlockSource(Chat chat, BlockFile block) throws IOException {
+        this.chat = chat;
+        this.block = block;
+
+        long regionBytes = (long) REGION_PIECES * Message.MAX_PIECE;
+        this.regions = new MappedByteBuffer[(int) ((block.length + regionBytes - 1) / regionBytes)];
+        FileChannel channel = FileChannel.open(block.path, StandardOpenOption.READ);
+        try {
+            for (int i = 0; i < this.regions.length; i++) {
+                long start = i * regionBytes;
+                this.regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionBytes, block.length - start));
+            }
+        } finally {
+            channel.close(); // the mappings stay valid
+        }
+    }
+
+    /**
+     * @return true if this sequence number is one of the block's pieces.
+     */
+    public boolean contains(int sequenceNumber) {
+        return sequenceNumber >= this.block.blockOffset && sequenceNumber - this.block.blockOffset < this.block.blockSize;
+    }
+
+    /**
+     * Make a piece of the block, read from the mapping.
+     * @param sequenceNumber One of the block's sequence numbers.
+     */
+    public Message piece(int sequenceNumber) {
+        int index = sequenceNumber - this.block.blockOffset;
+        int k = this.block.dataPieces();
+        byte[] data = index < k ? this.data(index, index + 1) : this.repairPiece(index - k);
+        Message message = new Message(Message.Type.FILE, data, this.block.senderID, this.block.blockIndex,
+            this.block.blockOffset, this.block.blockSize, sequenceNumber, this.block.date);
+        message.repair = this.block.blockSize - k;
+        return message;
+    }
+
+    /**
+     * Read the bytes of a run of the file's pieces from the mapping.
+     * @param from Index of the first piece.
+     * @param to Index of the piece after the last.
+     */
+    private byte[] data(int from, int to) {
+        long start = (long) from * Message.MAX_PIECE;
+        byte[] data = new byte[(int) (Math.min((long) to * Message.MAX_PIECE, this.block.length) - start)];
+        long regionBytes = (long) REGION_PIECES * Message.MAX_PIECE;
+        int copied = 0;
+        while (copied < data.length) {
+            long at = start + copied;
+            ByteBuffer region = this.regions[(int) (at / regionBytes)].duplicate();
+            region.position((int) (at % regionBytes));
+            int length = Math.min(data.length - copied, region.remaining());
+            region.get(data, copied, length);
+            copied += length;
+        }
+        return data;
+    }
+
+    /**
+     * Make one of the block's repair pieces by coding its stripe.
+     * @param index Index of the piece among the repair pieces.
+     */
+    private synchronized byte[] repairPiece(int index) {
+        int k = this.block.dataPieces();
+        int repair = this.block.blockSize - k;
+        int stripes = ErasureCode.stripes(k, repair);
+        int stripe = ErasureCode.stripeOf(repair, stripes, index);
+        if (stripe != this.lastStripe) {
+            byte[] stripeData = this.data(ErasureCode.stripeStart(k, stripes, stripe), ErasureCode.stripeStart(k, stripes, stripe + 1));
+            this.stripeRepair = ErasureCode.encodeStripe(stripeData,
+                ErasureCode.stripeStart(repair, stripes, stripe + 1) - ErasureCode.stripeStart(repair, stripes, stripe));
+            this.lastStripe = stripe;
+        }
+        return this.stripeRepair[index - ErasureCode.stripeStart(repair, stripes, stripe)];
+    }
+
+    /**
+     * Advertise every piece, in order, so peers start asking for them.
+     * The block's Merkle tree must be published first (see Chat.publishTree).
+     */
+    public void run() {
+        this.advertiseFrom(0);
+    }
+
+    /**
+     * Advertise the pieces from this index within the block on, in order; the ones before were advertised already.
+     */
+    public void advertiseFrom(int first) {
+        for (int i = first; i < this.block.blockSize; i++) {
+            try {
+                this.chat.advertise(this.piece(this.block.blockOffset + i));
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The MANIFEST block which stands for a file: the chunks it's made of, in order (see ChunkStore.java).
+ * Each chunk is a FILE block of the same sender, named here by its block metadata and Merkle root, so a receiver
+ * knows which chunks it holds already before any of their pieces are advertised.
+ * <br>
+ * A file sent as a delta (see Delta.java) also names its base, an earlier file in the chat, and lists the operations
+ * which rebuild it from the base; its chunks then hold only the literal bytes.
+ * <br>
+ * Format: date (8 bytes), file length (8 bytes), chunk count (4 bytes), then for each chunk: block index,
+ * block offset, block size (4 bytes each), length (8 bytes), compressed flag (1 byte) and Merkle root.
+ * For a delta, then: the base's BlockFile.key (8 bytes), operation count (4 bytes), and each operation's
+ * base offset and length (8 bytes each).
+ */
+public class FileManifest {
+
+    public int senderID;
+
+    /**
+     * Index of the manifest's own block.
+     */
+    public int blockIndex;
+
+    /**
+     * Date shared by the manifest and every piece of its chunks.
+     */
+    public long date;
+
+    /**
+     * Length of the file.
+     */
+    public long length;
+
+    public ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+    /**
+     * For a delta, the BlockFile.key of the base's manifest; otherwise null.
+     */
+    public Long base = null;
+
+    /**
+     * For a delta, the operations which rebuild the file from the base and the chunks (see Delta.java).
+     */
+    public ArrayList<long[]> ops = new ArrayList<long[]>();
+
+    /**
+     * Where the file is on this machine: where it was sent from or saved to. Not packed.
+     */
+    public Path local = null;
+
+    /**
+     * One chunk of the file: a FILE block of the manifest's sender.
+     */
+    public static class Chunk {
+        public int blockIndex;
+        public int blockOffset;
+
+        /**
+         * Pieces in the chunk's block: the chunk's own, then any repair pieces (see ErasureCode.java).
+         */
+        public int blockSize;
+
+        /**
+         * Length of the chunk as sent, and as kept in the ChunkStore.
+         */
+        public long length;
+
+        /**
+         * Was the chunk compressed on its own (see BlockCodec.java)? Then it's inflated as the file is put together.
+         */
+        public boolean compressed;
+
+        public byte[] root;
+
+        public Chunk(int blockIndex, int blockOffset, int blockSize, long length, boolean compressed, byte[] root) {
+            this.blockIndex = blockIndex;
+            this.blockOffset = blockOffset;
+            this.blockSize = blockSize;
+            this.length = length;
+            this.compressed = compressed;
+            this.root = root;
+        }
+
+        /**
+         * A piece's worth of the chunk's block metadata.
+         */
+        public Message metadata(int senderID, long date) {
+            Message metadata = new Message(Message.Type.FILE, null, senderID, this.blockIndex, this.blockOffset, this.blockSize, this.blockOffset, date);
+            metadata.repair = this.blockSize - (int) ((this.length + Message.MAX_PIECE - 1) / Message.MAX_PIECE);
+            return metadata;
+        }
+    }
+
+    /**
+     * Bytes per chunk in a packed manifest.
+     */
+    private static final int CHUNK_SIZE = 4 * 3 + 8 + 1 + MerkleTree.HASH_SIZE;
+
+    public FileManifest(int senderID, int blockIndex, long date, long length) {
+        this.senderID = senderID;
+        this.blockIndex = blockIndex;
+        this.date = date;
+        this.length = length;
+    }
+
+    public byte[] pack() {
+        int deltaSize = this.base == null ? 0 : 8 + 4 + this.ops.size() * 16;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + this.chunks.size() * CHUNK_SIZE + deltaSize);
+        buffer.putLong(this.date);
+        buffer.putLong(this.length);
+        buffer.putInt(this.chunks.size());
+        for (Chunk chunk : this.chunks) {
+            buffer.putInt(chunk.blockIndex);
+            buffer.putInt(chunk.blockOffset);
+            buffer.putInt(chunk.blockSize);
+            buffer.putLong(chunk.length);
+            buffer.put((byte) (chunk.compressed ? 1 : 0));
+            buffer.put(chunk.root);
+        }
+        if (this.base != null) {
+            buffer.putLong(this.base);
+            buffer.putInt(this.ops.size());
+            for (long[] op : this.ops) {
+                buffer.putLong(op[0]);
+                buffer.putLong(op[1]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param binary The manifest block's bytes.
+     * @param lastPiece A piece of the manifest block, for its sender and index.
+     * @return The manifest, or null if the block isn't a valid manifest.
+     */
+    public static FileManifest unpack(byte[] binary, Message lastPiece) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(binary);
+            FileManifest manifest = new FileManifest(lastPiece.senderID, lastPiece.blockIndex, buffer.getLong(), buffer.getLong());
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / CHUNK_SIZE) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                int blockIndex = buffer.getInt();
+                int blockOffset = buffer.getInt();
+                int blockSize = buffer.getInt();
+                long length = buffer.getLong();
+                boolean compressed = buffer.get() != 0;
+                byte[] root = new byte[MerkleTree.HASH_SIZE];
+                buffer.get(root);
+                manifest.chunks.add(new Chunk(blockIndex, blockOffset, blockSize, length, compressed, root));
+            }
+            if (buffer.hasRemaining()) {
+                manifest.base = buffer.getLong();
+                int ops = buffer.getInt();
+                if (ops < 0 || ops > buffer.remaining() / 16) {
+                    return null;
+                }
+                for (int i = 0; i < ops; i++) {
+                    manifest.ops.add(new long[]{buffer.getLong(), buffer.getLong()});
+                }
+            }
+            return manifest;
+        } catch (BufferUnderflowException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Keep the manifest on disk: of a file still being received, so it can be put together after a restart,
+     * or of a file sent or received, so later files can be sent as deltas against it.
+     * Kept with where the file is on this machine.
+     * @return Where it was kept.
+     */
+    public Path save(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(this.senderID+"-"+this.blockIndex+".manifest");
+        Path temporary = directory.resolve(file.getFileName()+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+        try {
+            out.writeUTF(this.local == null ? "" : this.local.toString());
+            out.write(this.pack());
+        } finally {
+            out.close();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    /**
+     * Read back a manifest kept by save().
+     * @return The manifest, or null if the file isn't one.
+     */
+    public static FileManifest load(Path file) throws IOException {
+        String[] name = file.getFileName().toString().replace(".manifest", "").split("-");
+        try {
+            Message kept = new Message(Message.Type.MANIFEST, null, Integer.parseInt(name[0]), Integer.parseInt(name[1]), 0, 0, 0, 0);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+            String local = in.readUTF();
+            byte[] packed = new byte[in.available()];
+            in.readFully(packed);
+            FileManifest manifest = unpack(packed, kept);
+            if (manifest != null && !local.isEmpty()) {
+                manifest.local = Paths.get(local);
+            }
+            return manifest;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException | EOFException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param known Files sent or received in the chat, by BlockFile.key of their manifests, for a delta's base.
+     * @return true if every chunk is in the ChunkStore, and so is the base's (and its base's, and so on).
+     */
+    public boolean isComplete(Map<Long, FileManifest> known) {
+        for (Chunk chunk : this.chunks) {
+            if (!Files.exists(ChunkStore.path(chunk.root))) {
+                return false;
+            }
+        }
+        if (this.base == null) {
+            return true;
+        }
+        FileManifest base = known.get(this.base);
+        return base != null && base != this && base.isComplete(known);
+    }
+
+    /**
+     * Put the file back together from its chunks, inflating those that were sent compressed.
+     * A delta is rebuilt from its base, which is put together from the ChunkStore too, as it was sent.
+     * @param destination Where the file goes. It is replaced.
+     * @param known Files sent or received in the chat, by BlockFile.key of their manifests; must complete this one.
+     */
+    public void assemble(Path destination, Map<Long, FileManifest> known) throws IOException {
+        Files.createDirectories(ChunkStore.directory());
+        Path joined = Files.createTempFile(ChunkStore.directory(), "file", ".tmp");
+        Path baseCopy = null;
+        Path rebuilt = null;
+        try {
+            this.join(joined);
+            if (this.base == null) {
+                this.check(joined);
+                Files.move(joined, destination, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+
+            baseCopy = Files.createTempFile(ChunkStore.directory(), "base", ".tmp");
+            known.get(this.base).assemble(baseCopy, known);
+            rebuilt = Files.createTempFile(ChunkStore.directory(), "file", ".tmp");
+            FileChannel out = FileChannel.open(rebuilt, StandardOpenOption.WRITE);
+            try {
+                Delta.apply(baseCopy, joined, this.ops, out);
+                out.force(false);
+            } finally {
+                out.close();
+            }
+            this.check(rebuilt);
+            Files.move(rebuilt, destination, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(joined);
+            if (baseCopy != null) {
+                Files.deleteIfExists(baseCopy);
+            }
+            if (rebuilt != null) {
+                Files.deleteIfExists(rebuilt);
+            }
+        }
+    }
+
+    /**
+     * Concatenate the chunks, inflating those that were sent compressed.
+     */
+    private void join(Path into) throws IOException {
+        FileChannel out = FileChannel.open(into, StandardOpenOption.WRITE);
+        try {
+            for (Chunk chunk : this.chunks) {
+                Path stored = ChunkStore.path(chunk.root);
+                if (chunk.compressed) {
+                    out.write(ByteBuffer.wrap(BlockCodec.decompress(Files.readAllBytes(stored))));
+                    continue;
+                }
+                FileChannel in = FileChannel.open(stored, StandardOpenOption.READ);
+                try {
+                    long copied = 0;
+                    while (copied < chunk.length) {
+                        long n = in.transferTo(copied, chunk.length - copied, out);
+                        if (n <= 0) {
+                            throw new EOFException("chunk "+stored+" is cut short");
+                        }
+                        copied += n;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            out.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void check(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size != this.length) {
+            throw new IOException("the file comes out at "+size+" bytes, not "+this.length);
+        }
+    }
+}
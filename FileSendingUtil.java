@@ -22,6 +22,21 @@ public class FileSendingUtil {
      */
     public File file = null;
 
+    /**
+     * An earlier file in the chat which the file is a revision of; only the changes are sent. Null to send it all.
+     */
+    public File base = null;
+
+    /**
+     * Super-seed the file (see SuperSeeder.java), so I upload about one copy of it however many peers there are.
+     */
+    public boolean superSeed = false;
+
+    /**
+     * Send the file with repair pieces (see ErasureCode.java), so a receiver missing a few pieces needn't wait for them.
+     */
+    public boolean repair = false;
+
     /**
      * Helper function for determining if a line of text signals that
      * the user wants to send a file. If returns true, then an actual
@@ -35,6 +50,15 @@ public class FileSendingUtil {
      *     > Enter the path to the file you'd like to send
      *     /path/to/file.txt
      *     > Done.
+     *
+     * A revision of a file sent or received in the chat earlier can be sent as the changes since then:
+     *     /sendfile --base /path/to/old.txt /path/to/new.txt
+     *
+     * A large file for many peers can be super-seeded, so the peers pass it on instead of all fetching it from me:
+     *     /sendfile --superseed /path/to/file.iso
+     *
+     * A file can be sent with repair pieces, so peers on lossy links finish it without asking for the pieces they missed:
+     *     /sendfile --repair /path/to/file.iso
      * 
      * @param message the text that the user entered
      * @return true if and only if the user wants to send file
@@ -62,8 +86,24 @@ public class FileSendingUtil {
 
         // if format: /sendfile /path/to/file.txt try to load file
         String []tokens = message.split(" ");
-        if(tokens.length > 1){
-            this.file = new File(tokens[1]);
+        int next = 1;
+        while(tokens.length > next && tokens[next].startsWith("--")){
+            if(tokens[next].equals("--superseed")){
+                this.superSeed = true;
+                next++;
+            }else if(tokens[next].equals("--repair")){
+                this.repair = true;
+                next++;
+            }else if(tokens[next].equals("--base") && tokens.length > next + 1){
+                this.base = new File(tokens[next + 1]);
+                next += 2;
+            }else{
+                System.out.println("Unknown option "+tokens[next]);
+                return false;
+            }
+        }
+        if(tokens.length > next){
+            this.file = new File(tokens[next]);
         }
 
         InputStreamReader converter = new InputStreamReader(System.in);
@@ -96,13 +136,76 @@ public class FileSendingUtil {
     }
 
     /**
-     * Save this file to the current directory and notify the user.
+     * Keep a chunk of a file that was received in memory, because it couldn't be written to disk as it arrived.
+     * It goes into the ChunkStore like any other chunk, and is registered so peers can fetch it from me in bulk.
      *
-     * @param data the data to handle
-     * @param senderID the ID of the sender
+     * @param data the chunk's bytes
+     * @param lastPiece the piece which completed the chunk
      * @return true if successfully handled, else false
      */
-    public boolean handleReceivingFile(byte [] data, int senderID){
+    public boolean handleReceivingFile(byte [] data, Message lastPiece){
+        int senderID = lastPiece.senderID;
+        Path temporary = null;
+        try{
+            Files.createDirectories(ChunkStore.directory());
+            temporary = Files.createTempFile(ChunkStore.directory(), "chunk", ".tmp");
+            Files.write(temporary, data);
+
+            MerkleTree tree = ChunkStore.add(chat, temporary, chat.rootOf(lastPiece));
+            if(tree == null){
+                System.err.println("A file from "+chat.whatsHisName(senderID)+" doesn't match what was sent; fetching part of it again");
+                chat.discardBlock(senderID, lastPiece.blockIndex, lastPiece.blockOffset, lastPiece.blockSize, lastPiece.repair);
+                return false;
+            }
+            BlockFile blockFile = new BlockFile(ChunkStore.path(tree.root()), senderID, lastPiece.blockIndex, lastPiece.blockOffset,
+                lastPiece.blockSize, lastPiece.date, data.length);
+            chat.publishTree(blockFile, tree);
+            chat.blockFiles.put(BlockFile.key(senderID, lastPiece.blockIndex), blockFile);
+            chat.checkPendingFiles();
+            return true;
+        }catch(Exception e){
+            System.err.println("Couldn't keep part of a file from "+chat.whatsHisName(senderID));
+            e.printStackTrace();
+            return false;
+        }finally{
+            try{
+                if(temporary != null)
+                    Files.deleteIfExists(temporary);
+            }catch(IOException ignored){
+            }
+        }
+    }
+
+    /**
+     * Move a chunk of a file that was written to disk as it arrived into the ChunkStore.
+     * The move happens once the last of its pieces has been written, on the assembler's file writer.
+     *
+     * @param builder the block the chunk was written by; must be full
+     * @return true if the move was scheduled, else false
+     */
+    public boolean handleReceivingFile(FileBlockBuilder builder){
+        builder.finish(new Runnable() {
+            public void run() {
+                chat.checkPendingFiles();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Save a file whose chunks are all in the ChunkStore to the current directory and notify the user.
+     * A seed leaves the file in the ChunkStore instead. Runs on the assembler's file writer.
+     *
+     * @param manifest the file's manifest; every chunk must be in the store
+     * @return true if successfully saved, else false
+     */
+    public boolean handleReceivingFile(FileManifest manifest){
+        int senderID = manifest.senderID;
+        if(chat.client.seed){
+            // a seed serves the chunks from the ChunkStore; nobody needs a copy of the file
+            System.out.println("Cached a file from "+chat.whatsHisName(senderID));
+            return true;
+        }
         String whereToPutIt = "";
         try{
             // get the name of cwd
@@ -111,10 +214,10 @@ public class FileSendingUtil {
 
             // get the name of a unique file in the current directory
             whereToPutIt = File.createTempFile("user."+senderID, ".file", new File(cwd)).getPath();
-            
-            System.out.println(chat.whatsHisName(senderID)+" sent a file, saving to "+whereToPutIt);
 
-            Files.write(Paths.get(whereToPutIt), data);
+            manifest.assemble(Paths.get(whereToPutIt), chat.files);
+            chat.recordFile(manifest, Paths.get(whereToPutIt));
+            System.out.println(chat.whatsHisName(senderID)+" sent a file, saving to "+whereToPutIt);
             return true;
         }catch(Exception e){
             System.err.println("Couldn't save file "+whereToPutIt);
@@ -127,10 +230,9 @@ public class FileSendingUtil {
     private void sendFile(){
         // TODO ASCII progress bar!
         try{
-            byte[] fileBinary = Files.readAllBytes(file.toPath());
-            this.chat.newBlock(fileBinary);
+            this.chat.newFile(file.toPath(), base == null ? null : base.toPath(), superSeed, repair);
         }catch(Exception e){
-            System.err.println("FileSendingUtil: Couldn't read in file binary");
+            System.err.println("FileSendingUtil: Couldn't map file");
             e.printStackTrace();
         }
     }
@@ -20,6 +20,43 @@ public class Group {
      */
     public String name = null;
 
+    /**
+     * Version of the membership, bumped by every join and leave.
+     * Only meaningful on the Server.
+     */
+    public int version = 0;
+
+    /**
+     * A version no log covers, for a client that must get the full member list (see packDelta).
+     */
+    public static final int NO_VERSION = Integer.MIN_VALUE;
+
+    /**
+     * How long a member stays in the group without renewing its lease, in milliseconds.
+     */
+    static long LEASE_DURATION = 60000;
+
+    /**
+     * How many membership changes are remembered for sending deltas.
+     * Clients that are further behind get the whole member list instead.
+     */
+    static int MAX_LOG = 1024;
+
+    /**
+     * Recent membership changes, oldest first, for sending deltas.
+     */
+    private ArrayDeque<MembershipChange> log = new ArrayDeque<MembershipChange>();
+
+    /**
+     * When each member's lease runs out, by userID.
+     */
+    private HashMap<Integer, Long> leases = new HashMap<Integer, Long>();
+
+    /**
+     * Where the Server makes membership changes durable, or null.
+     */
+    public ServerJournal journal = null;
+
     /**
      * Creates an empty group chat.
      * @param name The name of the group chat.
@@ -57,8 +94,217 @@ public class Group {
      * @param user User to be added to group chat.
      */
     public void joinGroup(User user) {
-        System.out.println("User "+user.username+" at IP "+user.address+" at port "+user.port+" joined group "+this.name);
         this.users.add(user);
+        this.leases.put(user.userID, System.currentTimeMillis() + LEASE_DURATION);
+        this.record(new MembershipChange(++this.version, user, user.userID));
+    }
+
+    /**
+     * Removes a user from the group chat
+     * @param userID ID of the user leaving.
+     * @return true if the user was in the group.
+     */
+    public boolean leaveGroup(int userID) {
+        Iterator<User> userIterator = this.users.iterator();
+        while (userIterator.hasNext()) {
+            if (userIterator.next().userID == userID) {
+                userIterator.remove();
+                this.leases.remove(userID);
+                this.record(new MembershipChange(++this.version, null, userID));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extend a member's lease.
+     * @param userID ID of the member renewing.
+     * @return false if the user isn't a member (e.g. its lease already ran out).
+     */
+    public boolean renewLease(int userID) {
+        if (!this.leases.containsKey(userID)) {
+            return false;
+        }
+        this.leases.put(userID, System.currentTimeMillis() + LEASE_DURATION);
+        return true;
+    }
+
+    /**
+     * Merge in a group handed over by another directory shard. Members not already here join with fresh leases.
+     * The versions the members hold came from the other shard, so the version jumps past both and the log is dropped,
+     * which sends every member the full list on its next renewal.
+     * @param other The group as the other shard had it, with its version.
+     */
+    public void adopt(Group other) {
+        for (User user : other.users) {
+            if (!this.leases.containsKey(user.userID)) {
+                this.joinGroup(user);
+            }
+        }
+        this.version = Math.max(this.version, other.version) + 1;
+        this.log.clear();
+    }
+
+    /**
+     * Remove members whose leases have run out.
+     * @return Number of members removed.
+     */
+    public int expireLeases(long now) {
+        ArrayList<Integer> expired = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Long> lease : this.leases.entrySet()) {
+            if (lease.getValue() < now) {
+                expired.add(lease.getKey());
+            }
+        }
+        for (Integer userID : expired) {
+            this.leaveGroup(userID);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Describe the changes since a version the client already holds.
+     * Format: current version (4 bytes), then 0 followed by a list of changes, or 1 followed by the full member list
+     * in pack() format if the client is too far behind for the log.
+     * Each change is a user ID (4 bytes) followed by that user's pack() for a join, or an empty byte array for a leave.
+     * @param sinceVersion The version the client holds, or NO_VERSION for the full member list.
+     * @return A byte[] for sending over the wire.
+     */
+    public byte[] packDelta(int sinceVersion) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(this.version, byteStream);
+
+        // the log must reach back to the client's version (it may be empty after a restart or a handoff)
+        MembershipChange oldest = this.log.peekFirst();
+        boolean covered = sinceVersion != NO_VERSION && (sinceVersion == this.version
+            || (oldest != null && sinceVersion >= oldest.version - 1 && sinceVersion <= this.version));
+        boolean tooOld = !covered;
+
+        try {
+            if (tooOld) {
+                IOHelper.writeInt(1, byteStream);
+                byteStream.write(this.pack());
+                return byteStream.toByteArray();
+            }
+
+            ArrayList<MembershipChange> changes = new ArrayList<MembershipChange>();
+            for (MembershipChange change : this.log) {
+                if (change.version > sinceVersion) {
+                    changes.add(change);
+                }
+            }
+
+            IOHelper.writeInt(0, byteStream);
+            IOHelper.writeInt(changes.size(), byteStream);
+            for (MembershipChange change : changes) {
+                IOHelper.writeInt(change.userID, byteStream);
+                IOHelper.writeByteArray(change.user == null ? new byte[0] : change.user.pack(), byteStream);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Apply a delta from packDelta to a Chat: add joined users, remove users whose leases ran out.
+     * A full member list only adds users, since members who joined through a peer aren't known to the Server.
+     * Nor does it bring back a user I just found dead: the Server only drops it once its lease runs out.
+     * @param chat The chat to update.
+     * @param input Stream containing the delta.
+     * @return The version the chat now holds.
+     */
+    public static int applyDelta(Chat chat, BufferedInputStream input) throws IOException {
+        int version = IOHelper.getInt(input);
+
+        ArrayList<User> joined = new ArrayList<User>();
+        ArrayList<Integer> left = new ArrayList<Integer>();
+
+        if (IOHelper.getInt(input) == 1) {
+            Group group = Group.unpack(chat.name, input);
+            if (group == null) {
+                throw new IOException("Bad member list");
+            }
+            joined.addAll(group.users);
+        } else {
+            int changeCount = IOHelper.getInt(input);
+            for (int i = 0; i < changeCount; i++) {
+                int userID = IOHelper.getInt(input);
+                byte[] userBinary = IOHelper.getByteArray(input);
+                if (userBinary.length == 0) {
+                    left.add(userID);
+                } else {
+                    joined.add(User.unpack(new BufferedInputStream(new ByteArrayInputStream(userBinary))));
+                }
+            }
+        }
+
+        for (User user : joined) {
+            if (user != null && user.userID != chat.hostID && !chat.peerExchange.recentlyDeparted(user.userID)
+                    && chat.makeFriend(user) != null) {
+                System.out.println(user.username+" has joined the chat");
+            }
+        }
+        for (Integer userID : left) {
+            Peer peer = chat.checkAddressBook(userID);
+            if (peer != null) {
+                chat.removePeer(peer);
+            }
+        }
+
+        return version;
+    }
+
+    /**
+     * Put back a member from a snapshot, with a fresh lease.
+     * @param user The member.
+     */
+    public void restoreUser(User user) {
+        this.users.add(user);
+        this.leases.put(user.userID, System.currentTimeMillis() + LEASE_DURATION);
+    }
+
+    /**
+     * Replay a change from the journal. Changes at or below the current version are already reflected and are skipped.
+     * @param change The change, with the version it produced.
+     */
+    public void restoreChange(MembershipChange change) {
+        if (change.version <= this.version) {
+            return;
+        }
+        if (change.user != null) {
+            this.restoreUser(change.user);
+            change.userID = change.user.userID;
+        } else {
+            Iterator<User> userIterator = this.users.iterator();
+            while (userIterator.hasNext()) {
+                if (userIterator.next().userID == change.userID) {
+                    userIterator.remove();
+                }
+            }
+            this.leases.remove(change.userID);
+        }
+        this.version = change.version;
+        this.log.addLast(change);
+        while (this.log.size() > MAX_LOG) {
+            this.log.removeFirst();
+        }
+    }
+
+    /**
+     * Remember a change for deltas, forgetting the oldest beyond MAX_LOG.
+     */
+    private void record(MembershipChange change) {
+        if (this.journal != null) {
+            this.journal.logChange(this.name, change);
+        }
+        this.log.addLast(change);
+        while (this.log.size() > MAX_LOG) {
+            this.log.removeFirst();
+        }
     }
 
     /**
@@ -70,8 +316,6 @@ public class Group {
         
         IOHelper.writeInt(this.users.size(), byteStream);
 
-        System.out.println("There are "+this.users.size()+" users");
-
         Iterator<User> userIterator = this.users.iterator();
         while (userIterator.hasNext()) {
             User user = userIterator.next();
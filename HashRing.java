@@ -0,0 +1,75 @@
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Consistent-hash ring of directory Server shards, keyed by group name.
+ * Each shard is placed on the ring at VIRTUAL_NODES points, so groups spread evenly and a shard joining or leaving
+ * only moves the groups next to its points.
+ */
+public class HashRing {
+
+    /**
+     * Points on the ring per shard.
+     */
+    static int VIRTUAL_NODES = 64;
+
+    private TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+
+    /**
+     * @param shards The shards currently on the ring.
+     */
+    public HashRing(Collection<InetSocketAddress> shards) {
+        for (InetSocketAddress shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                this.ring.put(hash(name(shard)+"#"+i), shard);
+            }
+        }
+    }
+
+    /**
+     * @return The shard which owns this group, or null if the ring is empty.
+     */
+    public InetSocketAddress ownerOf(String groupName) {
+        if (this.ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, InetSocketAddress> owner = this.ring.ceilingEntry(hash(groupName));
+        if (owner == null) {
+            owner = this.ring.firstEntry(); // wrap around
+        }
+        return owner.getValue();
+    }
+
+    /**
+     * Canonical name of a shard, the same on every server.
+     */
+    public static String name(InetSocketAddress shard) {
+        return shard.getAddress().getHostAddress()+":"+shard.getPort();
+    }
+
+    /**
+     * Parse "host:port".
+     */
+    public static InetSocketAddress parse(String shard) throws UnknownHostException {
+        int colon = shard.lastIndexOf(':');
+        return new InetSocketAddress(InetAddress.getByName(shard.substring(0, colon)), Integer.parseInt(shard.substring(colon + 1)));
+    }
+
+    /**
+     * First 8 bytes of the MD5 of a string.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.US_ASCII));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every JVM has MD5
+        }
+    }
+}
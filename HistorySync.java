@@ -0,0 +1,273 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Catches a newcomer up on the chat history sent before it joined, over TCP rather than piece by piece over UDP.
+ * <br>
+ * Asks a few peers what they hold (Seeder.SUMMARY; the member I joined through already told me), splits the pieces
+ * I'm missing into runs of at most CHUNK pieces, spreads the runs over the peers holding them, and fetches runs from
+ * several peers at once (Seeder.HISTORY). Each peer streams a whole run in one response, straight into
+ * Chat.haveFromHistory. Runs that couldn't be fetched are planned again, from the peers still answering.
+ */
+public class HistorySync implements Runnable {
+
+    /**
+     * Most peers asked for their summaries.
+     */
+    static int SOURCES = 4;
+
+    /**
+     * Most pieces asked for in one request.
+     */
+    static int CHUNK = 8192;
+
+    /**
+     * Requests in flight at once.
+     */
+    static int PARALLEL = 4;
+
+    /**
+     * Planning rounds, for retrying runs whose peer failed.
+     */
+    static int ROUNDS = 3;
+
+    /**
+     * Give up on a peer which sends nothing for this long, in milliseconds.
+     */
+    static int TIMEOUT = 5000;
+
+    public Chat chat;
+
+    private ExecutorService fetchers = Executors.newFixedThreadPool(PARALLEL);
+
+    public HistorySync(Chat chat) {
+        this.chat = chat;
+    }
+
+    public void run() {
+        try {
+            sync();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.fetchers.shutdown();
+        }
+    }
+
+    /**
+     * Fetch everything my sources hold that I don't.
+     */
+    public void sync() throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        ArrayList<Peer> sources = this.findSources();
+        if (sources.isEmpty()) {
+            return;
+        }
+
+        long fetched = 0;
+        for (int round = 0; round < ROUNDS && !sources.isEmpty(); round++) {
+            ArrayList<Callable<Long>> fetches = new ArrayList<Callable<Long>>();
+            final HashMap<Callable<Long>, Peer> fetchedFrom = new HashMap<Callable<Long>, Peer>();
+            for (Map.Entry<Peer, ArrayList<int[]>> plan : this.plan(sources).entrySet()) {
+                final Peer peer = plan.getKey();
+                ArrayList<int[]> runs = plan.getValue();
+
+                // batch the peer's runs into requests of about CHUNK pieces
+                int from = 0;
+                while (from < runs.size()) {
+                    int to = from;
+                    int pieces = 0;
+                    while (to < runs.size() && (pieces == 0 || pieces + runs.get(to)[2] - runs.get(to)[1] <= CHUNK)) {
+                        pieces += runs.get(to)[2] - runs.get(to)[1];
+                        to++;
+                    }
+                    final List<int[]> request = runs.subList(from, to);
+                    Callable<Long> fetch = new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return fetch(HistorySync.this.chat, peer, request);
+                        }
+                    };
+                    fetches.add(fetch);
+                    fetchedFrom.put(fetch, peer);
+                    from = to;
+                }
+            }
+            if (fetches.isEmpty()) {
+                break;
+            }
+
+            List<Future<Long>> results = this.fetchers.invokeAll(fetches);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    fetched += results.get(i).get();
+                } catch (ExecutionException ex) {
+                    Peer failed = fetchedFrom.get(fetches.get(i));
+                    System.err.println("Couldn't fetch history from "+failed.user.username+": "+ex.getCause());
+                    sources.remove(failed);
+                }
+            }
+        }
+
+        if (fetched > 0) {
+            System.out.println("Caught up on "+fetched+" pieces of history in "+(System.currentTimeMillis() - start)+" ms");
+        }
+    }
+
+    /**
+     * Pick peers to sync from and make sure I know what each of them holds.
+     */
+    private ArrayList<Peer> findSources() {
+        ArrayList<Peer> candidates = new ArrayList<Peer>();
+        synchronized (this.chat.peers) {
+            candidates.addAll(this.chat.peers);
+        }
+        Collections.shuffle(candidates);
+
+        ArrayList<Peer> sources = new ArrayList<Peer>();
+        for (Peer peer : candidates) {
+            if (sources.size() >= SOURCES) {
+                break;
+            }
+            if (peer.pieceSummary == null) {
+                try {
+                    peer.pieceSummary = this.askForSummary(peer);
+                } catch (IOException ex) {
+                    continue;
+                }
+            }
+            sources.add(peer);
+        }
+        return sources;
+    }
+
+    /**
+     * Decide which peer to fetch each missing piece from.
+     * Every run of CHUNK pieces any source holds is a candidate; the candidates are taken in random order,
+     * so the pieces several sources hold are spread over them.
+     * @return For each peer, the {sender, from, to} runs to fetch from it.
+     */
+    private HashMap<Peer, ArrayList<int[]>> plan(ArrayList<Peer> sources) {
+        ArrayList<Object[]> candidates = new ArrayList<Object[]>();
+        for (Peer peer : sources) {
+            for (Map.Entry<Integer, ArrayList<int[]>> entry : peer.pieceSummary.ranges.entrySet()) {
+                for (int[] range : entry.getValue()) {
+                    for (int from = range[0]; from < range[1]; from += CHUNK) {
+                        candidates.add(new Object[]{peer, new int[]{entry.getKey(), from, Math.min(from + CHUNK, range[1])}});
+                    }
+                }
+            }
+        }
+        Collections.shuffle(candidates);
+
+        HashMap<Integer, BitSet> claimed = new HashMap<Integer, BitSet>();
+        HashMap<Peer, ArrayList<int[]>> plan = new HashMap<Peer, ArrayList<int[]>>();
+        for (Object[] candidate : candidates) {
+            Peer peer = (Peer) candidate[0];
+            int[] run = (int[]) candidate[1];
+            int senderID = run[0];
+            if (senderID == this.chat.hostID) {
+                continue;
+            }
+
+            BitSet senderClaimed = claimed.get(senderID);
+            if (senderClaimed == null) {
+                senderClaimed = new BitSet();
+                claimed.put(senderID, senderClaimed);
+            }
+
+            // split the run around the pieces I have or another peer was already picked for
+            int runStart = -1;
+            for (int sequenceNumber = run[1]; sequenceNumber <= run[2]; sequenceNumber++) {
+                boolean wanted = sequenceNumber < run[2] && !senderClaimed.get(sequenceNumber)
+                    && !this.chat.hasMessage(senderID, sequenceNumber);
+                if (wanted && runStart < 0) {
+                    runStart = sequenceNumber;
+                } else if (!wanted && runStart >= 0) {
+                    ArrayList<int[]> runs = plan.get(peer);
+                    if (runs == null) {
+                        runs = new ArrayList<int[]>();
+                        plan.put(peer, runs);
+                    }
+                    runs.add(new int[]{senderID, runStart, sequenceNumber});
+                    senderClaimed.set(runStart, sequenceNumber);
+                    runStart = -1;
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Ask a peer which pieces it holds.
+     */
+    private PieceSummary askForSummary(Peer peer) throws IOException {
+        Socket socket = connect(peer);
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            IOHelper.writeInt(Seeder.SUMMARY, byteStream);
+            socket.getOutputStream().write(byteStream.toByteArray());
+            return PieceSummary.unpack(new BufferedInputStream(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Fetch runs of pieces from one peer, in one request. Also used by Reconciliation.
+     * @param runs {sender, from, to} runs.
+     * @return Number of pieces received.
+     */
+    public static long fetch(Chat chat, Peer peer, List<int[]> runs) throws IOException {
+        Socket socket = connect(peer);
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            IOHelper.writeInt(Seeder.HISTORY, byteStream);
+            IOHelper.writeInt(runs.size(), byteStream);
+            for (int[] run : runs) {
+                IOHelper.writeInt(run[0], byteStream);
+                IOHelper.writeInt(run[1], byteStream);
+                IOHelper.writeInt(run[2], byteStream);
+            }
+            socket.getOutputStream().write(byteStream.toByteArray());
+
+            BufferedInputStream inFromPeer = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            long received = 0;
+            while (IOHelper.getInt(inFromPeer) == Seeder.MORE) {
+                Message message = Message.unpack(inFromPeer);
+                if (message == null) {
+                    throw new IOException("Bad piece");
+                }
+                int length = IOHelper.getInt(inFromPeer);
+                if (length < 0 || length > 4 + MerkleTree.HASH_SIZE * 33) {
+                    throw new IOException("Bad piece payload");
+                }
+                byte[] payload = new byte[length];
+                new DataInputStream(inFromPeer).readFully(payload);
+                if (!chat.verifyPiece(message, peer.user.userID, payload)) {
+                    // the rest of the runs are asked of someone else
+                    throw new IOException("Piece doesn't match its block's Merkle root");
+                }
+                chat.haveFromHistory(message, peer.user.userID);
+                received++;
+            }
+            return received;
+        } finally {
+            socket.close();
+        }
+    }
+
+    public static Socket connect(Peer peer) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(peer.user.address, peer.user.dataPort), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }
+}
@@ -19,8 +19,9 @@ public class IOHelper {
     public static void writeInt(int number, ByteArrayOutputStream byteStream) {
         // same pack ideas as used in Transport.java, part of Fishnet.
         byte[] byteArray = (BigInteger.valueOf(number)).toByteArray();
+        // sign-extend, so negative numbers survive the trip
         for (int i = 0; i < 4 - byteArray.length; i++) {
-            byteStream.write(0);
+            byteStream.write(number < 0 ? 0xFF : 0);
         }
         byteStream.write(byteArray, 0, Math.min(byteArray.length, 4));
     }
@@ -33,8 +34,9 @@ public class IOHelper {
     public static void writeLong(long number, ByteArrayOutputStream byteStream) {
         // same pack ideas as used in Transport.java, part of Fishnet.
         byte[] byteArray = (BigInteger.valueOf(number)).toByteArray();
+        // sign-extend, so negative numbers survive the trip
         for (int i = 0; i < 8 - byteArray.length; i++) {
-            byteStream.write(0);
+            byteStream.write(number < 0 ? 0xFF : 0);
         }
         byteStream.write(byteArray, 0, Math.min(byteArray.length, 8));
     }
@@ -0,0 +1,92 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * Keeps a client's place in its Server group by renewing its lease, and keeps the client's
+ * peer list in step with the Server by fetching only the membership changes since the version it holds.
+ * Only runs for clients that joined through the Server.
+ */
+public class LeaseRenewer implements Runnable {
+
+    /**
+     * Time between renewals, in milliseconds; well inside Group.LEASE_DURATION.
+     */
+    static long INTERVAL = Group.LEASE_DURATION / 3;
+
+    /**
+     * Give up on an unresponsive Server after this long, in milliseconds, and try again next time.
+     */
+    static int TIMEOUT = 5000;
+
+    public Client client;
+
+    public InetAddress serverAddress;
+
+    public int serverPort;
+
+    /**
+     * The membership version this client holds.
+     */
+    public int version;
+
+    public LeaseRenewer(Client client, InetAddress serverAddress, int serverPort, int version){
+        this.client = client;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.version = version;
+    }
+
+    /**
+     * Renew once and apply the changes since my version.
+     * If the directory is sharded and the chat has moved to another shard, follow it there.
+     */
+    public void renew() throws IOException {
+        for (int hop = 0; hop <= Client.MAX_REDIRECTS; hop++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(this.serverAddress, this.serverPort), TIMEOUT);
+                socket.setSoTimeout(TIMEOUT);
+
+                BufferedInputStream inFromServer = new BufferedInputStream(socket.getInputStream());
+                DataOutputStream outToServer = new DataOutputStream(socket.getOutputStream());
+
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                IOHelper.writeInt(Server.RENEW, byteStream);
+                IOHelper.writeString(this.client.chat.name, byteStream);
+                byteStream.write(this.client.user.pack());
+                IOHelper.writeInt(this.version, byteStream);
+                outToServer.write(byteStream.toByteArray());
+                outToServer.flush();
+
+                if (IOHelper.getInt(inFromServer) == Server.REDIRECT) {
+                    this.serverAddress = InetAddress.getByName(IOHelper.getString(inFromServer));
+                    this.serverPort = IOHelper.getInt(inFromServer);
+                    continue;
+                }
+                // otherwise renewed or rejoined; either way I'm a member again
+                this.version = Group.applyDelta(this.client.chat, inFromServer);
+                return;
+            } finally {
+                socket.close();
+            }
+        }
+        throw new IOException("Too many redirects from the directory");
+    }
+
+    public void run(){
+        while(true){
+            try{
+                Thread.sleep(INTERVAL);
+            }catch (Exception e){
+                System.err.println("LeaseRenewer: Thread can't sleep");
+                e.printStackTrace();
+            }
+
+            try{
+                renew();
+            }catch (IOException e){
+                System.err.println("Couldn't renew lease with the server: "+e);
+            }
+        }
+    }
+}
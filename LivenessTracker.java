@@ -0,0 +1,311 @@
+import java.util.*;
+
+/**
+ * Scheduled liveness service for a Chat.
+ * Keeps a phi-accrual failure detector for every peer, fed by every control packet received from that peer
+ * (not just ALIVE), and runs on its own thread so dead peers are found even when the chat is quiet.
+ * </br>
+ * Liveness piggy-backs on normal traffic: a peer the chat is busy with is only probed with a KEEPALIVE once it has
+ * been silent for PROBE_AFTER, and a peer that has only been answering probes once it has been silent for
+ * SILENCE_THRESHOLD, so in an active chat there is almost no keepalive traffic at all, and a quiet chat is cheap.
+ * The suspicion level is measured from the first probe a peer hasn't answered, against how long it takes to answer
+ * probes, so a dead peer is found a few seconds after it's first probed however long the quiet between probes.
+ * Pings to silent peers are single and staggered so there is never a burst of KEEPALIVEs to the whole group at once.
+ * In large chats the Membership gossip protocol probes and removes peers instead; this tracker then only
+ * keeps the heartbeat histories up to date.
+ * See Hayashibara et al., "The phi accrual failure detector".
+ */
+public class LivenessTracker implements Runnable {
+
+    /**
+     * How often the scheduler wakes up, in milliseconds.
+     */
+    static long TICK = 100;
+
+    /**
+     * How long a peer that has only been answering probes must go without sending us anything before it's probed
+     * again, in milliseconds. This is the heartbeat of a quiet chat, so it stays cheap however long the chat runs.
+     */
+    static long SILENCE_THRESHOLD = 20000;
+
+    /**
+     * How long a peer the chat has been busy with must go without sending us anything before it's probed, in milliseconds.
+     */
+    static long PROBE_AFTER = 3000;
+
+    /**
+     * How often a probed peer that stays silent is sent another KEEPALIVE, in milliseconds, in case one was lost.
+     */
+    static long HEARTBEAT_INTERVAL = 1000;
+
+    /**
+     * Suspicion level above which a peer is considered dead.
+     * A phi of 8 means there is roughly a 1 in 10^8 chance the peer is actually alive.
+     */
+    static double PHI_THRESHOLD = 8.0;
+
+    /**
+     * Suspicion level above which a peer that is heard from again is reconciled with (see Reconciliation.java):
+     * it was silent long enough that pieces it or I advertised in the meantime may have been missed.
+     */
+    static double SUSPICION_THRESHOLD = 1.0;
+
+    /**
+     * Extra silence, in milliseconds, that is tolerated on top of the time a peer usually takes to answer a probe:
+     * two lost KEEPALIVEs or ALIVEs, plus GC pauses, a busy Receiver thread, etc.
+     */
+    static long ACCEPTABLE_PAUSE = 2 * HEARTBEAT_INTERVAL + 1000;
+
+    /**
+     * Lower bound on the standard deviation of probe round trips, so a very regular peer
+     * isn't declared dead the moment it is a little late.
+     */
+    static double MIN_STD_DEVIATION = 200;
+
+    /**
+     * Number of probe round trips remembered per peer.
+     */
+    static int MAX_SAMPLES = 100;
+
+    public Chat chat;
+
+    /**
+     * Map a peer's userID to the history of when we heard from it.
+     */
+    public HashMap<Integer, HeartbeatHistory> histories;
+
+    private Random random = new Random();
+
+    public LivenessTracker(Chat chat){
+        this.chat = chat;
+        this.histories = new HashMap<Integer, HeartbeatHistory>();
+    }
+
+    /**
+     * Record that some packet arrived from this peer.
+     * Any packet counts as a heartbeat, not just ALIVE.
+     * A peer which had been silent long enough to be suspected is reconciled with.
+     * @param type The packet's type: anything but a KEEPALIVE or ALIVE means the chat is busy with the peer.
+     */
+    public void heardFrom(int peerID, ControlPacket.Type type){
+        long now = System.currentTimeMillis();
+        boolean busy = type != ControlPacket.Type.KEEPALIVE && type != ControlPacket.Type.ALIVE;
+        double suspicion;
+        synchronized (this.histories) {
+            HeartbeatHistory history = this.historyFor(peerID, now);
+            suspicion = history.phi(now);
+            history.heartbeat(now);
+            // peers which all went quiet together aren't all pinged at once
+            long quiet = busy ? PROBE_AFTER : SILENCE_THRESHOLD;
+            history.nextPing = now + quiet + (long)(random.nextDouble() * quiet / 4);
+        }
+
+        // in large chats peers hear from each other rarely, and Membership does this instead
+        if(suspicion > SUSPICION_THRESHOLD && !this.chat.membership.isActive()){
+            if(this.chat.client.receiver.DEBUG) System.out.println(this.chat.whatsHisName(peerID)+" is back after phi "+suspicion);
+            this.chat.reconcileWith(peerID);
+        }
+    }
+
+    /**
+     * Current suspicion level for this peer. 0 means we just heard from it;
+     * anything over PHI_THRESHOLD means it is presumed dead.
+     */
+    public double phi(int peerID){
+        long now = System.currentTimeMillis();
+        synchronized (this.histories) {
+            HeartbeatHistory history = this.histories.get(peerID);
+            if(history == null)
+                return 0.0;
+            return history.phi(now);
+        }
+    }
+
+    /**
+     * Stop tracking a peer (it left or was removed).
+     */
+    public void forget(int peerID){
+        synchronized (this.histories) {
+            this.histories.remove(peerID);
+        }
+    }
+
+    /**
+     * One run of the scheduler: send the KEEPALIVEs that are due and remove the peers
+     * whose suspicion level has crossed the threshold.
+     */
+    public void tick(){
+        if(this.chat.membership.isActive())
+            return;
+
+        long now = System.currentTimeMillis();
+        ArrayList<Peer> toPing = new ArrayList<Peer>();
+        ArrayList<Peer> dead = new ArrayList<Peer>();
+
+        synchronized (this.chat.peers) {
+            synchronized (this.histories) {
+                HashSet<Integer> present = new HashSet<Integer>();
+
+                for(Peer peer : this.chat.peers){
+                    int peerID = peer.user.userID;
+                    present.add(peerID);
+
+                    HeartbeatHistory history = this.historyFor(peerID, now);
+
+                    if(history.phi(now) > PHI_THRESHOLD){
+                        dead.add(peer);
+                    }else if(now >= history.nextPing){
+                        toPing.add(peer);
+                        history.probed(now);
+                        history.nextPing = now + HEARTBEAT_INTERVAL;
+                    }
+                }
+
+                // drop histories of peers which are no longer in the chat
+                this.histories.keySet().retainAll(present);
+            }
+        }
+
+        for(Peer peer : dead){
+            if(this.chat.client.receiver.DEBUG) System.out.println(peer.user.username+" has phi "+this.phi(peer.user.userID));
+            this.chat.removePeer(peer);
+        }
+
+        for(Peer peer : toPing){
+            this.chat.sendKeepAlive(peer);
+        }
+    }
+
+    public void run(){
+        while(true){
+            try{
+                Thread.sleep(TICK);
+            }catch (Exception e){
+                System.err.println("LivenessTracker: Thread can't sleep");
+                e.printStackTrace();
+            }
+
+            try{
+                tick();
+            }catch (Exception e){
+                // never let one bad round kill the liveness thread
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gets the history for a peer, creating it if this is the first we've heard of the peer.
+     * Must hold the lock on histories.
+     */
+    private HeartbeatHistory historyFor(int peerID, long now){
+        HeartbeatHistory history = this.histories.get(peerID);
+        if(history == null){
+            // stagger first pings to avoid bursts
+            history = new HeartbeatHistory(now, now + PROBE_AFTER + (long)(random.nextDouble() * PROBE_AFTER));
+            this.histories.put(peerID, history);
+        }
+        return history;
+    }
+}
+
+/**
+ * Sliding window of how long one peer took to answer probes, and the probe it hasn't answered yet,
+ * from which the phi suspicion level is computed.
+ */
+class HeartbeatHistory {
+
+    /**
+     * Ring buffer of probe round trips, in milliseconds.
+     */
+    private long[] intervals = new long[LivenessTracker.MAX_SAMPLES];
+
+    private int count = 0;
+
+    private int next = 0;
+
+    private double sum = 0;
+
+    private double sumOfSquares = 0;
+
+    /**
+     * When we last heard anything from this peer.
+     */
+    public long lastHeard;
+
+    /**
+     * When this peer is next due a KEEPALIVE.
+     */
+    public long nextPing;
+
+    /**
+     * When this peer was sent the first probe it hasn't answered, or 0 if it has answered them all,
+     * and when it was sent the latest.
+     */
+    private long firstProbe = 0;
+    private long lastProbe;
+
+    public HeartbeatHistory(long now, long nextPing){
+        this.lastHeard = now;
+        this.nextPing = nextPing;
+
+        // seed with a guess so a brand new peer isn't judged on one sample
+        long guess = 100;
+        this.addInterval(guess / 2);
+        this.addInterval(guess + guess / 2);
+    }
+
+    /**
+     * The peer was heard from; if it was being probed, that's the answer.
+     */
+    public void heartbeat(long now){
+        if(this.firstProbe != 0){
+            this.addInterval(now - this.lastProbe);
+            this.firstProbe = 0;
+        }
+        this.lastHeard = now;
+    }
+
+    /**
+     * The peer was just sent a probe.
+     */
+    public void probed(long now){
+        if(this.firstProbe == 0)
+            this.firstProbe = now;
+        this.lastProbe = now;
+    }
+
+    /**
+     * Phi = -log10(probability that the answer to the first unanswered probe arrives later than now),
+     * assuming normally distributed round trips. A peer that isn't being probed isn't suspected at all.
+     */
+    public double phi(long now){
+        if(this.firstProbe == 0)
+            return 0.0;
+        double mean = this.sum / this.count + LivenessTracker.ACCEPTABLE_PAUSE;
+        double variance = this.sumOfSquares / this.count - (this.sum / this.count) * (this.sum / this.count);
+        double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), LivenessTracker.MIN_STD_DEVIATION);
+
+        // logistic approximation of the normal CDF
+        double y = (now - this.firstProbe - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if(now - this.firstProbe > mean)
+            return -Math.log10(e / (1.0 + e));
+        else
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private void addInterval(long interval){
+        if(this.count == this.intervals.length){
+            long old = this.intervals[this.next];
+            this.sum -= old;
+            this.sumOfSquares -= (double) old * old;
+        }else{
+            this.count++;
+        }
+        this.intervals[this.next] = interval;
+        this.next = (this.next + 1) % this.intervals.length;
+        this.sum += interval;
+        this.sumOfSquares += (double) interval * interval;
+    }
+}
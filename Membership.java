@@ -0,0 +1,661 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * SWIM-style membership for large chats.
+ * See Das, Gupta and Motivala, "SWIM: Scalable Weakly-consistent Infection-style Process Group Membership Protocol".
+ * </br>
+ * Once a chat has at least GOSSIP_THRESHOLD members, the full-mesh KEEPALIVEs of the LivenessTracker and the
+ * TCP business cards sent to every member are replaced by:
+ * <ul>
+ * <li>one PING per protocol period, to a member chosen in randomized round-robin order,</li>
+ * <li>PING_REQ to a few other members if the PING isn't ACKed in time, so they probe on our behalf,</li>
+ * <li>SUSPECT / DEAD / LEAVE / ALIVE (join) events piggy-backed on PING, PING_REQ and ACK packets.</li>
+ * </ul>
+ * Every client answers PING and PING_REQ and applies gossip whether or not it is probing itself,
+ * so clients in small-chat mode still interoperate with clients in gossip mode.
+ */
+public class Membership implements Runnable {
+
+    /**
+     * Chats with at least this many members (including me) use gossip membership.
+     */
+    static int GOSSIP_THRESHOLD = 64;
+
+    /**
+     * Length of a protocol period, in milliseconds. One member is probed per period.
+     */
+    static long PROTOCOL_PERIOD = 1000;
+
+    /**
+     * How long to wait for a direct ACK before asking others to probe, in milliseconds.
+     */
+    static long PING_TIMEOUT = 300;
+
+    /**
+     * Number of members asked to probe indirectly with PING_REQ.
+     */
+    static int INDIRECT_PROBES = 3;
+
+    /**
+     * A suspected member is declared dead after SUSPICION_MULTIPLIER * log2(N) protocol periods.
+     */
+    static int SUSPICION_MULTIPLIER = 4;
+
+    /**
+     * Each update is piggy-backed GOSSIP_MULTIPLIER * log2(N) times before it is dropped.
+     */
+    static int GOSSIP_MULTIPLIER = 3;
+
+    /**
+     * Maximum number of updates piggy-backed on one packet, to stay within a datagram.
+     */
+    static int MAX_GOSSIP = 6;
+
+    public Chat chat;
+
+    /**
+     * My incarnation number. Only I may increase it, to refute suspicion.
+     */
+    public int incarnation = 0;
+
+    /**
+     * What I know about each member, by userID.
+     */
+    private HashMap<Integer, MemberState> members = new HashMap<Integer, MemberState>();
+
+    /**
+     * Incarnations of members declared dead or gone, so stale gossip doesn't resurrect them.
+     */
+    private HashMap<Integer, Integer> departed = new HashMap<Integer, Integer>();
+
+    /**
+     * Updates waiting to be piggy-backed, with the number of times each was sent.
+     */
+    private ArrayList<MembershipUpdate> gossip = new ArrayList<MembershipUpdate>();
+
+    /**
+     * Probes I am waiting on an ACK for, by probe ID.
+     * For PINGs sent on someone else's behalf, remembers whom to forward the ACK to.
+     */
+    private HashMap<Integer, Probe> probes = new HashMap<Integer, Probe>();
+
+    private int nextProbeID = 0;
+
+    /**
+     * Members in the order they will be probed; reshuffled after each pass.
+     */
+    private ArrayList<Integer> probeOrder = new ArrayList<Integer>();
+
+    private Random random = new Random();
+
+    public Membership(Chat chat){
+        this.chat = chat;
+    }
+
+    /**
+     * Is this chat big enough for gossip membership?
+     */
+    public boolean isActive(){
+        return this.chat.peers.size() + 1 >= GOSSIP_THRESHOLD;
+    }
+
+    /**
+     * Announce that I joined, instead of giving every member a business card.
+     * The ALIVE update is piggy-backed on my probes until the group has heard about it,
+     * and a few members are pinged straight away so the news starts spreading at once.
+     */
+    public void announceJoin(User me){
+        this.enqueue(new MembershipUpdate(MembershipUpdate.Kind.ALIVE, me.userID, this.incarnation, me));
+
+        ArrayList<Peer> firstContacts = this.randomPeers(INDIRECT_PROBES, -1);
+        for(Peer peer : firstContacts){
+            this.sendProbePacket(ControlPacket.Type.PING, peer, this.newProbe(peer.user.userID, -1, 0).probeID, peer.user.userID);
+        }
+    }
+
+    /**
+     * Tell a few members I am leaving, so they don't have to detect it.
+     */
+    public void announceLeave(){
+        this.enqueue(new MembershipUpdate(MembershipUpdate.Kind.LEAVE, this.chat.hostID, this.incarnation, null));
+
+        for(Peer peer : this.randomPeers(INDIRECT_PROBES, -1)){
+            this.sendProbePacket(ControlPacket.Type.PING, peer, -1, peer.user.userID);
+        }
+    }
+
+    /**
+     * A member joined through some other channel (e.g. a business card); spread the news.
+     */
+    public void learnedAbout(User user){
+        this.enqueue(new MembershipUpdate(MembershipUpdate.Kind.ALIVE, user.userID, 0, user));
+    }
+
+    /**
+     * Someone probed me. Reply with an ACK carrying my gossip.
+     */
+    public void receivedPing(ControlPacket packet){
+        int[] header = this.handlePayload(packet);
+        if(header == null)
+            return;
+
+        Peer prober = this.chat.checkAddressBook(packet.senderID);
+        if(prober != null && header[0] >= 0)
+            this.sendProbePacket(ControlPacket.Type.ACK, prober, header[0], this.chat.hostID);
+    }
+
+    /**
+     * Someone wants me to probe a member they couldn't reach.
+     */
+    public void receivedPingRequest(ControlPacket packet){
+        int[] header = this.handlePayload(packet);
+        if(header == null)
+            return;
+
+        Peer target = this.chat.checkAddressBook(header[1]);
+        if(target == null)
+            return;
+
+        Probe probe = this.newProbe(target.user.userID, packet.senderID, header[0]);
+        this.sendProbePacket(ControlPacket.Type.PING, target, probe.probeID, target.user.userID);
+    }
+
+    /**
+     * An ACK for one of my probes, or for one I sent on someone else's behalf.
+     */
+    public void receivedAck(ControlPacket packet){
+        int[] header = this.handlePayload(packet);
+        if(header == null)
+            return;
+
+        Probe probe;
+        synchronized (this.probes) {
+            probe = this.probes.remove(header[0]);
+        }
+        if(probe == null)
+            return;
+
+        probe.acked = true;
+
+        if(probe.onBehalfOf >= 0){
+            Peer requester = this.chat.checkAddressBook(probe.onBehalfOf);
+            if(requester != null)
+                this.sendProbePacket(ControlPacket.Type.ACK, requester, probe.requesterProbeID, probe.target);
+        }else{
+            this.refuteOrClear(probe.target);
+        }
+    }
+
+    /**
+     * Run SWIM protocol periods forever. Does nothing while the chat is small.
+     */
+    public void run(){
+        while(true){
+            try{
+                if(this.isActive()){
+                    this.protocolPeriod();
+                }else{
+                    Thread.sleep(PROTOCOL_PERIOD);
+                }
+            }catch (InterruptedException e){
+                System.err.println("Membership: Thread can't sleep");
+                e.printStackTrace();
+            }catch (Exception e){
+                // never let one bad round kill the membership thread
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One protocol period: probe one member directly, then indirectly, then suspect it.
+     */
+    private void protocolPeriod() throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        Peer target = this.nextTarget();
+        if(target != null){
+            Probe probe = this.newProbe(target.user.userID, -1, 0);
+            this.sendProbePacket(ControlPacket.Type.PING, target, probe.probeID, target.user.userID);
+
+            Thread.sleep(PING_TIMEOUT);
+
+            if(!probe.acked){
+                for(Peer helper : this.randomPeers(INDIRECT_PROBES, target.user.userID)){
+                    this.sendProbePacket(ControlPacket.Type.PING_REQ, helper, probe.probeID, target.user.userID);
+                }
+            }
+
+            Thread.sleep(Math.max(0, PROTOCOL_PERIOD - (System.currentTimeMillis() - start)));
+
+            synchronized (this.probes) {
+                this.probes.remove(probe.probeID);
+            }
+
+            if(!probe.acked){
+                this.suspect(target.user.userID);
+            }
+        }else{
+            Thread.sleep(PROTOCOL_PERIOD);
+        }
+
+        this.expireSuspects();
+        this.expireProbes();
+    }
+
+    /**
+     * Next member to probe, in randomized round-robin order.
+     */
+    private Peer nextTarget(){
+        while(true){
+            Integer nextID;
+            synchronized (this.probeOrder) {
+                if(this.probeOrder.isEmpty()){
+                    synchronized (this.chat.peers) {
+                        for(Peer peer : this.chat.peers)
+                            this.probeOrder.add(peer.user.userID);
+                    }
+                    Collections.shuffle(this.probeOrder, this.random);
+                    if(this.probeOrder.isEmpty())
+                        return null;
+                }
+                nextID = this.probeOrder.remove(this.probeOrder.size() - 1);
+            }
+
+            Peer peer = this.chat.checkAddressBook(nextID);
+            if(peer != null)
+                return peer;
+        }
+    }
+
+    /**
+     * Pick up to count members at random, excluding one ID.
+     */
+    private ArrayList<Peer> randomPeers(int count, int excludedID){
+        ArrayList<Peer> candidates = new ArrayList<Peer>();
+        synchronized (this.chat.peers) {
+            for(Peer peer : this.chat.peers){
+                if(peer.user.userID != excludedID)
+                    candidates.add(peer);
+            }
+        }
+        Collections.shuffle(candidates, this.random);
+        while(candidates.size() > count)
+            candidates.remove(candidates.size() - 1);
+        return candidates;
+    }
+
+    private Probe newProbe(int target, int onBehalfOf, int requesterProbeID){
+        Probe probe = new Probe();
+        probe.target = target;
+        probe.onBehalfOf = onBehalfOf;
+        probe.requesterProbeID = requesterProbeID;
+        probe.sent = System.currentTimeMillis();
+        synchronized (this.probes) {
+            probe.probeID = this.nextProbeID++;
+            this.probes.put(probe.probeID, probe);
+        }
+        return probe;
+    }
+
+    /**
+     * Forget probes sent on others' behalf which were never answered.
+     */
+    private void expireProbes(){
+        long now = System.currentTimeMillis();
+        synchronized (this.probes) {
+            Iterator<Probe> iterator = this.probes.values().iterator();
+            while(iterator.hasNext()){
+                if(now - iterator.next().sent > PROTOCOL_PERIOD)
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A probe failed: start suspecting the member and tell the group.
+     */
+    private void suspect(int userID){
+        MembershipUpdate update;
+        synchronized (this.members) {
+            MemberState state = this.stateOf(userID);
+            if(state.suspected)
+                return;
+            state.suspected = true;
+            state.suspectedSince = System.currentTimeMillis();
+            update = new MembershipUpdate(MembershipUpdate.Kind.SUSPECT, userID, state.incarnation, null);
+        }
+        if(this.chat.client.receiver.DEBUG) System.out.println(this.chat.whatsHisName(userID)+" is suspected");
+        this.enqueue(update);
+    }
+
+    /**
+     * A member answered one of my probes; if I was suspecting it, stop, and reconcile with it
+     * (see Reconciliation.java), since pieces advertised while it was unreachable may have been missed.
+     */
+    private void refuteOrClear(int userID){
+        boolean wasSuspected = false;
+        synchronized (this.members) {
+            MemberState state = this.members.get(userID);
+            if(state != null){
+                wasSuspected = state.suspected;
+                state.suspected = false;
+            }
+        }
+        if(wasSuspected)
+            this.chat.reconcileWith(userID);
+    }
+
+    /**
+     * Declare dead the members which stayed suspected for too long.
+     */
+    private void expireSuspects(){
+        long timeout = SUSPICION_MULTIPLIER * this.log2GroupSize() * PROTOCOL_PERIOD;
+        long now = System.currentTimeMillis();
+
+        ArrayList<MembershipUpdate> confirmed = new ArrayList<MembershipUpdate>();
+        synchronized (this.members) {
+            for(Map.Entry<Integer, MemberState> entry : this.members.entrySet()){
+                MemberState state = entry.getValue();
+                if(state.suspected && now - state.suspectedSince > timeout)
+                    confirmed.add(new MembershipUpdate(MembershipUpdate.Kind.DEAD, entry.getKey(), state.incarnation, null));
+            }
+        }
+
+        for(MembershipUpdate update : confirmed){
+            this.apply(update);
+        }
+    }
+
+    /**
+     * Apply an update, from gossip or from my own detector.
+     * Updates that change my view are queued to be spread further.
+     */
+    private void apply(MembershipUpdate update){
+        if(update.userID == this.chat.hostID){
+            // someone thinks I'm suspect or dead: refute with a higher incarnation
+            if(update.kind != MembershipUpdate.Kind.ALIVE && update.kind != MembershipUpdate.Kind.LEAVE && update.incarnation >= this.incarnation){
+                this.incarnation = update.incarnation + 1;
+                this.enqueue(new MembershipUpdate(MembershipUpdate.Kind.ALIVE, this.chat.hostID, this.incarnation, this.chat.client.user));
+            }
+            return;
+        }
+
+        boolean changed = false;
+        Peer gone = null;
+        boolean joined = false;
+
+        synchronized (this.members) {
+            Integer departedIncarnation = this.departed.get(update.userID);
+            Peer peer = this.chat.checkAddressBook(update.userID);
+            MemberState state = this.stateOf(update.userID);
+
+            switch(update.kind){
+                case ALIVE:
+                if(peer == null){
+                    if(update.user == null || (departedIncarnation != null && update.incarnation <= departedIncarnation))
+                        break;
+                    this.departed.remove(update.userID);
+                    state.incarnation = update.incarnation;
+                    state.suspected = false;
+                    joined = true;
+                    changed = true;
+                }else if(update.incarnation > state.incarnation){
+                    state.incarnation = update.incarnation;
+                    state.suspected = false;
+                    changed = true;
+                }
+                break;
+
+                case SUSPECT:
+                if(peer != null && update.incarnation >= state.incarnation && !state.suspected){
+                    state.incarnation = update.incarnation;
+                    state.suspected = true;
+                    state.suspectedSince = System.currentTimeMillis();
+                    changed = true;
+                }
+                break;
+
+                case DEAD:
+                case LEAVE:
+                if(peer == null && (departedIncarnation == null || update.incarnation > departedIncarnation)){
+                    // never met it, but PEX shouldn't bring it to me now
+                    this.members.remove(update.userID);
+                    this.departed.put(update.userID, update.incarnation);
+                    this.chat.peerExchange.departed(update.userID);
+                }else if(peer != null && update.incarnation >= state.incarnation){
+                    this.members.remove(update.userID);
+                    this.departed.put(update.userID, update.incarnation);
+                    gone = peer;
+                    changed = true;
+                }
+                break;
+            }
+        }
+
+        if(joined && this.chat.makeFriend(update.user) != null){
+            System.out.println(update.user.username+" has joined the chat");
+        }
+        if(gone != null){
+            this.chat.removePeer(gone);
+        }
+        if(changed){
+            this.enqueue(update);
+        }
+    }
+
+    /**
+     * Must hold the lock on members.
+     */
+    private MemberState stateOf(int userID){
+        MemberState state = this.members.get(userID);
+        if(state == null){
+            state = new MemberState();
+            this.members.put(userID, state);
+        }
+        return state;
+    }
+
+    /**
+     * Queue an update for piggy-backing, replacing older news about the same member.
+     */
+    private void enqueue(MembershipUpdate update){
+        synchronized (this.gossip) {
+            Iterator<MembershipUpdate> iterator = this.gossip.iterator();
+            while(iterator.hasNext()){
+                if(iterator.next().userID == update.userID)
+                    iterator.remove();
+            }
+            update.transmissions = 0;
+            this.gossip.add(update);
+        }
+    }
+
+    /**
+     * Reads the payload of a SWIM packet and applies its gossip.
+     * @return {probeID, subjectID}, or null if the payload is malformed.
+     */
+    private int[] handlePayload(ControlPacket packet){
+        int[] header = new int[2];
+        ArrayList<MembershipUpdate> updates = new ArrayList<MembershipUpdate>();
+        try {
+            BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(packet.payload));
+            header[0] = IOHelper.getInt(input);
+            header[1] = IOHelper.getInt(input);
+            int count = IOHelper.getInt(input);
+            if(count < 0 || count > input.available() / MembershipUpdate.MIN_SIZE)
+                throw new IOException("bad update count "+count);
+            for(int i = 0; i < count; i++){
+                updates.add(MembershipUpdate.unpack(input));
+            }
+        } catch (IOException ex) {
+            System.err.println("Membership: malformed payload from "+packet.senderID);
+            return null;
+        }
+
+        for(MembershipUpdate update : updates){
+            this.apply(update);
+        }
+        return header;
+    }
+
+    /**
+     * Send a PING, PING_REQ or ACK with as much gossip as fits.
+     */
+    private void sendProbePacket(ControlPacket.Type type, Peer peer, int probeID, int subjectID){
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(probeID, byteStream);
+        IOHelper.writeInt(subjectID, byteStream);
+
+        ArrayList<MembershipUpdate> piggyback = this.takeGossip();
+        IOHelper.writeInt(piggyback.size(), byteStream);
+        try {
+            for(MembershipUpdate update : piggyback){
+                byteStream.write(update.pack());
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+
+        peer.sendControlData(new ControlPacket(type, this.chat.hostID, null, byteStream.toByteArray()).pack());
+    }
+
+    /**
+     * The least-sent updates, each counted as sent once more.
+     * Updates sent GOSSIP_MULTIPLIER * log2(N) times are dropped.
+     */
+    private ArrayList<MembershipUpdate> takeGossip(){
+        int limit = GOSSIP_MULTIPLIER * this.log2GroupSize();
+        ArrayList<MembershipUpdate> taken = new ArrayList<MembershipUpdate>();
+
+        synchronized (this.gossip) {
+            Collections.sort(this.gossip, new Comparator<MembershipUpdate>() {
+                public int compare(MembershipUpdate a, MembershipUpdate b) {
+                    return Integer.compare(a.transmissions, b.transmissions);
+                }
+            });
+
+            Iterator<MembershipUpdate> iterator = this.gossip.iterator();
+            while(iterator.hasNext() && taken.size() < MAX_GOSSIP){
+                MembershipUpdate update = iterator.next();
+                taken.add(update);
+                if(++update.transmissions >= limit)
+                    iterator.remove();
+            }
+        }
+        return taken;
+    }
+
+    private int log2GroupSize(){
+        int n = this.chat.peers.size() + 1;
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n));
+    }
+}
+
+/**
+ * What one client knows about one other member.
+ */
+class MemberState {
+    public int incarnation = 0;
+    public boolean suspected = false;
+    public long suspectedSince = 0;
+}
+
+/**
+ * A PING this client is waiting to have ACKed.
+ */
+class Probe {
+    public int probeID;
+
+    /**
+     * The member being probed.
+     */
+    public int target;
+
+    /**
+     * For indirect probes, the member which sent the PING_REQ; -1 for my own probes.
+     */
+    public int onBehalfOf = -1;
+
+    /**
+     * For indirect probes, the requester's probe ID to put in the forwarded ACK.
+     */
+    public int requesterProbeID;
+
+    public long sent;
+
+    public volatile boolean acked = false;
+}
+
+/**
+ * A membership event spread by gossip.
+ */
+class MembershipUpdate {
+
+    public enum Kind {
+        ALIVE, // member joined, or refuted suspicion with a new incarnation
+        SUSPECT, // member failed a probe
+        DEAD, // member stayed suspect too long
+        LEAVE // member left on purpose
+    };
+
+    /**
+     * Bytes in the smallest packed update: kind, userID, incarnation and an empty user.
+     */
+    public static final int MIN_SIZE = 16;
+
+    public Kind kind;
+
+    public int userID;
+
+    public int incarnation;
+
+    /**
+     * Contact information, for ALIVE updates (so members that never heard of the user can add it).
+     */
+    public User user;
+
+    /**
+     * Number of packets this update has been piggy-backed on.
+     */
+    public int transmissions = 0;
+
+    public MembershipUpdate(Kind kind, int userID, int incarnation, User user){
+        this.kind = kind;
+        this.userID = userID;
+        this.incarnation = incarnation;
+        this.user = user;
+    }
+
+    public byte[] pack() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(this.kind.ordinal(), byteStream);
+        IOHelper.writeInt(this.userID, byteStream);
+        IOHelper.writeInt(this.incarnation, byteStream);
+        IOHelper.writeByteArray(this.user == null ? new byte[0] : this.user.pack(), byteStream);
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * @param input A packet's payload, positioned at an update.
+     * @throws IOException if the update is malformed or cut short.
+     */
+    public static MembershipUpdate unpack(BufferedInputStream input) throws IOException {
+        int ordinal = IOHelper.getInt(input);
+        if(ordinal < 0 || ordinal >= Kind.values().length)
+            throw new IOException("bad update kind "+ordinal);
+        Kind kind = Kind.values()[ordinal];
+        int userID = IOHelper.getInt(input);
+        int incarnation = IOHelper.getInt(input);
+        int length = IOHelper.getInt(input);
+        if(length < 0 || length > input.available())
+            throw new IOException("bad user length "+length);
+        byte[] userBinary = IOHelper.getBytes(input, length);
+        User user = null;
+        if(userBinary.length > 0)
+            user = User.unpack(new BufferedInputStream(new ByteArrayInputStream(userBinary)));
+        return new MembershipUpdate(kind, userID, incarnation, user);
+    }
+}
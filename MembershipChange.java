@@ -0,0 +1,14 @@
+/**
+ * One join (user set) or leave (user null) in a Group's membership log.
+ */
+class MembershipChange {
+    public int version;
+    public User user;
+    public int userID;
+
+    public MembershipChange(int version, User user, int userID) {
+        this.version = version;
+        this.user = user;
+        this.userID = userID;
+    }
+}
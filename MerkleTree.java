@@ -0,0 +1,313 @@
+import java.security.*;
+import java.util.*;
+
+/**
+ * A Merkle tree over the pieces of a FILE block, so each piece can be checked on its own as it arrives.
+ * Only the file's pieces are in it; a block's repair pieces (see ErasureCode.java) are checked with the whole chunk.
+ * <br>
+ * Leaves are the SHA-256 of each piece's data; each node above is the SHA-256 of its two children, and a node
+ * with no sibling (the last of an odd-sized level) is carried up unchanged. Leaf and inner hashes are prefixed with
+ * different bytes, so a piece can't pass for an inner node. The sender publishes the root with the block; a piece's
+ * proof is the sibling hashes on the way from its leaf to the root, bottom first, at most 32 bytes per level.
+ * A run of pieces sent together (see BulkTransfer.java) has one proof for the whole run: the hashes just outside
+ * the run on each level, at most two per level.
+ * <br>
+ * Only the levels from LOWER_LEVELS up are kept, about 64 bytes per 2^LOWER_LEVELS pieces, so a file's trees take
+ * a small fraction of the file's size on the heap. The lower levels of a proof are rebuilt from the pieces of the
+ * piece's group (the 2^LOWER_LEVELS pieces under one kept node), read back from the mapped file; the last group
+ * rebuilt is kept, since pieces tend to be asked for in order.
+ */
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    /**
+     * Levels at the bottom of the tree rebuilt from the pieces when a proof needs them, rather than kept.
+     */
+    static int LOWER_LEVELS = 8;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /**
+     * Where the pieces are read back from to rebuild the lower levels.
+     */
+    private FileBlockSource source;
+
+    /**
+     * Number of nodes on each level, leaves first; the last level is the root.
+     */
+    private int[] sizes;
+
+    /**
+     * The first level kept: min(LOWER_LEVELS, the root's level).
+     */
+    private int bottom;
+
+    /**
+     * levels[l] holds the hashes of level bottom + l, each level the hashes of pairs of the one below.
+     */
+    private byte[][] levels;
+
+    /**
+     * The group last rebuilt, and its levels below bottom; group[l] starts at the group's first node on level l.
+     */
+    private int lastGroup = -1;
+    private byte[][] group;
+
+    /**
+     * Build the tree of a file, reading each of its pieces.
+     */
+    public MerkleTree(FileBlockSource source) {
+        this.source = source;
+        int leafCount = source.block.dataPieces();
+        ArrayList<Integer> sizes = new ArrayList<Integer>();
+        for (int size = leafCount; ; size = (size + 1) / 2) {
+            sizes.add(size);
+            if (size <= 1) {
+                break;
+            }
+        }
+        this.sizes = new int[sizes.size()];
+        for (int l = 0; l < this.sizes.length; l++) {
+            this.sizes[l] = sizes.get(l);
+        }
+        this.bottom = Math.min(LOWER_LEVELS, this.sizes.length - 1);
+
+        MessageDigest digest = sha256();
+        byte[] level = this.leaves(digest, 0, leafCount);
+        this.levels = new byte[this.sizes.length - this.bottom][];
+        for (int l = 0; l < this.sizes.length; l++) {
+            if (l >= this.bottom) {
+                this.levels[l - this.bottom] = level;
+            }
+            if (l + 1 < this.sizes.length) {
+                level = this.parents(digest, level, l, 0, this.sizes[l + 1]);
+            }
+        }
+    }
+
+    public byte[] root() {
+        return Arrays.copyOf(this.levels[this.levels.length - 1], HASH_SIZE);
+    }
+
+    /**
+     * @param index The piece's index within the block.
+     * @return The sibling hashes from the piece's leaf up to the root.
+     */
+    public synchronized byte[] proof(int index) {
+        if (this.bottom > 0 && index >> this.bottom != this.lastGroup) {
+            this.rebuildGroup(index >> this.bottom);
+        }
+        byte[] proof = new byte[(this.sizes.length - 1) * HASH_SIZE];
+        int length = 0;
+        for (int l = 0; l < this.sizes.length - 1; l++) {
+            int sibling = index ^ 1;
+            if (sibling < this.sizes[l]) {
+                if (l < this.bottom) {
+                    int first = this.lastGroup << (this.bottom - l);
+                    System.arraycopy(this.group[l], (sibling - first) * HASH_SIZE, proof, length, HASH_SIZE);
+                } else {
+                    System.arraycopy(this.levels[l - this.bottom], sibling * HASH_SIZE, proof, length, HASH_SIZE);
+                }
+                length += HASH_SIZE;
+            }
+            index >>= 1;
+        }
+        return Arrays.copyOf(proof, length);
+    }
+
+    /**
+     * The proof for pieces [from, to) together: on each level, bottom first, the node just left of the run if the
+     * run starts with a right child, then the node just right of it if the run ends with a left child that has one.
+     */
+    public synchronized byte[] rangeProof(int from, int to) {
+        byte[] proof = new byte[2 * (this.sizes.length - 1) * HASH_SIZE];
+        int length = 0;
+        int low = from;
+        int high = to;
+        for (int l = 0; l < this.sizes.length - 1; l++) {
+            if ((low & 1) == 1) {
+                System.arraycopy(this.node(l, low - 1), 0, proof, length, HASH_SIZE);
+                length += HASH_SIZE;
+            }
+            if ((high & 1) == 1 && high < this.sizes[l]) {
+                System.arraycopy(this.node(l, high), 0, proof, length, HASH_SIZE);
+                length += HASH_SIZE;
+            }
+            low >>= 1;
+            high = (high + 1) >> 1;
+        }
+        return Arrays.copyOf(proof, length);
+    }
+
+    /**
+     * The hash of node i of level l, rebuilding its group if it's below the levels kept. Must hold the lock.
+     */
+    private byte[] node(int l, int i) {
+        if (l >= this.bottom) {
+            return Arrays.copyOfRange(this.levels[l - this.bottom], i * HASH_SIZE, (i + 1) * HASH_SIZE);
+        }
+        int group = i >> (this.bottom - l);
+        if (group != this.lastGroup) {
+            this.rebuildGroup(group);
+        }
+        int first = group << (this.bottom - l);
+        return Arrays.copyOfRange(this.group[l], (i - first) * HASH_SIZE, (i - first + 1) * HASH_SIZE);
+    }
+
+    /**
+     * Rebuild the levels below bottom under one node of level bottom, from its pieces.
+     */
+    private void rebuildGroup(int group) {
+        MessageDigest digest = sha256();
+        this.group = new byte[this.bottom][];
+        int first = group << this.bottom;
+        byte[] level = this.leaves(digest, first, Math.min(this.sizes[0], first + (1 << this.bottom)));
+        for (int l = 0; l < this.bottom; l++) {
+            this.group[l] = level;
+            if (l + 1 < this.bottom) {
+                int firstParent = group << (this.bottom - l - 1);
+                int endParent = Math.min(this.sizes[l + 1], firstParent + (1 << (this.bottom - l - 1)));
+                level = this.parents(digest, level, l, firstParent, endParent);
+            }
+        }
+        this.lastGroup = group;
+    }
+
+    /**
+     * Leaf hashes of pieces [from, to) of the block.
+     */
+    private byte[] leaves(MessageDigest digest, int from, int to) {
+        byte[] leaves = new byte[(to - from) * HASH_SIZE];
+        for (int i = from; i < to; i++) {
+            System.arraycopy(leafHash(digest, this.source.piece(this.source.block.blockOffset + i).data), 0, leaves, (i - from) * HASH_SIZE, HASH_SIZE);
+        }
+        return leaves;
+    }
+
+    /**
+     * Nodes [from, to) of level l + 1, from the nodes of level l below them, which start at node 2 * from.
+     * A node with no sibling is carried up unchanged.
+     */
+    private byte[] parents(MessageDigest digest, byte[] below, int l, int from, int to) {
+        byte[] above = new byte[(to - from) * HASH_SIZE];
+        for (int i = from; i < to; i++) {
+            int offset = (2 * i - 2 * from) * HASH_SIZE;
+            if (2 * i + 1 < this.sizes[l]) {
+                digest.update(NODE);
+                digest.update(below, offset, 2 * HASH_SIZE);
+                System.arraycopy(digest.digest(), 0, above, (i - from) * HASH_SIZE, HASH_SIZE);
+            } else {
+                System.arraycopy(below, offset, above, (i - from) * HASH_SIZE, HASH_SIZE);
+            }
+        }
+        return above;
+    }
+
+    /**
+     * Is this piece's data part of the block with this root?
+     * @param index The piece's index within the block.
+     * @param leafCount The number of pieces in the block.
+     */
+    public static boolean verify(byte[] root, int index, int leafCount, byte[] data, byte[] proof) {
+        if (root == null || proof == null || index < 0 || index >= leafCount) {
+            return false;
+        }
+        MessageDigest digest = sha256();
+        byte[] hash = leafHash(digest, data);
+        int used = 0;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < size) {
+                if (used + HASH_SIZE > proof.length) {
+                    return false;
+                }
+                digest.update(NODE);
+                if ((index & 1) == 0) {
+                    digest.update(hash);
+                    digest.update(proof, used, HASH_SIZE);
+                } else {
+                    digest.update(proof, used, HASH_SIZE);
+                    digest.update(hash);
+                }
+                hash = digest.digest();
+                used += HASH_SIZE;
+            }
+            index >>= 1;
+        }
+        return used == proof.length && MessageDigest.isEqual(hash, root);
+    }
+
+    /**
+     * Are these pieces, [from, to) of the block, part of the block with this root?
+     * @param leafCount The number of pieces in the block.
+     * @param data The pieces' data, in order.
+     * @param proof The run's proof (see rangeProof).
+     */
+    public static boolean verifyRange(byte[] root, int from, int to, int leafCount, byte[][] data, byte[] proof) {
+        if (root == null || proof == null || from < 0 || to > leafCount || from >= to || data.length != to - from) {
+            return false;
+        }
+        MessageDigest digest = sha256();
+        byte[][] level = new byte[to - from][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = leafHash(digest, data[i]);
+        }
+        int used = 0;
+        int low = from;
+        int high = to;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            // widen the run to whole pairs with the hashes from the proof
+            boolean left = (low & 1) == 1;
+            boolean right = (high & 1) == 1 && high < size;
+            if (used + ((left ? 1 : 0) + (right ? 1 : 0)) * HASH_SIZE > proof.length) {
+                return false;
+            }
+            byte[][] nodes = new byte[level.length + (left ? 1 : 0) + (right ? 1 : 0)][];
+            int n = 0;
+            if (left) {
+                nodes[n++] = Arrays.copyOfRange(proof, used, used + HASH_SIZE);
+                used += HASH_SIZE;
+                low--;
+            }
+            for (byte[] hash : level) {
+                nodes[n++] = hash;
+            }
+            if (right) {
+                nodes[n++] = Arrays.copyOfRange(proof, used, used + HASH_SIZE);
+                used += HASH_SIZE;
+            }
+
+            // a run of odd length now ends with the last node of the level, which is carried up unchanged
+            level = new byte[(nodes.length + 1) / 2][];
+            for (int i = 0; i < level.length; i++) {
+                if (2 * i + 1 < nodes.length) {
+                    digest.update(NODE);
+                    digest.update(nodes[2 * i]);
+                    digest.update(nodes[2 * i + 1]);
+                    level[i] = digest.digest();
+                } else {
+                    level[i] = nodes[2 * i];
+                }
+            }
+            low >>= 1;
+            high = low + level.length;
+        }
+        return used == proof.length && level.length == 1 && MessageDigest.isEqual(level[0], root);
+    }
+
+    private static byte[] leafHash(MessageDigest digest, byte[] data) {
+        digest.update(LEAF);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex); // every JVM has SHA-256
+        }
+    }
+}
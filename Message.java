@@ -14,7 +14,11 @@ public class Message {
 
     public enum Type {
         FILE,
-        TEXT
+        TEXT,
+        /**
+         * A file's list of chunks, each sent as its own FILE block (see FileManifest.java).
+         */
+        MANIFEST
     };
 
     /**
@@ -22,6 +26,16 @@ public class Message {
      */
     public Type type = Type.TEXT;
 
+    /**
+     * Flag sent with the type: the block was compressed before it was cut into pieces (see BlockCodec.java).
+     */
+    public static final int COMPRESSED = 1 << 16;
+
+    /**
+     * Where the number of repair pieces is sent, in the bits of the type above this (see ErasureCode.java).
+     */
+    public static final int REPAIR_SHIFT = 17;
+
     /**
      * Defines the maximum size of a "Piece", in bytes.
      */
@@ -66,6 +80,23 @@ public class Message {
      */
     public long date = 0;
 
+    /**
+     * Was this message's block compressed before it was cut into pieces? Sent as a flag with the type.
+     */
+    public boolean compressed = false;
+
+    /**
+     * How many of the pieces at the end of this message's block are repair pieces (see ErasureCode.java).
+     * Sent with the type.
+     */
+    public int repair = 0;
+
+    /**
+     * For a FILE piece, its Merkle proof, if it came with one (see MerkleTree.java); kept so the piece can be passed on with it.
+     * Not packed.
+     */
+    public byte[] proof = null;
+
     /**
      * @param data The content of the message.
      * @param senderID The unique identifier of the sending User.
@@ -91,7 +122,7 @@ public class Message {
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
 
         try {
-            IOHelper.writeInt(this.type.ordinal(), byteStream);
+            IOHelper.writeInt(this.typeAndFlags(), byteStream);
             IOHelper.writeByteArray(this.data, byteStream);
             IOHelper.writeInt(this.senderID, byteStream);
             IOHelper.writeInt(this.blockIndex, byteStream);
@@ -134,8 +165,13 @@ public class Message {
         int senderID, blockIndex, blockSize, sequenceNumber, blockOffset;
         Type type;
         long date;
+        boolean compressed;
+        int repair;
         try {
-            type = Type.values()[IOHelper.getInt(input)];
+            int typeAndFlags = IOHelper.getInt(input);
+            type = Type.values()[typeAndFlags & 0xFFFF];
+            compressed = (typeAndFlags & COMPRESSED) != 0;
+            repair = typeAndFlags >>> REPAIR_SHIFT;
             data = IOHelper.getByteArray(input);
             senderID = IOHelper.getInt(input);
             blockIndex = IOHelper.getInt(input);
@@ -147,6 +183,16 @@ public class Message {
             ex.printStackTrace();
             return null;
         }
-        return new Message(type, data, senderID, blockIndex, blockOffset, blockSize, sequenceNumber, date);
+        Message message = new Message(type, data, senderID, blockIndex, blockOffset, blockSize, sequenceNumber, date);
+        message.compressed = compressed;
+        message.repair = repair;
+        return message;
+    }
+
+    /**
+     * The type, with the block's flags in the high bits, as it goes over the wire.
+     */
+    public int typeAndFlags() {
+        return this.type.ordinal() | (this.compressed ? COMPRESSED : 0) | (this.repair << REPAIR_SHIFT);
     }
 }
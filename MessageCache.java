@@ -0,0 +1,291 @@
+import java.util.*;
+
+/**
+ * The pieces a Chat holds, with a bounded number of them on the heap.
+ * <br>
+ * Which pieces are held is kept for every sender as a BitSet of sequence numbers, which costs about a bit per piece.
+ * The pieces themselves are kept in a hot tier, least recently used first, which is trimmed whenever a piece is put
+ * or read and it holds more than MAX_PIECES pieces or MAX_BYTES bytes, or its least recently used piece hasn't been
+ * used for MAX_AGE.
+ * Trimmed pieces are read back from the chat's MessageStore, which every piece is written through to, or for a file
+ * being received, from its partial file; so every piece held stays servable however long the chat runs, unless the
+ * store is bounded and drops them.
+ * Without a MessageStore nothing is trimmed.
+ */
+public class MessageCache {
+
+    /**
+     * Most pieces kept on the heap.
+     */
+    static int MAX_PIECES = 100000;
+
+    /**
+     * Most bytes of pieces kept on the heap, counting PIECE_OVERHEAD for each.
+     */
+    static long MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Pieces not put or read for this long, in milliseconds, leave the heap.
+     */
+    static long MAX_AGE = 10 * 60 * 1000;
+
+    /**
+     * Rough heap cost of a Message apart from its data, in bytes.
+     */
+    static int PIECE_OVERHEAD = 80;
+
+    /**
+     * Where trimmed pieces are read back from, or null to keep everything on the heap.
+     */
+    private MessageStore store;
+
+    /**
+     * Maps sender ID -> sequence numbers held.
+     */
+    private HashMap<Integer, BitSet> held = new HashMap<Integer, BitSet>();
+
+    /**
+     * Maps sender ID -> sequence numbers dropped from a bounded MessageStore, so they aren't fetched again.
+     */
+    private HashMap<Integer, BitSet> dropped = new HashMap<Integer, BitSet>();
+
+    /**
+     * Pieces on the heap by (sender, sequence number), least recently used first.
+     */
+    private LinkedHashMap<Long, Hot> hot = new LinkedHashMap<Long, Hot>(1024, 0.75f, true);
+
+    private long hotBytes = 0;
+
+    /**
+     * Held while saving the dropped pieces, so saves aren't written out of order.
+     */
+    private Object saveLock = new Object();
+
+    /**
+     * @param store Where every piece is also written, or null. The pieces it dropped before are dropped here too.
+     */
+    public MessageCache(MessageStore store) {
+        this.store = store;
+        if (store != null) {
+            this.dropped = store.readDropped();
+        }
+    }
+
+    /**
+     * @return The piece, from the heap or the disk, or null if it isn't held.
+     */
+    public Message get(int senderID, int sequenceNumber) {
+        synchronized (this) {
+            BitSet sequenceNumbers = this.held.get(senderID);
+            if (sequenceNumbers == null || sequenceNumber < 0 || !sequenceNumbers.get(sequenceNumber)) {
+                return null;
+            }
+            Hot hit = this.hot.get(key(senderID, sequenceNumber));
+            if (hit != null) {
+                hit.used = System.currentTimeMillis();
+                this.trim();
+                return hit.message;
+            }
+            if (this.store == null) {
+                return null;
+            }
+        }
+
+        // don't hold the lock while reading the disk
+        Message message = this.store.get(senderID, sequenceNumber);
+        if (message != null) {
+            synchronized (this) {
+                this.addHot(message);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return true if the piece is held, on the heap or on disk.
+     */
+    public synchronized boolean contains(int senderID, int sequenceNumber) {
+        BitSet sequenceNumbers = this.held.get(senderID);
+        return sequenceNumbers != null && sequenceNumber >= 0 && sequenceNumbers.get(sequenceNumber);
+    }
+
+    /**
+     * Hold a new piece. The caller writes it to the MessageStore.
+     * @return false, and nothing changes, if the piece was already held.
+     */
+    public synchronized boolean put(Message message) {
+        BitSet sequenceNumbers = this.held.get(message.senderID);
+        if (sequenceNumbers == null) {
+            sequenceNumbers = new BitSet();
+            this.held.put(message.senderID, sequenceNumbers);
+        }
+        if (sequenceNumbers.get(message.sequenceNumber)) {
+            return false;
+        }
+        sequenceNumbers.set(message.sequenceNumber);
+        BitSet gone = this.dropped.get(message.senderID);
+        if (gone != null) {
+            gone.clear(message.sequenceNumber);
+        }
+        this.addHot(message);
+        return true;
+    }
+
+    /**
+     * Stop holding a piece, so it can be fetched and held again: its block failed its check.
+     */
+    public synchronized void remove(int senderID, int sequenceNumber) {
+        BitSet sequenceNumbers = this.held.get(senderID);
+        if (sequenceNumbers != null && sequenceNumber >= 0) {
+            sequenceNumbers.clear(sequenceNumber);
+        }
+        Hot removed = this.hot.remove(key(senderID, sequenceNumber));
+        if (removed != null) {
+            this.hotBytes -= cost(removed.message);
+        }
+    }
+
+    /**
+     * Stop holding a piece, because it was dropped from the MessageStore or its file from the ChunkStore, and don't
+     * fetch it again. Call saveDropped after a batch of these.
+     */
+    public synchronized void forget(int senderID, int sequenceNumber) {
+        BitSet sequenceNumbers = this.held.get(senderID);
+        if (sequenceNumbers == null || sequenceNumber < 0) {
+            return;
+        }
+        sequenceNumbers.clear(sequenceNumber);
+        BitSet gone = this.dropped.get(senderID);
+        if (gone == null) {
+            gone = new BitSet();
+            this.dropped.put(senderID, gone);
+        }
+        gone.set(sequenceNumber);
+        Hot removed = this.hot.remove(key(senderID, sequenceNumber));
+        if (removed != null) {
+            this.hotBytes -= cost(removed.message);
+        }
+    }
+
+    /**
+     * Keep the dropped pieces with the MessageStore, so they stay dropped after a restart.
+     */
+    public void saveDropped() {
+        if (this.store == null) {
+            return;
+        }
+        synchronized (this.saveLock) {
+            HashMap<Integer, BitSet> copy = new HashMap<Integer, BitSet>();
+            synchronized (this) {
+                for (Map.Entry<Integer, BitSet> entry : this.dropped.entrySet()) {
+                    copy.put(entry.getKey(), (BitSet) entry.getValue().clone());
+                }
+            }
+            this.store.writeDropped(copy);
+        }
+    }
+
+    /**
+     * @return true if the piece was held once and dropped since.
+     */
+    public synchronized boolean wasDropped(int senderID, int sequenceNumber) {
+        BitSet gone = this.dropped.get(senderID);
+        return gone != null && sequenceNumber >= 0 && gone.get(sequenceNumber);
+    }
+
+    /**
+     * Mark pieces as held without putting them on the heap; they must already be on disk, in the MessageStore or in
+     * a partial file (see Chat.getMessage).
+     * @param sequenceNumbers Set bits are the pieces held, counting from offset.
+     * @param offset Sequence number of bit 0.
+     */
+    public synchronized void hold(int senderID, BitSet sequenceNumbers, int offset) {
+        BitSet held = this.held.get(senderID);
+        if (held == null) {
+            held = new BitSet();
+            this.held.put(senderID, held);
+        }
+        for (int i = sequenceNumbers.nextSetBit(0); i >= 0; i = sequenceNumbers.nextSetBit(i + 1)) {
+            held.set(offset + i);
+        }
+    }
+
+    /**
+     * Summarize which pieces are held, as runs of consecutive sequence numbers per sender.
+     */
+    public synchronized PieceSummary summarize() {
+        PieceSummary summary = new PieceSummary();
+        for (Map.Entry<Integer, BitSet> entry : this.held.entrySet()) {
+            BitSet sequenceNumbers = entry.getValue();
+            int runStart = sequenceNumbers.nextSetBit(0);
+            while (runStart >= 0) {
+                int runEnd = sequenceNumbers.nextClearBit(runStart);
+                summary.addRange(entry.getKey(), runStart, runEnd);
+                runStart = sequenceNumbers.nextSetBit(runEnd);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @return Number of pieces on the heap.
+     */
+    public synchronized int hotCount() {
+        return this.hot.size();
+    }
+
+    /**
+     * Must hold the lock on this cache.
+     */
+    private void addHot(Message message) {
+        Hot replaced = this.hot.put(key(message.senderID, message.sequenceNumber), new Hot(message));
+        if (replaced != null) {
+            this.hotBytes -= cost(replaced.message);
+        }
+        this.hotBytes += cost(message);
+        this.trim();
+    }
+
+    /**
+     * Drop least recently used pieces until the hot tier is within its limits.
+     * Must hold the lock on this cache.
+     */
+    private void trim() {
+        if (this.store == null) {
+            return;
+        }
+        long tooOld = System.currentTimeMillis() - MAX_AGE;
+        Iterator<Hot> leastRecent = this.hot.values().iterator();
+        while (leastRecent.hasNext()) {
+            Hot entry = leastRecent.next();
+            if (this.hot.size() <= MAX_PIECES && this.hotBytes <= MAX_BYTES && entry.used >= tooOld) {
+                break;
+            }
+            leastRecent.remove();
+            this.hotBytes -= cost(entry.message);
+        }
+    }
+
+    /**
+     * Heap a piece on the hot tier costs, roughly, in bytes.
+     */
+    private static int cost(Message message) {
+        return PIECE_OVERHEAD + message.data.length + (message.proof == null ? 0 : message.proof.length);
+    }
+
+    /**
+     * A piece on the heap, and when it was last put or read.
+     */
+    private static class Hot {
+        Message message;
+        long used = System.currentTimeMillis();
+
+        Hot(Message message) {
+            this.message = message;
+        }
+    }
+
+    private static Long key(int senderID, int sequenceNumber) {
+        return ((long) senderID << 32) | (sequenceNumber & 0xFFFFFFFFL);
+    }
+}
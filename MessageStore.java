@@ -0,0 +1,593 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Local, durable history of every piece (Message) a client has sent or received.
+ * <br>
+ * Pieces are appended to segment files as checksummed records: length (4 bytes), CRC-32 of the body (4 bytes),
+ * body = the Message in Message.pack format. A segment is closed once it passes SEGMENT_SIZE and a new one started.
+ * <br>
+ * A sparse index in memory maps each (sender, run of INDEX_INTERVAL sequence numbers) to the byte ranges of the
+ * segments holding those pieces, so a lookup scans at most a few records of a memory-mapped segment,
+ * and the index is a small fraction of the size of the history. Records of one entry only share a range if they're
+ * within INDEX_GAP bytes of each other, so pieces of many senders written interleaved don't make every range span
+ * everyone's records.
+ * <br>
+ * Appends never wait for the disk: they are queued and visible to reads straight away, and a writer thread
+ * writes whatever has queued up with a single write and a single force (group commit).
+ * On startup the segments are scanned to rebuild the index; a torn record at the end of the last segment is cut off.
+ * <br>
+ * With a maximum size, the history is a bounded cache: once the segments pass it, the oldest are deleted whole,
+ * and the pieces they held are forgotten by the cache (see MessageCache.forget), so they're no longer offered.
+ * Which pieces were forgotten is kept in the same directory (see writeDropped), so they aren't fetched again after
+ * a restart either.
+ */
+public class MessageStore implements Runnable {
+
+    /**
+     * Where histories are kept, one directory per chat and user.
+     */
+    static String ROOT = "history";
+
+    /**
+     * Start a new segment once the current one is this big, in bytes.
+     */
+    static long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Sequence numbers per index entry.
+     */
+    static int INDEX_INTERVAL = 64;
+
+    /**
+     * Records of the same index entry this many bytes apart or less are scanned as one range.
+     */
+    static int INDEX_GAP = 1024;
+
+    /**
+     * Most pieces written by one group commit.
+     */
+    static int MAX_BATCH = 4096;
+
+    private Path directory;
+
+    /**
+     * Most bytes of history kept on disk, or 0 to keep everything.
+     */
+    private long maxSize;
+
+    /**
+     * Segment being appended to, its number and size.
+     */
+    private FileChannel segment;
+    private int segmentNumber;
+    private long segmentSize;
+
+    /**
+     * Maps (sender, sequence number / INDEX_INTERVAL) to {segment, first byte, end byte} ranges holding those pieces.
+     */
+    private HashMap<Long, ArrayList<long[]>> index = new HashMap<Long, ArrayList<long[]>>();
+
+    /**
+     * Read-only mappings of the segments, by segment number.
+     */
+    private HashMap<Integer, MappedByteBuffer> mappings = new HashMap<Integer, MappedByteBuffer>();
+
+    /**
+     * Pieces waiting for the writer, by (sender, sequence number), so they can be read before they reach the disk.
+     */
+    private ConcurrentHashMap<Long, Message> pending = new ConcurrentHashMap<Long, Message>();
+
+    private LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+
+    /**
+     * Pieces queued so far. Guarded by queue, so they're numbered in the order they were queued.
+     */
+    private long appended = 0;
+
+    /**
+     * Pieces the writer thread has taken off the queue and written (or failed to). Guarded by writeLock, which is
+     * notified as it grows. The writer takes pieces in order, so the first `written` pieces appended are done.
+     */
+    private long written = 0;
+
+    /**
+     * The thread running the store, or null if none has been started.
+     */
+    private volatile Thread writer = null;
+
+    /**
+     * Held while writing, so close() and the writer thread don't interleave batches.
+     */
+    private Object writeLock = new Object();
+
+    private long count = 0;
+
+    /**
+     * Told which pieces are gone when the oldest segments are deleted, or null.
+     */
+    public MessageCache cache = null;
+
+    /**
+     * Opens (or creates) the history of one user in one chat, keeping everything.
+     * @see #MessageStore(String, String, long)
+     */
+    public MessageStore(String chatName, String username) throws IOException {
+        this(chatName, username, 0);
+    }
+
+    /**
+     * Opens (or creates) the history of one user in one chat, and rebuilds its index.
+     * Start a thread on the store for appends to reach the disk.
+     * @param chatName Name of the chat.
+     * @param username Name of the user whose history this is.
+     * @param maxSize Most bytes of history to keep on disk, or 0 to keep everything (see Client.SEED_HISTORY).
+     */
+    public MessageStore(String chatName, String username, long maxSize) throws IOException {
+        this.directory = directoryFor(chatName, username);
+        this.maxSize = maxSize;
+        Files.createDirectories(this.directory);
+
+        long start = System.currentTimeMillis();
+        ArrayList<Integer> numbers = this.segmentNumbers();
+        for (int number : numbers) {
+            this.scan(number);
+        }
+
+        int last = numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+        this.segment = FileChannel.open(this.segmentPath(last), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.segmentNumber = last;
+        this.segmentSize = this.segment.size();
+        this.segment.position(this.segmentSize);
+
+        if (this.count > 0) {
+            System.out.println("Loaded "+this.count+" pieces of history in "+(System.currentTimeMillis() - start)+" ms");
+        }
+    }
+
+    /**
+     * Queue a piece to be stored. Returns immediately; the piece can be read back at once.
+     */
+    public void append(Message message) {
+        this.pending.put(key(message.senderID, message.sequenceNumber), message);
+        synchronized (this.queue) {
+            this.appended++;
+            this.queue.add(message);
+        }
+    }
+
+    /**
+     * Read a piece back. A piece stored more than once (fetched again after its block failed its check) is read
+     * from its newest record.
+     * @return The piece, or null if it isn't in the history.
+     */
+    public Message get(int senderID, int sequenceNumber) {
+        Message waiting = this.pending.get(key(senderID, sequenceNumber));
+        if (waiting != null) {
+            return waiting;
+        }
+
+        ArrayList<long[]> ranges;
+        synchronized (this.index) {
+            ArrayList<long[]> indexed = this.index.get(key(senderID, sequenceNumber / INDEX_INTERVAL));
+            if (indexed == null) {
+                return null;
+            }
+            ranges = new ArrayList<long[]>(indexed);
+        }
+
+        try {
+            for (int r = ranges.size() - 1; r >= 0; r--) {
+                long[] range = ranges.get(r);
+                ByteBuffer buffer = this.mapping((int) range[0], range[2]).duplicate();
+                int position = (int) range[1];
+                int found = -1;
+                while (position < range[2]) {
+                    buffer.position(position);
+                    int length = buffer.getInt();
+                    buffer.getInt(); // checksum, verified when the segment was scanned or written
+                    int body = buffer.position();
+                    if (senderOf(buffer, body) == senderID && sequenceNumberOf(buffer, body) == sequenceNumber) {
+                        found = position;
+                    }
+                    position = body + length;
+                }
+                if (found >= 0) {
+                    buffer.position(found);
+                    byte[] binary = new byte[buffer.getInt()];
+                    buffer.getInt();
+                    buffer.get(binary);
+                    return Message.unpack(binary);
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            return null; // the segment was dropped by trim meanwhile
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of pieces in the history, including those not yet written.
+     */
+    public long size() {
+        synchronized (this.index) {
+            return this.count + this.pending.size();
+        }
+    }
+
+    /**
+     * Write everything queued and force it to disk. Called on the way out.
+     */
+    public void close() {
+        this.flush();
+    }
+
+    /**
+     * Wait until everything queued so far is written and forced to disk, writing it here if no writer thread is running.
+     * Once this returns, every piece appended before the call is durable.
+     * Waiting on the writer's count rather than draining the queue here means a piece the writer has already taken
+     * off the queue, but not yet written, isn't missed.
+     */
+    public void flush() {
+        long target;
+        synchronized (this.queue) {
+            target = this.appended;
+        }
+        synchronized (this.writeLock) {
+            while (this.written < target) {
+                Thread running = this.writer;
+                if (running == null || !running.isAlive()) {
+                    ArrayList<Message> batch = new ArrayList<Message>();
+                    this.queue.drainTo(batch);
+                    try {
+                        this.write(batch);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                    return;
+                }
+                try {
+                    this.writeLock.wait(100);
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void run() {
+        this.writer = Thread.currentThread();
+        ArrayList<Message> batch = new ArrayList<Message>();
+        while (true) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+
+            synchronized (this.writeLock) {
+                // everything that queued up while the last batch was being forced goes out together
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    this.write(batch);
+                } catch (IOException ex) {
+                    System.err.println("MessageStore: couldn't write "+batch.size()+" pieces");
+                    ex.printStackTrace();
+                }
+                this.written += batch.size();
+                this.writeLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Append a batch with one write and one force, then index it. Must hold writeLock.
+     */
+    private void write(ArrayList<Message> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (this.segmentSize >= SEGMENT_SIZE) {
+            this.segment.force(false);
+            this.segment.close();
+            this.segmentNumber++;
+            this.segment = FileChannel.open(this.segmentPath(this.segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.segmentSize = 0;
+            this.trim();
+        }
+
+        ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+        int total = 0;
+        for (Message message : batch) {
+            byte[] body = message.pack();
+            bodies.add(body);
+            total += 8 + body.length;
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(total);
+        for (byte[] body : bodies) {
+            records.putInt(body.length);
+            records.putInt(checksum(body));
+            records.put(body);
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            this.segment.write(records);
+        }
+        this.segment.force(false);
+
+        long position = this.segmentSize;
+        this.segmentSize += total;
+        synchronized (this.index) {
+            for (int i = 0; i < batch.size(); i++) {
+                Message message = batch.get(i);
+                long end = position + 8 + bodies.get(i).length;
+                this.addToIndex(message.senderID, message.sequenceNumber, this.segmentNumber, position, end);
+                position = end;
+                this.pending.remove(key(message.senderID, message.sequenceNumber), message);
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest segments until the history is within its maximum size, never the one being appended to.
+     * Must hold writeLock.
+     */
+    private void trim() throws IOException {
+        if (this.maxSize <= 0) {
+            return;
+        }
+        ArrayList<Integer> numbers = this.segmentNumbers();
+        long total = 0;
+        for (int number : numbers) {
+            total += Files.size(this.segmentPath(number));
+        }
+        for (int number : numbers) {
+            if (total <= this.maxSize || number == this.segmentNumber) {
+                break;
+            }
+            total -= this.drop(number);
+        }
+    }
+
+    /**
+     * Take a segment's pieces out of the index and the cache, and delete it.
+     * @return The segment's size in bytes.
+     */
+    private long drop(int number) throws IOException {
+        ByteBuffer buffer = this.mapping(number, 0).duplicate();
+        ArrayList<Long> pieces = new ArrayList<Long>();
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            buffer.getInt();
+            int body = buffer.position();
+            pieces.add(key(senderOf(buffer, body), sequenceNumberOf(buffer, body)));
+            buffer.position(body + length);
+        }
+
+        synchronized (this.index) {
+            for (long piece : pieces) {
+                Long entry = key((int) (piece >>> 32), (int) piece / INDEX_INTERVAL);
+                ArrayList<long[]> ranges = this.index.get(entry);
+                if (ranges == null) {
+                    continue;
+                }
+                Iterator<long[]> range = ranges.iterator();
+                while (range.hasNext()) {
+                    if (range.next()[0] == number) {
+                        range.remove();
+                    }
+                }
+                if (ranges.isEmpty()) {
+                    this.index.remove(entry);
+                }
+            }
+            this.count -= pieces.size();
+        }
+        if (this.cache != null) {
+            for (long piece : pieces) {
+                this.cache.forget((int) (piece >>> 32), (int) piece);
+            }
+            this.cache.saveDropped();
+        }
+
+        synchronized (this.mappings) {
+            this.mappings.remove(number);
+        }
+        long size = Files.size(this.segmentPath(number));
+        Files.delete(this.segmentPath(number));
+        System.out.println("Dropped "+pieces.size()+" of the oldest pieces from the history to keep it under "+(this.maxSize >> 20)+" MB");
+        return size;
+    }
+
+    /**
+     * Keep the pieces dropped from this history, or forgotten for any other reason, so a restart doesn't fetch them again.
+     * Format: for each sender, sender ID (4 bytes), length n (4 bytes), the BitSet of sequence numbers (n bytes).
+     * The file is replaced whole, so a crash leaves the old one or the new one.
+     * @param dropped Maps sender ID -> sequence numbers dropped.
+     */
+    public synchronized void writeDropped(Map<Integer, BitSet> dropped) {
+        Path temporary = this.directory.resolve("dropped.tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+            try {
+                for (Map.Entry<Integer, BitSet> entry : dropped.entrySet()) {
+                    byte[] bits = entry.getValue().toByteArray();
+                    out.writeInt(entry.getKey());
+                    out.writeInt(bits.length);
+                    out.write(bits);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporary, this.directory.resolve("dropped"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("MessageStore: couldn't keep the dropped pieces: "+ex);
+        }
+    }
+
+    /**
+     * @return The pieces dropped as of the last writeDropped, by sender ID; empty if none were.
+     */
+    public synchronized HashMap<Integer, BitSet> readDropped() {
+        HashMap<Integer, BitSet> dropped = new HashMap<Integer, BitSet>();
+        Path file = this.directory.resolve("dropped");
+        if (!Files.exists(file)) {
+            return dropped;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                while (in.available() > 0) {
+                    int senderID = in.readInt();
+                    byte[] bits = new byte[in.readInt()];
+                    in.readFully(bits);
+                    dropped.put(senderID, BitSet.valueOf(bits));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("MessageStore: couldn't read the dropped pieces: "+ex);
+        }
+        return dropped;
+    }
+
+    /**
+     * Index the records of a segment, cutting off a torn or corrupt tail.
+     */
+    private void scan(int number) throws IOException {
+        ByteBuffer buffer = this.mapping(number, 0);
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() || checksum(buffer, buffer.position(), length) != expected) {
+                System.err.println("MessageStore: cutting off damaged tail of "+this.segmentPath(number)+" at byte "+start);
+                FileChannel channel = FileChannel.open(this.segmentPath(number), StandardOpenOption.WRITE);
+                try {
+                    channel.truncate(start);
+                } finally {
+                    channel.close();
+                }
+                this.mappings.remove(number);
+                return;
+            }
+            int body = buffer.position();
+            this.addToIndex(senderOf(buffer, body), sequenceNumberOf(buffer, body), number, start, body + length);
+            buffer.position(body + length);
+        }
+    }
+
+    /**
+     * Must hold the lock on index (or be the constructor).
+     */
+    private void addToIndex(int senderID, int sequenceNumber, int number, long start, long end) {
+        Long entry = key(senderID, sequenceNumber / INDEX_INTERVAL);
+        ArrayList<long[]> ranges = this.index.get(entry);
+        if (ranges == null) {
+            ranges = new ArrayList<long[]>(1);
+            this.index.put(entry, ranges);
+        }
+        long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[0] == number && start >= last[1] && start - last[2] <= INDEX_GAP) {
+            last[2] = Math.max(last[2], end);
+        } else {
+            ranges.add(new long[]{number, start, end});
+        }
+        this.count++;
+    }
+
+    /**
+     * A read-only mapping of a segment covering at least its first `end` bytes.
+     * The segment being appended to is remapped as it grows.
+     */
+    private MappedByteBuffer mapping(int number, long end) throws IOException {
+        synchronized (this.mappings) {
+            MappedByteBuffer mapped = this.mappings.get(number);
+            if (mapped == null || mapped.capacity() < end) {
+                FileChannel channel = FileChannel.open(this.segmentPath(number), StandardOpenOption.READ);
+                try {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    channel.close(); // the mapping stays valid
+                }
+                this.mappings.put(number, mapped);
+            }
+            return mapped;
+        }
+    }
+
+    /**
+     * Sender ID of the packed Message starting at body, without unpacking it.
+     * Follows Message.pack: type (4 bytes), data length n (4 bytes), data (n bytes), sender ID (4 bytes), ...
+     */
+    private static int senderOf(ByteBuffer buffer, int body) {
+        return buffer.getInt(body + 8 + buffer.getInt(body + 4));
+    }
+
+    /**
+     * Sequence number of the packed Message starting at body: after sender ID, block index, block offset and block size.
+     */
+    private static int sequenceNumberOf(ByteBuffer buffer, int body) {
+        return buffer.getInt(body + 8 + buffer.getInt(body + 4) + 16);
+    }
+
+    /**
+     * Where the history of one user in one chat is kept.
+     */
+    public static Path directoryFor(String chatName, String username) {
+        return Paths.get(ROOT, chatName+"-"+username);
+    }
+
+    private static Long key(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    private Path segmentPath(int number) {
+        return this.directory.resolve(String.format("segment-%08d.log", number));
+    }
+
+    /**
+     * Numbers of the segment files on disk, in order.
+     */
+    private ArrayList<Integer> segmentNumbers() throws IOException {
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "segment-*.log");
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+}
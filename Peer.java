@@ -23,6 +23,16 @@ public class Peer {
      */
     public HashMap<Integer, HashSet<Integer>> messages = new HashMap<Integer, HashSet<Integer>>();
 
+    /**
+     * Pieces this peer said it held when I joined through it, or null.
+     */
+    public PieceSummary pieceSummary = null;
+
+    /**
+     * Whether this peer already has my contact information, so I needn't give it a business card.
+     */
+    public boolean knowsMe = false;
+
     public Peer(User user) {
         this.user = user;
     }
@@ -90,31 +100,66 @@ public class Peer {
         return false;
     }
 
+    /**
+     * Give up connecting to a peer's data port after this long, in milliseconds.
+     */
+    static int CONNECT_TIMEOUT = 2000;
+
+    /**
+     * How many times to try delivering a business card.
+     */
+    static int CARD_ATTEMPTS = 3;
+
+    /**
+     * Wait before the first retry, in milliseconds; doubles with each retry.
+     */
+    static long RETRY_BACKOFF = 250;
+
     /**
      * Send my contact information to this peer.
+     * Retries a few times with backoff, and never blocks longer than CONNECT_TIMEOUT on one attempt,
+     * so an unreachable peer can't stall a join.
      * @param user The contact information to send.
+     * @return true if the card was delivered.
      */
-    public void giveBusinessCard(User user) {
+    public boolean giveBusinessCard(User user) {
         // System.out.println("Sending business card to "+this.user.username);
         // construct business card
         byte[] card = user.pack();
 
-        Socket socket;
-        DataOutputStream outToServer;
-        try {
-            // System.out.println("Sending business card to IP "+this.user.address);
-            socket = new Socket(this.user.address, this.user.dataPort);
-            outToServer = new DataOutputStream(socket.getOutputStream());
-            // no input necessary, this is a one-way conversation
+        long backoff = RETRY_BACKOFF;
+        for (int attempt = 0; attempt < CARD_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ex) {
+                    return false;
+                }
+                backoff *= 2;
+            }
 
-            outToServer.write(card);
-            outToServer.flush(); // necessary?
+            Socket socket = new Socket();
+            try {
+                // System.out.println("Sending business card to IP "+this.user.address);
+                socket.connect(new InetSocketAddress(this.user.address, this.user.dataPort), CONNECT_TIMEOUT);
+                DataOutputStream outToServer = new DataOutputStream(socket.getOutputStream());
+                // no input necessary, this is a one-way conversation
 
-            socket.close();
-        } catch (IOException ex) {
-            //ex.printStackTrace();
-            return;
+                outToServer.write(card);
+                outToServer.flush(); // necessary?
+
+                socket.close();
+                return true;
+            } catch (IOException ex) {
+                //ex.printStackTrace();
+                try {
+                    socket.close();
+                } catch (IOException closeEx) {
+                    // nothing more to do
+                }
+            }
         }
+        return false;
     }
 
     /**
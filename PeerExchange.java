@@ -0,0 +1,154 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Peer exchange (PEX): periodically tells a random peer about a few of the peers I know.
+ * A client which joined through a single existing member learns about the rest of the chat
+ * incrementally this way, without a server and without anyone sending the full member list.
+ */
+public class PeerExchange implements Runnable {
+
+    /**
+     * Time between PEX packets, in milliseconds.
+     */
+    static long INTERVAL = 5000;
+
+    /**
+     * Maximum number of users described in one PEX packet, to stay within a datagram.
+     */
+    static int MAX_USERS = 8;
+
+    /**
+     * How long a peer that left or was found dead is kept out of PEX, in milliseconds: long enough for everyone
+     * still listing it to notice it's gone.
+     */
+    static long DEPARTED_MEMORY = 60000;
+
+    public Chat chat;
+
+    private Random random = new Random();
+
+    /**
+     * Peers that left or were found dead, with when they may be learned about through PEX again.
+     */
+    private ConcurrentHashMap<Integer, Long> departed = new ConcurrentHashMap<Integer, Long>();
+
+    public PeerExchange(Chat chat){
+        this.chat = chat;
+    }
+
+    /**
+     * Send one PEX packet, listing myself and a random sample of my peers, to a random peer.
+     */
+    public void exchange(){
+        ArrayList<Peer> known = new ArrayList<Peer>();
+        synchronized (this.chat.peers) {
+            known.addAll(this.chat.peers);
+        }
+        if(known.isEmpty())
+            return;
+
+        Collections.shuffle(known, this.random);
+        Peer recipient = known.remove(0);
+
+        ArrayList<User> sample = new ArrayList<User>();
+        sample.add(this.chat.client.user);
+        for(Peer peer : known){
+            if(sample.size() >= MAX_USERS)
+                break;
+            sample.add(peer.user);
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(sample.size(), byteStream);
+        try {
+            for(User user : sample){
+                byteStream.write(user.pack());
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+
+        recipient.sendControlData(new ControlPacket(ControlPacket.Type.PEX, this.chat.hostID, null, byteStream.toByteArray()).pack());
+    }
+
+    /**
+     * A peer left or was found dead; don't let other peers' stale lists bring it back for a while.
+     */
+    public void departed(int userID){
+        this.departed.put(userID, System.currentTimeMillis() + DEPARTED_MEMORY);
+    }
+
+    /**
+     * @return true if this peer left or was found dead less than DEPARTED_MEMORY ago, so others' news of it is stale.
+     */
+    public boolean recentlyDeparted(int userID){
+        Long departedUntil = this.departed.get(userID);
+        if(departedUntil == null)
+            return false;
+        if(System.currentTimeMillis() < departedUntil)
+            return true;
+        this.departed.remove(userID);
+        return false;
+    }
+
+    /**
+     * A peer told me about some of its peers; add the ones I didn't know, other than ones that just departed
+     * (unless it's the sender itself, which is clearly still around), and make sure they know about me.
+     */
+    public void receivedPeers(ControlPacket packet){
+        ArrayList<User> users = new ArrayList<User>();
+        try {
+            BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(packet.payload));
+            int count = IOHelper.getInt(input);
+            for(int i = 0; i < count; i++){
+                User user = User.unpack(input);
+                if(user == null)
+                    return;
+                users.add(user);
+            }
+        } catch (IOException ex) {
+            System.err.println("PeerExchange: malformed PEX packet from "+packet.senderID);
+            return;
+        }
+
+        for(User user : users){
+            if(user.userID == this.chat.hostID)
+                continue;
+            if(user.userID != packet.senderID && this.recentlyDeparted(user.userID))
+                continue;
+
+            Peer peer = this.chat.makeFriend(user);
+            if(peer == null)
+                continue;
+
+            System.out.println(user.username+" has joined the chat");
+
+            if(this.chat.membership.isActive()){
+                this.chat.membership.learnedAbout(user);
+            }else{
+                // don't hold up the Receiver thread with a TCP connection
+                this.chat.client.introduceMyselfTo(peer);
+            }
+        }
+    }
+
+    public void run(){
+        while(true){
+            try{
+                Thread.sleep(INTERVAL);
+            }catch (Exception e){
+                System.err.println("PeerExchange: Thread can't sleep");
+                e.printStackTrace();
+            }
+
+            try{
+                exchange();
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+    }
+}
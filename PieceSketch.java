@@ -0,0 +1,186 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * An invertible Bloom lookup table over the pieces a client holds, for working out which pieces two clients differ
+ * by at a cost that depends on the difference, not on the history (see Reconciliation.java).
+ * <br>
+ * Each piece is a key, its sender ID and sequence number, added to HASHES cells, one in each of HASHES equal parts
+ * of the table. A cell keeps how many keys were added to it, the XOR of those keys, and the XOR of a check hash
+ * of each. Subtracting one client's sketch from another's, cell by cell, cancels every piece both hold; what's left
+ * is a sketch of the difference, which can be listed by peeling: a cell holding a single key (count of 1 or -1,
+ * and the check hash agrees) gives that key, which is then taken out of its other cells, freeing more.
+ * Peeling succeeds with high probability when there are about 1.5 cells per differing piece, so the table is sized
+ * to the difference expected, and a bigger one is tried if it fails.
+ * <br>
+ * Format: cell count (4 bytes), then each cell's count (4 bytes), key sum (8 bytes) and check sum (8 bytes).
+ * See Goodrich and Mitzenmacher, "Invertible Bloom Lookup Tables", and Eppstein et al., "What's the Difference?".
+ */
+public class PieceSketch {
+
+    /**
+     * Cells each key is added to.
+     */
+    public static final int HASHES = 3;
+
+    /**
+     * Most cells in a sketch, so a bad request can't make a client allocate without bound.
+     */
+    public static final int MAX_CELLS = 3 << 18;
+
+    public int[] counts;
+
+    public long[] keySums;
+
+    public long[] checkSums;
+
+    /**
+     * @param cells Cells in the table; rounded up to a multiple of HASHES.
+     */
+    public PieceSketch(int cells) {
+        cells = (Math.max(cells, HASHES) + HASHES - 1) / HASHES * HASHES;
+        this.counts = new int[cells];
+        this.keySums = new long[cells];
+        this.checkSums = new long[cells];
+    }
+
+    /**
+     * A sketch of every piece in a summary.
+     */
+    public static PieceSketch of(PieceSummary summary, int cells) {
+        PieceSketch sketch = new PieceSketch(cells);
+        for (Map.Entry<Integer, ArrayList<int[]>> entry : summary.ranges.entrySet()) {
+            for (int[] range : entry.getValue()) {
+                for (int sequenceNumber = range[0]; sequenceNumber < range[1]; sequenceNumber++) {
+                    sketch.add(key(entry.getKey(), sequenceNumber));
+                }
+            }
+        }
+        return sketch;
+    }
+
+    public static long key(int senderID, int sequenceNumber) {
+        return ((long) senderID << 32) | (sequenceNumber & 0xFFFFFFFFL);
+    }
+
+    public static int senderOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int sequenceNumberOf(long key) {
+        return (int) key;
+    }
+
+    public void add(long key) {
+        this.toggle(key, 1);
+    }
+
+    /**
+     * Take another sketch of the same size away from this one, leaving a sketch of the difference:
+     * keys only this one holds count 1, keys only the other holds count -1.
+     */
+    public void subtract(PieceSketch other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] -= other.counts[i];
+            this.keySums[i] ^= other.keySums[i];
+            this.checkSums[i] ^= other.checkSums[i];
+        }
+    }
+
+    /**
+     * List the keys of a difference sketch (see subtract). Empties the sketch.
+     * @param mine Where the keys counted 1 go.
+     * @param theirs Where the keys counted -1 go.
+     * @return false if the difference is too big for this many cells to list.
+     */
+    public boolean decode(ArrayList<Long> mine, ArrayList<Long> theirs) {
+        ArrayDeque<Integer> pure = new ArrayDeque<Integer>();
+        for (int i = 0; i < this.counts.length; i++) {
+            if (this.isPure(i)) {
+                pure.add(i);
+            }
+        }
+        while (!pure.isEmpty()) {
+            int cell = pure.poll();
+            if (!this.isPure(cell)) {
+                continue; // emptied by an earlier key
+            }
+            long key = this.keySums[cell];
+            int count = this.counts[cell];
+            (count == 1 ? mine : theirs).add(key);
+            this.toggle(key, -count);
+            for (int h = 0; h < HASHES; h++) {
+                int other = this.cell(key, h);
+                if (this.isPure(other)) {
+                    pure.add(other);
+                }
+            }
+        }
+        for (int i = 0; i < this.counts.length; i++) {
+            if (this.counts[i] != 0 || this.keySums[i] != 0 || this.checkSums[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] pack() {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(4 + this.counts.length * 20);
+        IOHelper.writeInt(this.counts.length, byteStream);
+        for (int i = 0; i < this.counts.length; i++) {
+            IOHelper.writeInt(this.counts[i], byteStream);
+            IOHelper.writeLong(this.keySums[i], byteStream);
+            IOHelper.writeLong(this.checkSums[i], byteStream);
+        }
+        return byteStream.toByteArray();
+    }
+
+    public static PieceSketch unpack(BufferedInputStream input) throws IOException {
+        int cells = IOHelper.getInt(input);
+        if (cells < HASHES || cells > MAX_CELLS || cells % HASHES != 0) {
+            throw new IOException("Bad sketch of "+cells+" cells");
+        }
+        PieceSketch sketch = new PieceSketch(cells);
+        for (int i = 0; i < cells; i++) {
+            sketch.counts[i] = IOHelper.getInt(input);
+            sketch.keySums[i] = IOHelper.getLong(input);
+            sketch.checkSums[i] = IOHelper.getLong(input);
+        }
+        return sketch;
+    }
+
+    private void toggle(long key, int count) {
+        long check = check(key);
+        for (int h = 0; h < HASHES; h++) {
+            int cell = this.cell(key, h);
+            this.counts[cell] += count;
+            this.keySums[cell] ^= key;
+            this.checkSums[cell] ^= check;
+        }
+    }
+
+    private boolean isPure(int cell) {
+        return (this.counts[cell] == 1 || this.counts[cell] == -1) && this.checkSums[cell] == check(this.keySums[cell]);
+    }
+
+    /**
+     * The key's cell in part h of the table.
+     */
+    private int cell(long key, int h) {
+        int part = this.counts.length / HASHES;
+        return h * part + (int) Long.remainderUnsigned(mix(key + h * 0x9E3779B97F4A7C15L), part);
+    }
+
+    private static long check(long key) {
+        return mix(key ^ 0x5DEECE66DL);
+    }
+
+    /**
+     * SplitMix64's finalizer: every bit of the key affects every bit of the hash.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A compact summary of which pieces (messages) a client holds:
+ * for each sender, the runs of consecutive sequence numbers held.
+ * Sent to a peer joining through this client, so the newcomer knows what it can fetch.
+ */
+public class PieceSummary {
+
+    /**
+     * Maps sender ID -> list of {firstSequenceNumber, lastSequenceNumber + 1} runs, in increasing order.
+     */
+    public HashMap<Integer, ArrayList<int[]>> ranges = new HashMap<Integer, ArrayList<int[]>>();
+
+    /**
+     * Record that sequence numbers [from, to) from this sender are held.
+     * Runs must be added in increasing order for each sender.
+     */
+    public void addRange(int senderID, int from, int to) {
+        ArrayList<int[]> senderRanges = this.ranges.get(senderID);
+        if (senderRanges == null) {
+            senderRanges = new ArrayList<int[]>();
+            this.ranges.put(senderID, senderRanges);
+        }
+        senderRanges.add(new int[]{from, to});
+    }
+
+    /**
+     * Record that sequence numbers [from, to) from this sender are held, in any order: the run is merged with the
+     * runs it overlaps or touches, so each sender's runs stay in increasing order and apart.
+     */
+    public void mergeRange(int senderID, int from, int to) {
+        ArrayList<int[]> senderRanges = this.ranges.get(senderID);
+        if (senderRanges == null) {
+            senderRanges = new ArrayList<int[]>();
+            this.ranges.put(senderID, senderRanges);
+        }
+        int first = 0;
+        while (first < senderRanges.size() && senderRanges.get(first)[1] < from) {
+            first++;
+        }
+        int last = first;
+        while (last < senderRanges.size() && senderRanges.get(last)[0] <= to) {
+            from = Math.min(from, senderRanges.get(last)[0]);
+            to = Math.max(to, senderRanges.get(last)[1]);
+            last++;
+        }
+        senderRanges.subList(first, last).clear();
+        senderRanges.add(first, new int[]{from, to});
+    }
+
+    /**
+     * @return Total number of pieces covered by this summary.
+     */
+    public long pieceCount() {
+        long count = 0;
+        for (ArrayList<int[]> senderRanges : this.ranges.values()) {
+            for (int[] range : senderRanges) {
+                count += range[1] - range[0];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pack the summary for sending over the wire.
+     */
+    public byte[] pack() {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        IOHelper.writeInt(this.ranges.size(), byteStream);
+        for (Map.Entry<Integer, ArrayList<int[]>> entry : this.ranges.entrySet()) {
+            IOHelper.writeInt(entry.getKey(), byteStream);
+            IOHelper.writeInt(entry.getValue().size(), byteStream);
+            for (int[] range : entry.getValue()) {
+                IOHelper.writeInt(range[0], byteStream);
+                IOHelper.writeInt(range[1], byteStream);
+            }
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Unpack a summary from a stream.
+     */
+    public static PieceSummary unpack(BufferedInputStream input) throws IOException {
+        PieceSummary summary = new PieceSummary();
+
+        int senderCount = IOHelper.getInt(input);
+        for (int i = 0; i < senderCount; i++) {
+            int senderID = IOHelper.getInt(input);
+            int rangeCount = IOHelper.getInt(input);
+            for (int j = 0; j < rangeCount; j++) {
+                int from = IOHelper.getInt(input);
+                int to = IOHelper.getInt(input);
+                summary.addRange(senderID, from, to);
+            }
+        }
+
+        return summary;
+    }
+}
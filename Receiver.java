@@ -74,7 +74,7 @@ public class Receiver implements Runnable {
         while (true) {
             
             // Create a datagram packet to hold incoming UDP packet.
-            DatagramPacket request = new DatagramPacket(new byte[1024], 1024);
+            DatagramPacket request = new DatagramPacket(new byte[ControlPacket.MAX_SIZE], ControlPacket.MAX_SIZE);
             
             try {
                 // Block until receives a UDP packet.
@@ -87,9 +87,13 @@ public class Receiver implements Runnable {
             ControlPacket packet = ControlPacket.unpack(request.getData());
 
             if (packet != null) {
+                // any packet at all is proof that the sender is alive
+                this.client.chat.liveness.heardFrom(packet.senderID, packet.type);
+
                 switch (packet.type) {
                     case HAVE:
                     if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" has "+this.whoSent(packet)+"'s packet #"+packet.message.sequenceNumber);
+                    this.client.chat.learnRoot(packet);
                     this.client.chat.peerHas(packet.senderID, packet.message);
                     break;
 
@@ -114,6 +118,11 @@ public class Receiver implements Runnable {
                     break;
 
                     case DATA:
+                    if (!Validation.isIntact(packet) || !this.client.chat.verifyPiece(packet)) {
+                        if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" sent a corrupt data packet");
+                        dropCorruptMessage(packet.message, packet.senderID);
+                        break;
+                    }
                     if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" sent a data packet, seqNum " + packet.message.sequenceNumber);
                     receiveMessage(packet.message, packet.senderID);
                     break;
@@ -125,7 +134,6 @@ public class Receiver implements Runnable {
 
                     case ALIVE:
                     if(DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" is alive");
-                    this.client.chat.markAlive(packet.senderID);
                     break;
 
                     case REQUEST:
@@ -133,6 +141,26 @@ public class Receiver implements Runnable {
                     this.client.chat.peerRequestedMessage(packet.senderID, packet.message);
                     break;
 
+                    case PING:
+                    if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" pinged me");
+                    this.client.chat.membership.receivedPing(packet);
+                    break;
+
+                    case PING_REQ:
+                    if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" asked me to ping someone");
+                    this.client.chat.membership.receivedPingRequest(packet);
+                    break;
+
+                    case ACK:
+                    if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" acked a ping");
+                    this.client.chat.membership.receivedAck(packet);
+                    break;
+
+                    case PEX:
+                    if (DEBUG) System.out.println(this.whatsHisName(packet.senderID)+" sent some peers");
+                    this.client.chat.peerExchange.receivedPeers(packet);
+                    break;
+
                     default:
                     System.err.println("Unrecognized packet type "+packet.type);
                     break;
@@ -140,19 +168,36 @@ public class Receiver implements Runnable {
             } else {
                 System.err.println("Invalid control packet");
             }
+        }
+    }
 
-            if((System.currentTimeMillis() - this.client.chat.keepAliveTime) > 20000) { // check 2 minutes (keep alive)
-                this.client.chat.fillKeepAlive();
-                this.client.chat.checkKeepAlive();
-                this.client.chat.sendKeepAlive();
-            }
+    /**
+     * A piece failed its checksum: forget it was requested, so it's asked for again straight away, from whoever has it.
+     */
+    private void dropCorruptMessage(Message message, int senderID){
+        if (message != null) {
+            this.client.chat.requestTracker.forgetRequest(message.senderID, message.sequenceNumber);
+        }
+
+        Peer peer = this.client.chat.checkAddressBook(senderID);
+        if (peer == null) {
+            return;
+        }
+
+        synchronized (peer) {
+            peer.currentlyRequesting = false;
+            peer.chokedMe = true;
         }
+        this.client.chat.beInterested();
     }
 
     private void receiveMessage(Message message, int senderID){
         this.client.chat.have(message, senderID);
 
         Peer peer = this.client.chat.checkAddressBook(senderID);
+        if (peer == null) {
+            return; // peer left while we were receiving
+        }
 
         synchronized (peer) {
             peer.currentlyRequesting = false;
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Brings a peer and me back in step after a network blip, when the HAVEs either of us sent in the meantime were lost.
+ * Started when a peer I had begun to suspect is heard from again (see LivenessTracker.java and Membership.java).
+ * <br>
+ * I send the peer a PieceSketch of the pieces I hold (Seeder.RECONCILE); it subtracts a sketch of its own pieces,
+ * of the same size, and lists the difference: the pieces it holds that I don't, and those I hold that it doesn't.
+ * The sketch is sized for a small difference first and made larger only if the difference doesn't fit, so what's
+ * sent grows with the difference, not with the history. Each of us then marks the other as having the pieces it
+ * lacks (Peer.messages), and fetches them from the other in runs over its data port, as HistorySync does.
+ * A difference too big for the largest sketch is left to HistorySync, which compares whole PieceSummaries.
+ */
+public class Reconciliation implements Runnable {
+
+    /**
+     * Cells in the first sketch sent; enough for a difference of about 40 pieces.
+     */
+    static int INITIAL_CELLS = 96;
+
+    /**
+     * Each sketch that can't be listed is followed by one this many times larger.
+     */
+    static int GROWTH = 4;
+
+    /**
+     * Response status: the difference is listed.
+     */
+    public static final int LISTED = 1;
+
+    /**
+     * Response status: the difference is too big for the sketch.
+     */
+    public static final int TOO_BIG = 0;
+
+    public Chat chat;
+
+    public Peer peer;
+
+    /**
+     * Pieces the peer told me I lack, or null to ask it.
+     */
+    private ArrayList<Long> missing;
+
+    public Reconciliation(Chat chat, Peer peer, ArrayList<Long> missing) {
+        this.chat = chat;
+        this.peer = peer;
+        this.missing = missing;
+    }
+
+    public void run() {
+        try {
+            if (this.missing == null) {
+                this.missing = this.exchange();
+            }
+            if (this.missing != null) {
+                this.fetch();
+            }
+        } catch (IOException ex) {
+            System.err.println("Couldn't reconcile with "+this.peer.user.username+": "+ex);
+        } finally {
+            this.chat.reconciling.remove(this.peer.user.userID);
+        }
+    }
+
+    /**
+     * Send sketches of my pieces, larger each time, until the peer can list how we differ.
+     * @return The pieces the peer holds and I don't, or null if it's left to HistorySync.
+     */
+    private ArrayList<Long> exchange() throws IOException {
+        for (int cells = INITIAL_CELLS; cells <= PieceSketch.MAX_CELLS; cells *= GROWTH) {
+            PieceSketch sketch = PieceSketch.of(this.chat.pieceSummary(), cells);
+            Socket socket = HistorySync.connect(this.peer);
+            try {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                IOHelper.writeInt(Seeder.RECONCILE, byteStream);
+                IOHelper.writeInt(this.chat.hostID, byteStream);
+                byteStream.write(sketch.pack());
+                socket.getOutputStream().write(byteStream.toByteArray());
+
+                BufferedInputStream inFromPeer = new BufferedInputStream(socket.getInputStream());
+                if (IOHelper.getInt(inFromPeer) == LISTED) {
+                    ArrayList<Long> missing = readKeys(inFromPeer);
+                    int theyLack = IOHelper.getInt(inFromPeer);
+                    if (this.chat.client.receiver.DEBUG) System.out.println("Reconciled with "+this.peer.user.username+" using "+sketch.counts.length+" cells: "+missing.size()+" pieces to fetch, "+theyLack+" to send");
+                    return missing;
+                }
+            } finally {
+                socket.close();
+            }
+        }
+
+        Thread historyThread = new Thread(new HistorySync(this.chat));
+        historyThread.start();
+        return null;
+    }
+
+    /**
+     * Answer a sketch sent by a peer (Seeder.RECONCILE): list how we differ, and fetch what I lack from it.
+     * Request: RECONCILE, the peer's user ID (4 bytes), its sketch.
+     * Response: LISTED (4 bytes), count and keys (8 bytes each) of the pieces I hold and it doesn't,
+     * then the count of those it holds and I don't; or TOO_BIG (4 bytes).
+     */
+    public static void answer(Chat chat, BufferedInputStream inFromClient, DataOutputStream outToClient) throws IOException {
+        int peerID = IOHelper.getInt(inFromClient);
+        PieceSketch difference = PieceSketch.unpack(inFromClient);
+        difference.subtract(PieceSketch.of(chat.pieceSummary(), difference.counts.length));
+
+        ArrayList<Long> theyLack = new ArrayList<Long>();
+        ArrayList<Long> iLack = new ArrayList<Long>();
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        if (!difference.decode(iLack, theyLack)) {
+            IOHelper.writeInt(TOO_BIG, byteStream);
+            outToClient.write(byteStream.toByteArray());
+            outToClient.flush();
+            return;
+        }
+        IOHelper.writeInt(LISTED, byteStream);
+        IOHelper.writeInt(theyLack.size(), byteStream);
+        for (long key : theyLack) {
+            IOHelper.writeLong(key, byteStream);
+        }
+        IOHelper.writeInt(iLack.size(), byteStream);
+        outToClient.write(byteStream.toByteArray());
+        outToClient.flush();
+
+        Peer peer = chat.checkAddressBook(peerID);
+        if (peer != null && !iLack.isEmpty() && chat.reconciling.add(peerID)) {
+            Thread reconcileThread = new Thread(new Reconciliation(chat, peer, iLack));
+            reconcileThread.start();
+        }
+    }
+
+    /**
+     * Note that the peer has the pieces I lack, so they can still be requested piece by piece if the fetch fails,
+     * then fetch them from it in runs of at most HistorySync.CHUNK pieces.
+     */
+    private void fetch() throws IOException {
+        Collections.sort(this.missing);
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        for (long key : this.missing) {
+            int senderID = PieceSketch.senderOf(key);
+            int sequenceNumber = PieceSketch.sequenceNumberOf(key);
+            if (senderID == this.chat.hostID) {
+                continue;
+            }
+            this.peer.has(new Message(null, null, senderID, 0, 0, 0, sequenceNumber, 0));
+
+            int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last[0] == senderID && last[2] == sequenceNumber && last[2] - last[1] < HistorySync.CHUNK) {
+                last[2]++;
+            } else {
+                runs.add(new int[]{senderID, sequenceNumber, sequenceNumber + 1});
+            }
+        }
+
+        long fetched = 0;
+        int from = 0;
+        while (from < runs.size()) {
+            int to = from;
+            int pieces = 0;
+            while (to < runs.size() && to - from < Seeder.MAX_RUNS && (pieces == 0 || pieces + runs.get(to)[2] - runs.get(to)[1] <= HistorySync.CHUNK)) {
+                pieces += runs.get(to)[2] - runs.get(to)[1];
+                to++;
+            }
+            fetched += HistorySync.fetch(this.chat, this.peer, runs.subList(from, to));
+            from = to;
+        }
+        if (fetched > 0) {
+            System.out.println("Caught up on "+fetched+" pieces missed while out of touch with "+this.peer.user.username);
+        }
+    }
+
+    private static ArrayList<Long> readKeys(BufferedInputStream input) throws IOException {
+        int count = IOHelper.getInt(input);
+        if (count < 0 || count > PieceSketch.MAX_CELLS) {
+            throw new IOException("Bad list of "+count+" pieces");
+        }
+        ArrayList<Long> keys = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(IOHelper.getLong(input));
+        }
+        return keys;
+    }
+}
@@ -37,6 +37,16 @@ public class RequestTracker implements Runnable{
         userBucket.put(sequenceNumber, System.currentTimeMillis());
     }
 
+    /**
+     * Forget that a message was requested, so it can be requested again at once
+     * (its DATA arrived corrupt).
+     */
+    public void forgetRequest(int senderID, int sequenceNumber){
+        HashMap<Integer, Long> userBucket = requests.get(senderID);
+        if(userBucket != null)
+            userBucket.remove(sequenceNumber);
+    }
+
     /**
      * Are we allowed to request this message?
      */
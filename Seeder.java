@@ -5,21 +5,104 @@
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.util.concurrent.*;
+import java.nio.channels.*;
 import java.nio.*;
 import java.nio.charset.*;
 import java.math.*;
 
 public class Seeder implements Runnable {
+    /**
+     * First 4 bytes of a connection from a client that wants to join the chat through me, instead of through the Server.
+     * Business cards start with the (non-negative) user ID instead.
+     * Request: JOIN_REQUEST, then the same fields as a Server request.
+     * Response: status (4 bytes; 0 if OK), assigned user ID (4 bytes), my user ID (4 bytes),
+     * the members in Group.pack format, then my PieceSummary.
+     */
+    public static final int JOIN_REQUEST = -1;
+
+    /**
+     * Status in a join response when the requested chat isn't the one I'm in.
+     */
+    public static final int WRONG_CHAT = -1;
+
+    /**
+     * First 4 bytes of a request for my PieceSummary, which is the whole response.
+     */
+    public static final int SUMMARY = -2;
+
+    /**
+     * First 4 bytes of a request for runs of pieces (see HistorySync.java).
+     * Request: HISTORY, run count n (4 bytes), n runs of {sender ID, first sequence number, last sequence number + 1} (4 bytes each).
+     * Response: for each piece of the runs I hold, MORE (4 bytes), the piece in Message.pack format, payload length (4 bytes)
+     * and the payload a DATA packet would carry for it (see Chat.dataPayload), so FILE pieces come with their Merkle proofs;
+     * then 0 (4 bytes). Pieces I can't prove are left out.
+     * Each run is cut to HistorySync.CHUNK pieces, and runs past MAX_HISTORY pieces in all are left out; the asker
+     * asks again for whatever it still lacks.
+     */
+    public static final int HISTORY = -3;
+
+    /**
+     * First 4 bytes of a request for part of a FILE block in bulk (see BulkTransfer.java).
+     */
+    public static final int BULK = -4;
+
+    /**
+     * First 4 bytes of a PieceSketch of the sender's pieces, to work out how we differ (see Reconciliation.java).
+     */
+    public static final int RECONCILE = -5;
+
+    /**
+     * Marks another piece in a HISTORY response.
+     */
+    public static final int MORE = 1;
+
+    /**
+     * Most runs in one HISTORY request.
+     */
+    static int MAX_RUNS = 65536;
+
+    /**
+     * Most pieces looked up for one HISTORY request, so a request can't keep a connection thread busy for long.
+     * A newcomer asks for about HistorySync.CHUNK at a time.
+     */
+    static int MAX_HISTORY = 2 * HistorySync.CHUNK;
+
+    /**
+     * Pieces of a HISTORY response are written to the socket this many bytes at a time.
+     */
+    static int STREAM_BUFFER = 64 * 1024;
+
     /**
      * Port for making new connections
      */
     public int port = 0;
 
+    /**
+     * How many connections may wait to be accepted.
+     */
+    static int BACKLOG = 128;
+
+    /**
+     * How many connections are served at once.
+     */
+    static int WORKERS = 16;
+
+    /**
+     * Give up on a connection which sends nothing for this long, in milliseconds.
+     */
+    static int READ_TIMEOUT = 5000;
+
     /**
      * Socket for accepting connections.
      */
     private ServerSocket socket = null;
 
+    /**
+     * Threads serving accepted connections.
+     */
+    private ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+
     /**
      * Client, where you put the data.
      */
@@ -32,7 +115,15 @@ public class Seeder implements Runnable {
             try {
                 // apparently you need to initialize with a port number.
                 // just get one that works.
-                this.socket = new ServerSocket( 2000 + rand.nextInt(5000), 4 );
+                // opened as a channel, so accepted sockets have channels for FileChannel.transferTo
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                try {
+                    channel.bind(new InetSocketAddress(2000 + rand.nextInt(5000)), BACKLOG);
+                } catch (IOException ex) {
+                    channel.close();
+                    throw ex;
+                }
+                this.socket = channel.socket();
             } catch (Exception ex) {
                 // just try again
             }
@@ -41,49 +132,74 @@ public class Seeder implements Runnable {
     }
 
     /**
-     * Run thread as sequential server, accepting connections and responding to them.
-     * Two kinds of connections: requests for data (make sure sender was unchoked), and business cards (new peer contact info)
+     * Run thread as concurrent server: accept connections and hand each one to a worker thread,
+     * so a slow or stalled peer doesn't hold up anyone else joining.
      */
     public void run() {
 
         while (true) {
             // accept connection from connection queue
-            Socket connectionSocket;
-            BufferedInputStream inFromClient;
-            DataOutputStream outToClient;
-
-            int userID;
-
+            final Socket connectionSocket;
             try {
                 connectionSocket = this.socket.accept();
-
-                // create read stream to get input
-                inFromClient = new BufferedInputStream(connectionSocket.getInputStream());
-                // create write stream to send output
-                outToClient = new DataOutputStream(connectionSocket.getOutputStream());
-
-                // the first 4 bytes will be the user ID of the peer sending the request (for both types of connections)
-                userID = IOHelper.getInt(inFromClient);
+                connectionSocket.setSoTimeout(READ_TIMEOUT);
             } catch (IOException ex) {
                 ex.printStackTrace();
                 continue;
             }
 
-            // do I recognize this peer ID?
-            Peer connectedPeer = this.client.chat.checkAddressBook(userID);
+            this.workers.execute(new Runnable() {
+                public void run() {
+                    serve(connectionSocket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Respond to one connection.
+     * Kinds of connections: join requests from clients joining through me, history sync requests from newcomers,
+     * reconciliation with peers I was out of touch with, and business cards (new peer contact info)
+     */
+    private void serve(Socket connectionSocket) {
+        try {
+            // create read stream to get input
+            BufferedInputStream inFromClient = new BufferedInputStream(connectionSocket.getInputStream());
+            // create write stream to send output
+            DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+
+            // the first 4 bytes will be the user ID of the peer sending a business card, or the kind of request
+            int userID = IOHelper.getInt(inFromClient);
 
-            if (connectedPeer == null) {
+            if (userID == JOIN_REQUEST) {
+                this.admit(connectionSocket, inFromClient, outToClient);
+            } else if (userID == SUMMARY) {
+                outToClient.write(this.client.chat.pieceSummary().pack());
+                outToClient.flush();
+            } else if (userID == HISTORY) {
+                this.sendHistory(inFromClient, outToClient);
+            } else if (userID == BULK) {
+                this.client.chat.bulk.serve(connectionSocket, inFromClient, outToClient);
+            } else if (userID == RECONCILE) {
+                Reconciliation.answer(this.client.chat, inFromClient, outToClient);
+            } else {
                 // this is a business card
                 User card = User.unpackWithID(userID, inFromClient);
 
-                this.client.chat.makeFriend(card);
+                if (card != null && this.client.chat.makeFriend(card) != null) {
+                    // in a large chat, the newcomer only told a few of us, so spread the word
+                    if (this.client.chat.membership.isActive()) {
+                        this.client.chat.membership.learnedAbout(card);
+                    }
 
-                System.out.println(card.username+" has joined the chat");
-            } else {
-                System.err.println("Received redundant business card from "+connectedPeer);
+                    System.out.println(card.username+" has joined the chat");
+                } else if (card != null) {
+                    System.err.println("Received redundant business card from "+card.username);
+                }
             }
-                
-
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
             // all done
             try {
                 connectionSocket.close();
@@ -93,4 +209,85 @@ public class Seeder implements Runnable {
         }
     }
 
+    /**
+     * A client wants to join the chat through me.
+     * Give it a user ID, the current members and a summary of the pieces I hold,
+     * then add it to my peers (it will tell everyone else itself).
+     */
+    private void admit(Socket connectionSocket, BufferedInputStream inFromClient, DataOutputStream outToClient) throws IOException {
+        String chatName = IOHelper.getString(inFromClient);
+        String username = IOHelper.getString(inFromClient);
+        int userPort = IOHelper.getInt(inFromClient);
+        int dataPort = IOHelper.getInt(inFromClient);
+        InetAddress ip = InetAddress.getByAddress(IOHelper.getByteArray(inFromClient));
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        Chat chat = this.client.chat;
+        if (!chat.name.equals(chatName)) {
+            IOHelper.writeInt(WRONG_CHAT, byteStream);
+            outToClient.write(byteStream.toByteArray());
+            return;
+        }
+
+        int newID = chat.allocateUserID();
+        IOHelper.writeInt(0, byteStream);
+        IOHelper.writeInt(newID, byteStream);
+        IOHelper.writeInt(chat.hostID, byteStream);
+        byteStream.write(chat.toGroup().pack());
+        byteStream.write(chat.pieceSummary().pack());
+        outToClient.write(byteStream.toByteArray());
+        outToClient.flush();
+
+        User newcomer = new User(username, ip, userPort, dataPort, newID);
+        if (chat.makeFriend(newcomer) != null && chat.membership.isActive()) {
+            chat.membership.learnedAbout(newcomer);
+        }
+
+        System.out.println(username+" has joined the chat");
+    }
+
+    /**
+     * A newcomer wants runs of old pieces. Stream every piece of them I hold, in one response, up to MAX_HISTORY.
+     */
+    private void sendHistory(BufferedInputStream inFromClient, DataOutputStream outToClient) throws IOException {
+        int runCount = IOHelper.getInt(inFromClient);
+        if (runCount < 0 || runCount > MAX_RUNS) {
+            throw new IOException("Bad history request");
+        }
+        int[][] runs = new int[runCount][];
+        for (int i = 0; i < runCount; i++) {
+            runs[i] = new int[]{IOHelper.getInt(inFromClient), IOHelper.getInt(inFromClient), IOHelper.getInt(inFromClient)};
+        }
+
+        Chat chat = this.client.chat;
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(STREAM_BUFFER + 1024);
+        int budget = MAX_HISTORY;
+        for (int[] run : runs) {
+            int from = Math.max(run[1], 0);
+            int to = (int) Math.min((long) run[2], Math.min((long) from + HistorySync.CHUNK, (long) from + budget));
+            budget -= Math.max(to - from, 0);
+            for (int sequenceNumber = from; sequenceNumber < to; sequenceNumber++) {
+                Message message = chat.getMessage(run[0], sequenceNumber);
+                if (message == null) {
+                    continue;
+                }
+                byte[] payload = chat.dataPayload(message);
+                if (payload == null) {
+                    continue;
+                }
+                IOHelper.writeInt(MORE, byteStream);
+                byteStream.write(message.pack());
+                IOHelper.writeInt(payload.length, byteStream);
+                byteStream.write(payload);
+                if (byteStream.size() >= STREAM_BUFFER) {
+                    byteStream.writeTo(outToClient);
+                    byteStream.reset();
+                }
+            }
+        }
+        IOHelper.writeInt(0, byteStream);
+        byteStream.writeTo(outToClient);
+        outToClient.flush();
+    }
 }
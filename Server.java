@@ -1,11 +1,30 @@
 /**
- * Run with `java Server port`
+ * Run with `java Server port [data-dir] [--shards host:port,host:port,...]`
+ * With a data-dir, the groups and user ID allocation survive restarts (see ServerJournal.java).
+ * With --shards, the directory is split across several Servers (this one must be in the list): each group belongs to
+ * the shard that a consistent-hash ring over the live shards assigns it to (see HashRing.java).
  *
  * Protocol description, over TCP:
- * Request format:
+ * Join request format:
  * Group name length n (4 bytes), group name in ASCII (n bytes), username length m (4 bytes), username in ascii (m bytes), control port (4 bytes), data port (4 bytes)
- * Response format:
- * Unique user ID (4 bytes), Number of users (4 bytes), List of users: {IP address length n (4 bytes), IP address (n bytes), Port (4 bytes), username length m (4 bytes), username in ascii (m bytes)}
+ * Join response format:
+ * Unique user ID (4 bytes), membership version (4 bytes), Number of users (4 bytes), List of users: {IP address length n (4 bytes), IP address (n bytes), Port (4 bytes), username length m (4 bytes), username in ascii (m bytes)}
+ *
+ * Members keep their place by renewing a lease, which also fetches the changes since the version they hold:
+ * Renew request format:
+ * RENEW (4 bytes), group name length n (4 bytes), group name in ASCII (n bytes), the user in User.pack format, version held (4 bytes)
+ * Renew response format:
+ * Status (4 bytes; 0 if renewed, REJOINED if the lease had already run out), then Group.packDelta (always the full member list after REJOINED)
+ *
+ * A shard that doesn't own the group answers a join or renewal with a redirect instead:
+ * REDIRECT (4 bytes), owner's host length n (4 bytes), owner's host in ASCII (n bytes), owner's port (4 bytes)
+ *
+ * Between shards:
+ * SHARD_PING (4 bytes), answered with the shards the receiving shard last saw up (4 bytes; bit i set if the ith shard,
+ * in the shared order, answered it)
+ * HANDOFF (4 bytes), group name length n (4 bytes), group name in ASCII (n bytes), version (4 bytes), the group in Group.pack format,
+ * answered with 0 (4 bytes) once the receiving shard has taken over the group, or REDIRECT (4 bytes) if its ring
+ * doesn't make it the group's owner
  */
 
 import java.io.*;
@@ -14,89 +33,629 @@ import java.net.*;
 import java.nio.*;
 import java.nio.charset.*;
 import java.math.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Chat Server.
  * Keeps track of all ongoing chats and people in them.
+ * Serves each connection on its own worker thread, so one slow client doesn't hold up everyone else's join.
  */
 public class Server {
 
+    /**
+     * How many connections may wait to be accepted.
+     */
+    static int BACKLOG = 1024;
+
+    /**
+     * Give up on a client which sends nothing for this long, in milliseconds.
+     */
+    static int READ_TIMEOUT = 5000;
+
+    /**
+     * First 4 bytes of a lease renewal. Join requests start with the (non-negative) length of the group name instead.
+     */
+    public static final int RENEW = -1;
+
+    /**
+     * Renewal status for a user whose lease had run out, and who was added back.
+     */
+    public static final int REJOINED = 1;
+
+    /**
+     * First 4 bytes of a response from a shard which doesn't own the group asked about.
+     */
+    public static final int REDIRECT = -2;
+
+    /**
+     * First 4 bytes of a liveness check from another shard.
+     */
+    public static final int SHARD_PING = -4;
+
+    /**
+     * First 4 bytes of a group handed over by another shard.
+     */
+    public static final int HANDOFF = -3;
+
+    /**
+     * Most shards a directory can be split across, one per bit of a SHARD_PING answer.
+     */
+    public static final int MAX_SHARDS = 32;
+
+    /**
+     * Give up on another shard after this long, in milliseconds.
+     */
+    static int SHARD_TIMEOUT = 1000;
+
+    /**
+     * How often to look for expired leases, in milliseconds.
+     */
+    static long EXPIRY_INTERVAL = 5000;
+
     /**
      * Ongoing chats, searchable by chat name.
+     * Each Group is its own lock, so joins to different chats never wait on each other.
      */
-    private HashMap<String, Group> groups = null;
+    private ConcurrentHashMap<String, Group> groups = null;
 
     /**
-     * Creates server and runs it.
+     * User IDs from here up are picked at random by members for newcomers joining through them (see Chat.allocateUserID).
+     * The Server's own IDs stay below, however many shards stripe them and however many reservation blocks restarts
+     * have burnt, so the two never collide.
+     */
+    public static final int PEER_IDS = 1 << 30;
+
+    /**
+     * The next user ID to hand out; always less than PEER_IDS once striped across the shards.
+     */
+    private AtomicInteger nextUUID = new AtomicInteger(0);
+
+    /**
+     * Threads serving accepted connections.
+     */
+    private ExecutorService workers = null;
+
+    /**
+     * Where the registry is made durable, or null to keep it only in memory.
+     */
+    private ServerJournal journal = null;
+
+    /**
+     * Every shard of the directory, in a fixed order shared by all shards, or null if this Server is the whole directory.
+     */
+    private ArrayList<InetSocketAddress> shards = null;
+
+    /**
+     * This Server's place in shards. User IDs are striped by it, so shards never hand out the same ID.
+     */
+    private int shardIndex = 0;
+
+    /**
+     * Shards which answered the last liveness check, this one included.
+     */
+    private HashSet<InetSocketAddress> liveShards = new HashSet<InetSocketAddress>();
+
+    /**
+     * Ring over the live shards, or null if this Server is the whole directory.
+     */
+    private volatile HashRing ring = null;
+
+    /**
+     * liveShards as a SHARD_PING answer: bit i is set if the ith shard is up.
+     */
+    private volatile int liveMask = 0;
+
+    /**
+     * Did every live shard see the same shards up as this one at the last liveness check?
+     * Groups are only handed over then, so two shards never hand a group back and forth between different rings.
+     */
+    private volatile boolean ringAgreed = false;
+
+    /**
+     * Creates server and runs it, with the registry only in memory.
      * @param port The local port for this server to listen on
      */
     public Server(int port) throws Exception {
+        this(port, null, null);
+    }
+
+    /**
+     * Creates server and runs it.
+     * @param port The local port for this server to listen on
+     * @param dataDirectory Directory for the registry journal, or null to keep the registry only in memory
+     * @param shardList Every shard of the directory as host:port, this one included, or null to be the whole directory
+     */
+    public Server(int port, String dataDirectory, List<String> shardList) throws Exception {
+
+        this.groups = new ConcurrentHashMap<String, Group>();
 
-        int nextUUID = 0;
+        if (dataDirectory != null) {
+            this.journal = new ServerJournal(dataDirectory);
+            this.nextUUID.set(this.journal.restore(this.groups));
+        }
+
+        if (shardList != null) {
+            this.shards = new ArrayList<InetSocketAddress>();
+            for (String shard : shardList) {
+                this.shards.add(HashRing.parse(shard));
+            }
+            if (this.shards.size() > MAX_SHARDS) {
+                throw new IllegalArgumentException("At most "+MAX_SHARDS+" shards are supported");
+            }
+            // every shard must agree on the order, whatever order it was given the list in
+            Collections.sort(this.shards, new Comparator<InetSocketAddress>() {
+                public int compare(InetSocketAddress a, InetSocketAddress b) {
+                    return HashRing.name(a).compareTo(HashRing.name(b));
+                }
+            });
+            this.shardIndex = -1;
+            for (int i = 0; i < this.shards.size(); i++) {
+                if (this.shards.get(i).getPort() == port && isLocal(this.shards.get(i).getAddress())) {
+                    this.shardIndex = i;
+                }
+            }
+            if (this.shardIndex < 0) {
+                throw new IllegalArgumentException("This server isn't in the shard list");
+            }
+            this.checkShards();
+        }
 
         // set up welcome socket and run server
-        ServerSocket welcomeSocket = new ServerSocket(port, 4);
+        ServerSocket welcomeSocket = new ServerSocket(port, BACKLOG);
         System.out.println("Server started; listening at port " + port);
 
-        this.groups = new HashMap<String, Group>();
+        this.workers = Executors.newFixedThreadPool(4 * Runtime.getRuntime().availableProcessors());
+
+        // remove members who stopped renewing their leases
+        Thread reaper = new Thread() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(EXPIRY_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        ex.printStackTrace();
+                    }
+                    expireLeases();
+                    compactJournal();
+                    if (shards != null) {
+                        checkShards();
+                        rebalance();
+                    }
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
 
         while (true) {
             // accept connection from connection queue
-            Socket connectionSocket = welcomeSocket.accept();
-            System.out.println("accepted connection from " + connectionSocket);
+            final Socket connectionSocket = welcomeSocket.accept();
+            connectionSocket.setSoTimeout(READ_TIMEOUT);
+
+            this.workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        handleRequest(connectionSocket);
+                    } catch (IOException ex) {
+                        System.err.println("Couldn't serve "+connectionSocket+": "+ex);
+                    } finally {
+                        try {
+                            connectionSocket.close();
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Read one request, a join or a lease renewal, and answer it.
+     * @param connectionSocket Connection from a client
+     */
+    private void handleRequest(Socket connectionSocket) throws IOException {
+        // create read stream to get input
+        BufferedInputStream inFromClient = new BufferedInputStream(connectionSocket.getInputStream());
+        // create write stream to send output
+        DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+
+        int first = IOHelper.getInt(inFromClient);
 
-            // create read stream to get input
-            BufferedInputStream inFromClient = new BufferedInputStream(connectionSocket.getInputStream());
-            // create write stream to send output
-            DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+        byte[] response;
+        if (first == RENEW) {
+            response = this.renew(inFromClient);
+        } else if (first == SHARD_PING) {
+            response = intBytes(this.liveMask);
+        } else if (first == HANDOFF) {
+            response = this.takeOver(inFromClient);
+        } else {
+            String groupName = new String(IOHelper.getBytes(inFromClient, first), StandardCharsets.US_ASCII);
+            InetSocketAddress owner = this.ownerOf(groupName);
+            response = owner == null ? this.join(groupName, connectionSocket, inFromClient) : redirectTo(owner);
+        }
+
+        outToClient.write(response);
+        outToClient.flush();
+    }
+
+    /**
+     * Add the user to its group.
+     * @return The user's ID, the membership version and the group.
+     */
+    private byte[] join(String groupName, Socket connectionSocket, BufferedInputStream inFromClient) throws IOException {
+        String username = IOHelper.getString(inFromClient);
 
-            String groupName = IOHelper.getString(inFromClient);
-            String username = IOHelper.getString(inFromClient);
+        // could be from same machine, like 127.0.0.1, from behind NAT or from in front of NAT,
+        // depends on relative location of server and client.
+        // TODO: USE THIS FOR NAT
+        InetAddress ip = connectionSocket.getInetAddress();
 
-            // could be from same machine, like 127.0.0.1, from behind NAT or from in front of NAT,
-            // depends on relative location of server and client.
-            // TODO: USE THIS FOR NAT
-            InetAddress ip = connectionSocket.getInetAddress();
+        int userPort = IOHelper.getInt(inFromClient);
+        int dataPort = IOHelper.getInt(inFromClient);
 
-            int userPort = IOHelper.getInt(inFromClient);
-            int dataPort = IOHelper.getInt(inFromClient);
+        InetAddress localIP = InetAddress.getByAddress(IOHelper.getByteArray(inFromClient));
 
-            InetAddress localIP = InetAddress.getByAddress(IOHelper.getByteArray(inFromClient));
+        int uuid = this.allocateUUID();
 
-            User newUser = new User(username, localIP, userPort, dataPort, nextUUID);
+        User newUser = new User(username, localIP, userPort, dataPort, uuid);
 
-            Group currentGroup = this.groups.get(groupName);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        IOHelper.writeInt(uuid, byteStream);
+
+        while (true) {
+            Group currentGroup = this.groupNamed(groupName);
+
+            synchronized (currentGroup) {
+                // the group may have emptied out and been dropped since we looked it up
+                if (this.groups.get(groupName) != currentGroup) {
+                    continue;
+                }
+                currentGroup.joinGroup(newUser);
+                IOHelper.writeInt(currentGroup.version, byteStream);
+                byteStream.write(currentGroup.pack());
+            }
+            break;
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Extend a member's lease and tell it what changed since the version it holds.
+     * A member whose lease already ran out (say it was cut off for a while) is put back with the same ID.
+     * @return Status, then the delta.
+     */
+    private byte[] renew(BufferedInputStream inFromClient) throws IOException {
+        String groupName = IOHelper.getString(inFromClient);
+        User user = User.unpack(inFromClient);
+        int sinceVersion = IOHelper.getInt(inFromClient);
+        if (user == null) {
+            throw new IOException("Bad renewal");
+        }
+
+        InetSocketAddress owner = this.ownerOf(groupName);
+        if (owner != null) {
+            return redirectTo(owner);
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        while (true) {
+            Group currentGroup = this.groupNamed(groupName);
+
+            synchronized (currentGroup) {
+                if (this.groups.get(groupName) != currentGroup) {
+                    continue;
+                }
+                if (currentGroup.renewLease(user.userID)) {
+                    IOHelper.writeInt(0, byteStream);
+                    byteStream.write(currentGroup.packDelta(sinceVersion));
+                } else {
+                    currentGroup.joinGroup(user);
+                    IOHelper.writeInt(REJOINED, byteStream);
+                    // the group may have been dropped and made again, or handed off, since the member's version,
+                    // and its versions started over; that old version could look covered by the new log
+                    byteStream.write(currentGroup.packDelta(Group.NO_VERSION));
+                }
+            }
+            break;
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Gets the group with this name, creating it if needed.
+     * Callers must lock the group and check it is still registered, since empty groups are dropped.
+     */
+    private Group groupNamed(String groupName) {
+        Group currentGroup = this.groups.get(groupName);
+        if (currentGroup == null) {
+            Group created = new Group(groupName);
+            created.journal = this.journal;
+            currentGroup = this.groups.putIfAbsent(groupName, created);
             if (currentGroup == null) {
-                currentGroup = new Group(groupName);
-                this.groups.put(groupName, currentGroup);
+                currentGroup = created;
             }
+        }
+        return currentGroup;
+    }
+
+    /**
+     * Unregister an empty group. Must hold the lock on the group.
+     */
+    private void dropGroup(Group group) {
+        if (this.groups.remove(group.name, group) && this.journal != null) {
+            this.journal.logDrop(group.name);
+        }
+    }
+
+    /**
+     * Hand out a user ID, making sure it can't be handed out again after a restart.
+     * A shard hands out every shards.size()th ID, starting from its own index.
+     * @throws IOException if the Server's part of the ID space (below PEER_IDS) is used up.
+     */
+    private int allocateUUID() throws IOException {
+        int uuid = this.nextUUID.getAndIncrement();
+        long striped = this.shards == null ? uuid : (long) uuid * this.shards.size() + this.shardIndex;
+        if (uuid < 0 || striped >= PEER_IDS) {
+            throw new IOException("Out of user IDs");
+        }
+        if (this.journal != null) {
+            this.journal.reserve(uuid + 1);
+        }
+        return (int) striped;
+    }
+
+    /**
+     * @return The shard which owns this group, or null if it's this one.
+     */
+    private InetSocketAddress ownerOf(String groupName) {
+        HashRing currentRing = this.ring;
+        if (currentRing == null) {
+            return null;
+        }
+        InetSocketAddress owner = currentRing.ownerOf(groupName);
+        if (owner == null || owner.equals(this.shards.get(this.shardIndex))) {
+            return null;
+        }
+        return owner;
+    }
+
+    /**
+     * Response telling a client to ask another shard.
+     */
+    private static byte[] redirectTo(InetSocketAddress owner) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(REDIRECT, byteStream);
+        IOHelper.writeString(owner.getAddress().getHostAddress(), byteStream);
+        IOHelper.writeInt(owner.getPort(), byteStream);
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Ping every other shard and rebuild the ring if the set of live shards changed.
+     * Also find out whether the live shards all see the same shards up, and so build the same ring.
+     */
+    private void checkShards() {
+        HashSet<InetSocketAddress> live = new HashSet<InetSocketAddress>();
+        ArrayList<Integer> views = new ArrayList<Integer>();
+        int mask = 0;
+        for (int i = 0; i < this.shards.size(); i++) {
+            if (i == this.shardIndex) {
+                live.add(this.shards.get(i));
+                mask |= 1 << i;
+                continue;
+            }
+            try {
+                byte[] answer = this.askShard(this.shards.get(i), intBytes(SHARD_PING));
+                live.add(this.shards.get(i));
+                mask |= 1 << i;
+                views.add(new BigInteger(answer).intValue());
+            } catch (IOException ex) {
+                // not up, or not reachable; its groups move to the others until it is
+            }
+        }
+
+        if (!live.equals(this.liveShards) || this.ring == null) {
+            this.liveShards = live;
+            this.liveMask = mask;
+            this.ring = new HashRing(live);
+            System.out.println("Serving with "+live.size()+" of "+this.shards.size()+" shards up");
+        }
 
-            currentGroup.joinGroup(newUser);
+        // a shard answers with what it saw at its own last check, so after a change this agrees a round or two later
+        boolean agreed = true;
+        for (int view : views) {
+            agreed &= view == mask;
+        }
+        if (agreed != this.ringAgreed) {
+            System.out.println(agreed ? "Shards agree on the ring" : "Shards disagree on the ring; holding on to groups until they agree");
+        }
+        this.ringAgreed = agreed;
+    }
 
+    /**
+     * Hand every group this shard no longer owns over to its owner, once the shards agree on the ring.
+     * Members of a group held by a shard that went down simply rejoin its new owner on their next renewal.
+     * The group is only locked to copy it and to drop it, not while the owner is being asked, so joins and renewals
+     * to this shard don't wait on another shard.
+     */
+    private void rebalance() {
+        if (!this.ringAgreed) {
+            return;
+        }
+        for (Group group : this.groups.values()) {
+            InetSocketAddress owner = this.ownerOf(group.name);
+            if (owner == null) {
+                continue;
+            }
             ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            int version;
+            synchronized (group) {
+                if (this.groups.get(group.name) != group) {
+                    continue;
+                }
+                version = group.version;
+                try {
+                    IOHelper.writeInt(HANDOFF, byteStream);
+                    IOHelper.writeString(group.name, byteStream);
+                    IOHelper.writeInt(version, byteStream);
+                    byteStream.write(group.pack());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    continue;
+                }
+            }
 
-            IOHelper.writeInt(nextUUID, byteStream);
+            try {
+                byte[] answer = this.askShard(owner, byteStream.toByteArray());
+                if (new BigInteger(answer).intValue() != 0) {
+                    System.err.println(HashRing.name(owner)+" doesn't own "+group.name+" yet; holding on to it");
+                    continue;
+                }
+            } catch (IOException ex) {
+                System.err.println("Couldn't hand "+group.name+" over to "+HashRing.name(owner)+": "+ex);
+                continue;
+            }
 
-            outToClient.write(byteStream.toByteArray());
+            synchronized (group) {
+                // if members timed out while the owner was being asked, send it the group as it is now next time
+                if (this.groups.get(group.name) != group || group.version != version) {
+                    continue;
+                }
 
-            outToClient.write(currentGroup.pack());
+                // journal the members out, so a restart doesn't bring the group back here
+                for (User user : new ArrayList<User>(group.users)) {
+                    group.leaveGroup(user.userID);
+                }
+                this.dropGroup(group);
+                System.out.println("Handed "+group.name+" over to "+HashRing.name(owner));
+            }
+        }
+    }
+
+    /**
+     * Take over a group handed over by another shard, merging it with any members who already joined here.
+     * A group this shard doesn't own by its own ring is refused, and stays with the sender until the rings agree.
+     * @return The acknowledgement, or REDIRECT if refused.
+     */
+    private byte[] takeOver(BufferedInputStream inFromShard) throws IOException {
+        String groupName = IOHelper.getString(inFromShard);
+        int version = IOHelper.getInt(inFromShard);
+        Group handedOver = Group.unpack(groupName, inFromShard);
+        if (handedOver == null) {
+            throw new IOException("Bad handoff");
+        }
+        handedOver.version = version;
+
+        if (this.ownerOf(groupName) != null) {
+            return intBytes(REDIRECT);
+        }
 
-            connectionSocket.close();
+        while (true) {
+            Group currentGroup = this.groupNamed(groupName);
 
-            nextUUID++;
+            synchronized (currentGroup) {
+                if (this.groups.get(groupName) != currentGroup) {
+                    continue;
+                }
+                currentGroup.adopt(handedOver);
+            }
+            break;
+        }
+
+        System.out.println("Took over "+groupName+" with "+handedOver.users.size()+" members");
+        return new byte[4];
+    }
+
+    /**
+     * Send a request to another shard and read its 4 byte answer.
+     * @return The answer.
+     */
+    private byte[] askShard(InetSocketAddress shard, byte[] request) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(shard, SHARD_TIMEOUT);
+            socket.setSoTimeout(SHARD_TIMEOUT);
+            DataOutputStream outToShard = new DataOutputStream(socket.getOutputStream());
+            outToShard.write(request);
+            outToShard.flush();
+            return IOHelper.getBytes(new BufferedInputStream(socket.getInputStream()), 4);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        IOHelper.writeInt(value, byteStream);
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * @return true if this address belongs to this machine.
+     */
+    private static boolean isLocal(InetAddress address) throws SocketException {
+        return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    /**
+     * Snapshot the registry if enough has been journaled since the last snapshot.
+     */
+    private void compactJournal() {
+        if (this.journal == null || !this.journal.snapshotDue()) {
+            return;
+        }
+        try {
+            this.journal.snapshot(this.groups);
+        } catch (IOException ex) {
+            System.err.println("Couldn't snapshot the registry");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Remove members with expired leases, and groups left empty.
+     */
+    private void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (Group group : this.groups.values()) {
+            synchronized (group) {
+                int expired = group.expireLeases(now);
+                if (expired > 0) {
+                    System.out.println(expired+" members of "+group.name+" timed out");
+                }
+                if (group.users.isEmpty()) {
+                    this.dropGroup(group);
+                }
+            }
         }
     }
 
     public static void main(String[] args) throws Exception {
 
         // check arguments
-        if (args.length != 1) {
-            System.err.println("Usage: java Server port");
+        String dataDirectory = null;
+        List<String> shardList = null;
+        int i = 1;
+        if (args.length > i && !args[i].equals("--shards")) {
+            dataDirectory = args[i++];
+        }
+        if (args.length == i + 2 && args[i].equals("--shards")) {
+            shardList = Arrays.asList(args[i + 1].split(","));
+            i += 2;
+        }
+        if (args.length == 0 || args.length != i) {
+            System.err.println("Usage: java Server port [data-dir] [--shards host:port,host:port,...]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
 
-        Server myRunningServer = new Server(port);
+        Server myRunningServer = new Server(port, dataDirectory, shardList);
     }
 }
@@ -0,0 +1,409 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * Durable storage for the Server's group registry, on local disk.
+ * <br>
+ * Every membership change and every block of reserved user IDs is appended to a journal file as a checksummed record:
+ * length (4 bytes), CRC-32 of the body (4 bytes), body = record type (4 bytes) followed by type-specific fields.
+ * Every so often the whole registry is written to a compacted snapshot and older journal files are deleted.
+ * On restart the snapshot and the journals after it are replayed through memory-mapped reads.
+ * <br>
+ * Only ID reservations are forced to disk before being acted on. Membership is soft state which members refresh with
+ * their lease renewals (and the Server re-admits a renewing member with the same ID), so a join that didn't reach the
+ * disk before a crash is repaired by the member's next renewal. A torn record at the end of a journal fails its checksum
+ * and ends replay of that file.
+ */
+public class ServerJournal {
+
+    /**
+     * Record types.
+     */
+    static final int JOIN = 0; // group name, membership version, user
+    static final int LEAVE = 1; // group name, membership version, user ID
+    static final int RESERVE = 2; // user IDs below this number may have been handed out
+    static final int DROP = 3; // group name; the group emptied out and was dropped, so a later one of that name starts over
+
+    /**
+     * User IDs are reserved this many at a time, so only one in this many joins waits for the disk.
+     */
+    static int RESERVATION_BLOCK = 1024;
+
+    /**
+     * Write a snapshot once this many records have been appended since the last one.
+     */
+    static int SNAPSHOT_EVERY = 100000;
+
+    private static final int SNAPSHOT_MAGIC = 0x50325053; // "P2PS"
+
+    private Path directory;
+
+    /**
+     * Journal currently being appended to, and its number.
+     */
+    private FileChannel journal;
+    private int journalNumber;
+
+    /**
+     * User IDs below this have been (durably) reserved.
+     */
+    private int reservedUpTo = 0;
+
+    private int recordsSinceSnapshot = 0;
+
+    /**
+     * Opens the journal directory, creating it if needed.
+     * Call restore() before appending anything.
+     * @param directory Where to keep the journal and snapshot.
+     */
+    public ServerJournal(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * Rebuild the registry from the snapshot and journals, then start a fresh journal file.
+     * Journal links are attached to the restored groups.
+     * @param groups Map to fill with the restored groups.
+     * @return The first user ID that is safe to hand out.
+     */
+    public synchronized int restore(Map<String, Group> groups) throws IOException {
+        long start = System.currentTimeMillis();
+        int lastCovered = -1;
+        long records = 0;
+
+        Path snapshot = this.directory.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            lastCovered = this.readSnapshot(snapshot, groups);
+        }
+
+        int lastJournal = lastCovered;
+        for (int number : this.journalNumbers()) {
+            if (number <= lastCovered) {
+                Files.deleteIfExists(this.journalPath(number)); // left over from before the last snapshot
+                continue;
+            }
+            records += this.replay(this.journalPath(number), groups);
+            lastJournal = Math.max(lastJournal, number);
+        }
+
+        for (Group group : groups.values()) {
+            group.journal = this;
+        }
+
+        this.openJournal(lastJournal + 1);
+
+        System.out.println("Restored "+groups.size()+" groups from "+records+" journal records in "+(System.currentTimeMillis() - start)+" ms");
+        return this.reservedUpTo;
+    }
+
+    /**
+     * Make sure user IDs below upTo may be handed out, reserving another block on disk if needed.
+     * @param upTo One more than the user ID about to be handed out.
+     */
+    public synchronized void reserve(int upTo) {
+        if (upTo <= this.reservedUpTo) {
+            return;
+        }
+        int newLimit = this.reservedUpTo;
+        while (newLimit < upTo) {
+            newLimit += RESERVATION_BLOCK;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        IOHelper.writeInt(RESERVE, body);
+        IOHelper.writeInt(newLimit, body);
+        try {
+            this.append(body.toByteArray());
+            this.journal.force(false);
+        } catch (IOException ex) {
+            // handing out IDs we can't remember would risk collisions after a restart
+            throw new UncheckedIOException(ex);
+        }
+        this.reservedUpTo = newLimit;
+    }
+
+    /**
+     * Append a membership change to the journal. Called by Group with the group locked.
+     */
+    public synchronized void logChange(String groupName, MembershipChange change) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            IOHelper.writeInt(change.user == null ? LEAVE : JOIN, body);
+            IOHelper.writeString(groupName, body);
+            IOHelper.writeInt(change.version, body);
+            if (change.user == null) {
+                IOHelper.writeInt(change.userID, body);
+            } else {
+                body.write(change.user.pack());
+            }
+            this.append(body.toByteArray());
+        } catch (IOException ex) {
+            System.err.println("ServerJournal: couldn't log change to "+groupName);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Append the dropping of an empty group, so replay starts a group created later under the same name from version 0
+     * rather than skipping its changes as already applied. Called by the Server with the group locked.
+     */
+    public synchronized void logDrop(String groupName) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            IOHelper.writeInt(DROP, body);
+            IOHelper.writeString(groupName, body);
+            this.append(body.toByteArray());
+        } catch (IOException ex) {
+            System.err.println("ServerJournal: couldn't log drop of "+groupName);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Is it time for a snapshot?
+     */
+    public synchronized boolean snapshotDue() {
+        return this.recordsSinceSnapshot >= SNAPSHOT_EVERY;
+    }
+
+    /**
+     * Write a compacted snapshot of the registry and delete the journals it covers.
+     * Appends carry on into a new journal file meanwhile; replaying those on top of the snapshot is harmless
+     * since changes are only applied to groups at an older version, and a drop starts its group over.
+     */
+    public void snapshot(Map<String, Group> groups) throws IOException {
+        int covered;
+        int reserved;
+        synchronized (this) {
+            covered = this.journalNumber;
+            reserved = this.reservedUpTo;
+            this.openJournal(this.journalNumber + 1);
+            this.recordsSinceSnapshot = 0;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        IOHelper.writeInt(SNAPSHOT_MAGIC, body);
+        IOHelper.writeInt(covered, body);
+        IOHelper.writeInt(reserved, body);
+
+        ArrayList<Group> snapshotGroups = new ArrayList<Group>(groups.values());
+        IOHelper.writeInt(snapshotGroups.size(), body);
+        for (Group group : snapshotGroups) {
+            synchronized (group) {
+                IOHelper.writeString(group.name, body);
+                IOHelper.writeInt(group.version, body);
+                body.write(group.pack());
+            }
+        }
+
+        byte[] bytes = body.toByteArray();
+        ByteBuffer framed = ByteBuffer.allocate(8 + bytes.length);
+        framed.putInt(bytes.length);
+        framed.putInt(checksum(bytes, 0, bytes.length));
+        framed.put(bytes);
+        framed.flip();
+
+        Path temporary = this.directory.resolve("snapshot.tmp");
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (framed.hasRemaining()) {
+                channel.write(framed);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(temporary, this.directory.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (int number : this.journalNumbers()) {
+            if (number <= covered) {
+                Files.deleteIfExists(this.journalPath(number));
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock on this journal.
+     */
+    private void append(byte[] body) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(body.length);
+        record.putInt(checksum(body, 0, body.length));
+        record.put(body);
+        record.flip();
+        while (record.hasRemaining()) {
+            this.journal.write(record);
+        }
+        this.recordsSinceSnapshot++;
+    }
+
+    /**
+     * Must hold the lock on this journal.
+     */
+    private void openJournal(int number) throws IOException {
+        if (this.journal != null) {
+            this.journal.force(false);
+            this.journal.close();
+        }
+        this.journalNumber = number;
+        this.journal = FileChannel.open(this.journalPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path journalPath(int number) {
+        return this.directory.resolve(String.format("journal-%08d.log", number));
+    }
+
+    /**
+     * Numbers of the journal files on disk, in order.
+     */
+    private ArrayList<Integer> journalNumbers() throws IOException {
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "journal-*.log");
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring("journal-".length(), name.length() - ".log".length())));
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Load a snapshot into groups.
+     * @return The number of the last journal the snapshot covers.
+     */
+    private int readSnapshot(Path snapshot, Map<String, Group> groups) throws IOException {
+        ByteBuffer buffer = map(snapshot);
+        int length = buffer.getInt();
+        int expected = buffer.getInt();
+        if (length != buffer.remaining() || checksum(buffer, buffer.position(), length) != expected) {
+            throw new IOException("Snapshot "+snapshot+" is corrupt");
+        }
+        if (buffer.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException(snapshot+" is not a snapshot");
+        }
+
+        int covered = buffer.getInt();
+        this.reservedUpTo = Math.max(this.reservedUpTo, buffer.getInt());
+
+        int groupCount = buffer.getInt();
+        for (int i = 0; i < groupCount; i++) {
+            String name = getString(buffer);
+            Group group = new Group(name);
+            group.version = buffer.getInt();
+            int userCount = buffer.getInt();
+            for (int j = 0; j < userCount; j++) {
+                group.restoreUser(getUser(buffer));
+            }
+            groups.put(name, group);
+        }
+        return covered;
+    }
+
+    /**
+     * Apply the records of one journal file to groups, stopping at the first torn or corrupt record.
+     * @return Number of records applied.
+     */
+    private long replay(Path journalFile, Map<String, Group> groups) throws IOException {
+        ByteBuffer buffer = map(journalFile);
+        long records = 0;
+
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 4 || length > buffer.remaining() || checksum(buffer, buffer.position(), length) != expected) {
+                System.err.println("ServerJournal: ignoring damaged tail of "+journalFile+" at byte "+start);
+                break;
+            }
+            int end = buffer.position() + length;
+
+            int type = buffer.getInt();
+            if (type == RESERVE) {
+                this.reservedUpTo = Math.max(this.reservedUpTo, buffer.getInt());
+            } else if (type == DROP) {
+                groups.remove(getString(buffer));
+            } else {
+                String name = getString(buffer);
+                int version = buffer.getInt();
+                Group group = groups.get(name);
+                if (group == null) {
+                    group = new Group(name);
+                    groups.put(name, group);
+                }
+                if (type == JOIN) {
+                    group.restoreChange(new MembershipChange(version, getUser(buffer), 0));
+                } else {
+                    group.restoreChange(new MembershipChange(version, null, buffer.getInt()));
+                }
+            }
+
+            buffer.position(end);
+            records++;
+        }
+
+        // drop groups which emptied out
+        Iterator<Group> groupIterator = groups.values().iterator();
+        while (groupIterator.hasNext()) {
+            if (groupIterator.next().users.isEmpty()) {
+                groupIterator.remove();
+            }
+        }
+        return records;
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close(); // the mapping stays valid
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads a string in IOHelper format.
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a user in User.pack format.
+     */
+    private static User getUser(ByteBuffer buffer) throws IOException {
+        int userID = buffer.getInt();
+        byte[] address = new byte[buffer.getInt()];
+        buffer.get(address);
+        int port = buffer.getInt();
+        int dataPort = buffer.getInt();
+        String username = getString(buffer);
+        return new User(username, java.net.InetAddress.getByAddress(address), port, dataPort, userID);
+    }
+}
@@ -0,0 +1,270 @@
+import java.util.*;
+
+/**
+ * Super-seeding of a file I'm sending (/sendfile --superseed), so I upload about one copy of it however many
+ * peers there are, and the peers swap the rest among themselves.
+ * <br>
+ * Normally every piece is advertised to every peer, and they all ask me for the same first pieces. Instead each of
+ * the file's chunks is revealed, with HAVEs, to a single peer, and served (piece by piece or in bulk) only to that
+ * peer. A chunk is the unit because a peer can only serve a chunk in bulk once it has all of it (see BulkTransfer.java).
+ * A peer is revealed another chunk when one of its chunks shows up at some other peer, which tells me with a HAVE,
+ * since it doesn't know I have the file: the chunk has spread, and that peer has uploaded it at least once.
+ * Peers which pass their chunks on get more, and peers which don't stop getting them.
+ * <br>
+ * A peer which leaves gives back the chunks that hadn't spread, for someone else. If no peer advertises any of the
+ * file for STALL, every peer is revealed one more chunk, so a file can't get stuck on peers which have the chunks
+ * already or don't pass them on. Once every chunk has spread, or been revealed and then stalled, super-seeding is
+ * over and any chunk that hadn't spread is advertised to everyone, as if sent normally.
+ * See the BitTorrent super-seeding extension (BEP 16).
+ */
+public class SuperSeeder implements Runnable {
+
+    /**
+     * Chunks revealed to each peer at the start, so each has another to fetch while the first spreads.
+     */
+    static int CHUNKS_AHEAD = 2;
+
+    /**
+     * Reveal more chunks if no peer has advertised a piece of the file for this long, in milliseconds.
+     */
+    static long STALL = 5000;
+
+    /**
+     * How often to check for a stall, in milliseconds.
+     */
+    static long TICK = 500;
+
+    public Chat chat;
+
+    /**
+     * Name of the file, for telling the user.
+     */
+    public String name;
+
+    /**
+     * Bytes of the file's chunks, as sent.
+     */
+    public long length;
+
+    /**
+     * The file's chunks, in order.
+     */
+    private ArrayList<BlockFile> chunks = new ArrayList<BlockFile>();
+
+    /**
+     * User ID of the peer each chunk was revealed to, or -1.
+     */
+    private int[] owners;
+
+    /**
+     * Has each chunk been seen at a peer other than its owner?
+     */
+    private boolean[] spread;
+
+    private int spreadCount = 0;
+
+    /**
+     * Bytes of the file I've uploaded so far.
+     */
+    private long uploaded = 0;
+
+    private long lastProgress = System.currentTimeMillis();
+
+    private boolean done = false;
+
+    /**
+     * @param sources The file's chunks, as I serve them.
+     */
+    public SuperSeeder(Chat chat, String name, List<FileBlockSource> sources) {
+        this.chat = chat;
+        this.name = name;
+        for (FileBlockSource source : sources) {
+            this.chunks.add(source.block);
+            this.length += source.block.length;
+        }
+        this.owners = new int[this.chunks.size()];
+        Arrays.fill(this.owners, -1);
+        this.spread = new boolean[this.chunks.size()];
+    }
+
+    /**
+     * @return true if this sequence number of mine is one of the file's pieces.
+     */
+    public boolean contains(int sequenceNumber) {
+        if (this.chunks.isEmpty()) {
+            return false;
+        }
+        BlockFile last = this.chunks.get(this.chunks.size() - 1);
+        return sequenceNumber >= this.chunks.get(0).blockOffset && sequenceNumber < last.blockOffset + last.blockSize;
+    }
+
+    /**
+     * Reveal the first chunks, then watch for stalls until every chunk is out, and finish up.
+     * Finishing advertises every chunk that hadn't spread, which is many HAVEs, so it's done here rather than on
+     * the thread that noticed super-seeding was over.
+     */
+    public void run() {
+        synchronized (this) {
+            for (int i = 0; i < CHUNKS_AHEAD; i++) {
+                for (Peer peer : this.peers()) {
+                    this.revealNext(peer);
+                }
+            }
+        }
+        while (true) {
+            synchronized (this) {
+                if (!this.done) {
+                    try {
+                        this.wait(TICK);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (!this.done && System.currentTimeMillis() - this.lastProgress >= STALL) {
+                    boolean revealed = false;
+                    for (Peer peer : this.peers()) {
+                        revealed |= this.revealNext(peer);
+                    }
+                    if (revealed) {
+                        this.lastProgress = System.currentTimeMillis();
+                    } else {
+                        this.stop();
+                    }
+                }
+                if (!this.done) {
+                    continue;
+                }
+            }
+            this.finish();
+            return;
+        }
+    }
+
+    /**
+     * May I send this piece of the file to this peer, by itself or in bulk?
+     */
+    public synchronized boolean mayServe(int peerID, int sequenceNumber) {
+        return this.done || this.owners[this.chunkOf(sequenceNumber)] == peerID;
+    }
+
+    /**
+     * I sent some of the file.
+     */
+    public synchronized void served(long bytes) {
+        this.uploaded += bytes;
+    }
+
+    /**
+     * A peer advertised a piece of the file, so the file is moving: if it's of a chunk revealed to someone else,
+     * the chunk has spread, and its owner gets another.
+     */
+    public synchronized void peerHas(int peerID, int sequenceNumber) {
+        if (this.done) {
+            return;
+        }
+        this.lastProgress = System.currentTimeMillis();
+        int chunk = this.chunkOf(sequenceNumber);
+        int owner = this.owners[chunk];
+        if (owner < 0 || owner == peerID || this.spread[chunk]) {
+            return;
+        }
+        this.spread[chunk] = true;
+        this.spreadCount++;
+        if (this.spreadCount == this.chunks.size()) {
+            this.stop();
+            return;
+        }
+        Peer ownerPeer = this.chat.checkAddressBook(owner);
+        if (ownerPeer != null) {
+            this.revealNext(ownerPeer);
+        }
+    }
+
+    /**
+     * A peer left: its chunks which hadn't spread are revealed again, to the next peers due one.
+     */
+    public synchronized void peerLeft(int peerID) {
+        for (int chunk = 0; chunk < this.owners.length; chunk++) {
+            if (this.owners[chunk] == peerID && !this.spread[chunk]) {
+                this.owners[chunk] = -1;
+            }
+        }
+    }
+
+    /**
+     * Reveal the first chunk nobody has been given to a peer, by sending it HAVEs for the chunk's pieces.
+     * A chunk large enough to go in bulk only needs its first piece advertised: the peer asks for the rest in bulk.
+     * @return false if every chunk has been given out.
+     */
+    private boolean revealNext(Peer peer) {
+        for (int chunk = 0; chunk < this.owners.length; chunk++) {
+            if (this.owners[chunk] < 0) {
+                this.owners[chunk] = peer.user.userID;
+                BlockFile block = this.chunks.get(chunk);
+                int end = block.blockOffset + (block.blockSize >= BulkTransfer.THRESHOLD ? 1 : block.blockSize);
+                for (int sequenceNumber = block.blockOffset; sequenceNumber < end; sequenceNumber++) {
+                    Message piece = this.chat.getMessage(this.chat.hostID, sequenceNumber);
+                    if (piece != null) {
+                        peer.sendControlData(new ControlPacket(ControlPacket.Type.HAVE, this.chat.hostID, piece, this.chat.rootOf(piece)).pack());
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop super-seeding: serve the file to anyone from now on, and wake run() to finish up. Must hold the lock.
+     */
+    private void stop() {
+        this.done = true;
+        this.chat.superSeeders.remove(this);
+        this.notifyAll();
+    }
+
+    /**
+     * Once stopped, advertise whatever hasn't spread to everyone. Chunks stop spreading once done is set, so this
+     * needn't hold the lock.
+     */
+    private void finish() {
+        for (int chunk = 0; chunk < this.chunks.size(); chunk++) {
+            if (!this.spread[chunk]) {
+                BlockFile block = this.chunks.get(chunk);
+                for (int sequenceNumber = block.blockOffset; sequenceNumber < block.blockOffset + block.blockSize; sequenceNumber++) {
+                    Message piece = this.chat.getMessage(this.chat.hostID, sequenceNumber);
+                    if (piece != null) {
+                        this.chat.advertise(piece);
+                    }
+                }
+            }
+        }
+        double copies = this.length == 0 ? 0.0 : (double) this.uploaded / this.length;
+        if (this.spreadCount == this.chunks.size()) {
+            System.out.println(String.format("Done super-seeding %s: uploaded %.2f copies", this.name, copies));
+        } else {
+            System.out.println(String.format("Super-seeding %s stalled with %d of %d parts passed on (uploaded %.2f copies); sending the rest normally",
+                this.name, this.spreadCount, this.chunks.size(), copies));
+        }
+    }
+
+    private int chunkOf(int sequenceNumber) {
+        int low = 0;
+        int high = this.chunks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.chunks.get(middle).blockOffset <= sequenceNumber) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private ArrayList<Peer> peers() {
+        synchronized (this.chat.peers) {
+            return new ArrayList<Peer>(this.chat.peers);
+        }
+    }
+}
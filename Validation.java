@@ -1,89 +1,84 @@
 /**
  * Computes a hash of a message in order to validate the UDP transmission of the message.
+ * <br>
+ * Uses CRC-32C (java.util.zip.CRC32C), which the JVM computes with the processor's CRC instructions where it has them,
+ * so checking a piece costs a few nanoseconds. The metadata is laid out in a per-thread buffer rather than packed,
+ * so no garbage is made per packet.
  */
 
-import java.io.*;
-import java.util.*;
-import java.net.*;
 import java.nio.*;
-import java.nio.charset.*;
+import java.util.zip.CRC32C;
 
 public class Validation {
 
-    // uses CRC described: https://en.wikipedia.org/wiki/Cyclic_redundancy_check
-    private static final long CRC_POLYNOMIAL = 0x04C11DB7;
-    private static final int CRC_N = 32;
-
-    // & with this to find leading bit of a CRC_N-bit number.
-    private static final long LEAD_BIT_MASK = (((long)1) << (CRC_N-1));
-    // & with this to find leading bit of an unsigned byte
-    private static final short LEAD_BYTE_BIT_MASK = (((short)1) << (8 - 1));
+    /**
+     * Bytes of metadata hashed ahead of the data: type and flags, sender ID, block index, block offset, block size,
+     * sequence number and data length (4 bytes each) and date (8 bytes).
+     */
+    private static final int METADATA_SIZE = 7 * 4 + 8;
 
-    private static long appendBitToCRC(long crc, boolean bit) {
-        long firstBit = LEAD_BIT_MASK & crc;
-        crc ^= firstBit; // clear top bit
-        crc <<= 1; // move over
-        crc += (bit ? 1 : 0);
-        if (firstBit != 0) {
-            crc ^= CRC_POLYNOMIAL;
+    private static final ThreadLocal<ByteBuffer> metadata = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(METADATA_SIZE);
         }
-        return crc;
-    }
+    };
 
-    private static long padCRC(long crc) {
-        for (int i = 0; i < CRC_N; i++) {
-            crc = appendBitToCRC(crc, false);
+    private static final ThreadLocal<CRC32C> crcs = new ThreadLocal<CRC32C>() {
+        protected CRC32C initialValue() {
+            return new CRC32C();
         }
-        return crc;
-    }
+    };
 
-    /**
-     * Appends an byte to a CRC.
-     */
-    private static long appendByteToCRC(long crc, byte character) {
-        short unsignedByte = (short)(0x000000FF & ((int)character));
-        for (int i = 0; i < 8; i++) {
-            boolean bit = (LEAD_BYTE_BIT_MASK & unsignedByte) != 0;
-            crc = appendBitToCRC(crc, bit);
-            unsignedByte <<= 1;
-        }
-        return crc;
+    public static long dataCRC(byte[] data) {
+        CRC32C crc = crcs.get();
+        crc.reset();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
     }
 
     /**
-     * Gets the bytes for a message that should be hashed
+     * Computes the cyclic redundancy check of a message, including message's data and metadata.
+     * @param message The message to compute the hash of.
+     * @return A hash of the message.
      */
-    private static byte[] messageDataAndMetadata(Message message) {
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    public static long computeCRC(Message message) {
+        ByteBuffer buffer = metadata.get();
+        buffer.clear();
+        buffer.putInt(message.typeAndFlags());
+        buffer.putInt(message.senderID);
+        buffer.putInt(message.blockIndex);
+        buffer.putInt(message.blockOffset);
+        buffer.putInt(message.blockSize);
+        buffer.putInt(message.sequenceNumber);
+        buffer.putInt(message.data.length);
+        buffer.putLong(message.date);
+        buffer.flip();
 
-        try {
-            IOHelper.writeByteArray(message.data, byteStream);
-            IOHelper.writeInt(message.senderID, byteStream);
-            IOHelper.writeInt(message.blockIndex, byteStream);
-            IOHelper.writeInt(message.sequenceNumber, byteStream);
-            IOHelper.writeLong(message.date, byteStream);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            return null;
-        }
-        return byteStream.toByteArray();
+        CRC32C crc = crcs.get();
+        crc.reset();
+        crc.update(buffer);
+        crc.update(message.data, 0, message.data.length);
+        return crc.getValue();
     }
 
-    public static long dataCRC(byte[] data) {
-        long crc = 0;
-        for (int i = 0; i < data.length; i++) {
-            crc = appendByteToCRC(crc, data[i]);
-        }
-        crc = padCRC(crc);
-        return crc;
+    /**
+     * The checksum carried in the payload of a DATA packet.
+     */
+    public static byte[] checksum(Message message) {
+        return ByteBuffer.allocate(4).putInt((int) computeCRC(message)).array();
     }
 
     /**
-     * Computes the cyclic redundancy check of a message, including message's data and metadata.
-     * @param message The message to compute the hash of.
-     * @return A hash of the message.
+     * Does a DATA packet's piece match its checksum?
+     * Packets from peers which don't send a checksum (an empty payload) can't be checked, and are accepted.
      */
-    public static long computeCRC(Message message) {
-        return dataCRC(messageDataAndMetadata(message));
+    public static boolean isIntact(ControlPacket packet) {
+        if (packet.message == null) {
+            return false;
+        }
+        if (packet.payload.length < 4) {
+            return true;
+        }
+        return ByteBuffer.wrap(packet.payload).getInt() == (int) computeCRC(packet.message);
     }
 }